@@ -1,10 +1,21 @@
 LOCAL_PATH := $(call my-dir)
+
+# The suggestion engine, free of JNI and Android logging so it also builds on the host
+# (see tools/dictbench)
 include $(CLEAR_VARS)
 
 LOCAL_SRC_FILES := \
-	info_kanru_inputmethod_awesome_BinaryDictionary.cpp \
 	dictionary.cpp
-LOCAL_LDLIBS := -lm -llog
+LOCAL_MODULE := libawesomeime_dict
+
+include $(BUILD_STATIC_LIBRARY)
+
+include $(CLEAR_VARS)
+
+LOCAL_SRC_FILES := \
+	info_kanru_inputmethod_awesome_BinaryDictionary.cpp
+LOCAL_STATIC_LIBRARIES := libawesomeime_dict
+LOCAL_LDLIBS := -lm -llog -lz
 LOCAL_MODULE := libjni_awesomeime
 
 include $(BUILD_SHARED_LIBRARY)
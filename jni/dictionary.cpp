@@ -18,7 +18,10 @@
 #include <stdio.h>
 #include <fcntl.h>
 #include <sys/mman.h>
+#include <stdlib.h>
 #include <string.h>
+#include <limits.h>
+#include <zlib.h>
 
 #include "dictionary.h"
 #include "basechars.h"
@@ -27,20 +30,232 @@
 
 namespace awesomeime {
 
-Dictionary::Dictionary(void *dict, int typedLetterMultiplier, int fullWordMultiplier)
+Dictionary::Dictionary(void *dict, int dictLen, int typedLetterMultiplier, int fullWordMultiplier,
+        int bufferAdjust)
 {
     mDict = (unsigned char*) dict;
+    mDictLen = dictLen;
+    mDictAdjust = bufferAdjust;
     mTypedLetterMultiplier = typedLetterMultiplier;
     mFullWordMultiplier = fullWordMultiplier;
+    mRoot = 0;
+    mNodeCount = 0;
+    mBigrams = 0;
+    mBigramCount = 0;
+    mSortedChildren = false;
+    mRootIndex = NULL;
+    mRootIndexSize = 0;
+    mFormat = readHeader();
+    switch (mFormat) {
+    case FORMAT_V1:
+        buildRootIndex<FORMAT_V1>();
+        break;
+    case FORMAT_V2:
+        buildRootIndex<FORMAT_V2>();
+        break;
+    case FORMAT_V2_EXTENSIONS:
+        buildRootIndex<FORMAT_V2_EXTENSIONS>();
+        break;
+    case FORMAT_V2_BOUNDS:
+        buildRootIndex<FORMAT_V2_BOUNDS>();
+        break;
+    }
+}
+
+static unsigned int readInt(const unsigned char *p)
+{
+    return (p[0] << 24) | (p[1] << 16) | (p[2] << 8) | p[3];
+}
+
+// Picks the decoder for the dictionary and checks what can be checked up front
+int
+Dictionary::readHeader()
+{
+    if (mDictLen < DICT_HEADER_SIZE || readInt(mDict) != DICT_MAGIC) {
+        // Version 1 has no header, so it cannot be checked
+        return mDictLen > 0 ? FORMAT_V1 : FORMAT_INVALID;
+    }
+    int version = (mDict[4] << 8) | mDict[5];
+    int flags = (mDict[6] << 8) | mDict[7];
+    unsigned int headerSize = readInt(mDict + 8);
+    unsigned int bodyLength = readInt(mDict + 16);
+    if (version != DICT_VERSION || headerSize < DICT_HEADER_SIZE
+            || headerSize > (unsigned int) mDictLen
+            || bodyLength != mDictLen - headerSize) {
+        return FORMAT_INVALID;
+    }
+    if (crc32(crc32(0L, Z_NULL, 0), mDict + headerSize, bodyLength) != readInt(mDict + 20)) {
+        return FORMAT_INVALID;
+    }
+    mRoot = headerSize;
+    mNodeCount = readInt(mDict + 12);
+    if (flags & DICT_FLAG_BIGRAMS) {
+        if (headerSize < DICT_HEADER_SIZE + DICT_BIGRAM_OFFSET_SIZE) {
+            return FORMAT_INVALID;
+        }
+        unsigned int bigrams = readInt(mDict + DICT_HEADER_SIZE);
+        if (bigrams < headerSize || bigrams > (unsigned int) mDictLen - 4) {
+            return FORMAT_INVALID;
+        }
+        // The index at least has to fit
+        unsigned int count = readInt(mDict + bigrams);
+        if (count > (mDictLen - bigrams - 4) / 4) {
+            return FORMAT_INVALID;
+        }
+        mBigrams = bigrams;
+        mBigramCount = count;
+    }
+    if (flags & DICT_FLAG_SUBTREE_FREQUENCY) {
+        // The bounds live in extension fields
+        mSortedChildren = (flags & DICT_FLAG_SORTED_CHILDREN) != 0;
+        return FORMAT_V2_BOUNDS;
+    }
+    return flags & DICT_FLAG_EXTENSIONS ? FORMAT_V2_EXTENSIONS : FORMAT_V2;
 }
 
 Dictionary::~Dictionary()
 {
+    free(mRootIndex);
+}
+
+int
+Dictionary::compareRootChildren(const void *a, const void *b)
+{
+    const RootChild *x = (const RootChild*) a;
+    const RootChild *y = (const RootChild*) b;
+    if (x->c != y->c) return x->c < y->c ? -1 : 1;
+    return x->pos < y->pos ? -1 : x->pos > y->pos;
 }
 
-int Dictionary::getSuggestions(int *codes, int codesSize, unsigned short *outWords, int *frequencies,
-        int maxWordLength, int maxWords, int maxAlternatives, int skipPos)
+// The root has a child for nearly every character a word can start with, and a query only goes
+// on below the few its first typed character matches. Rather than have every query read them
+// all, they are sorted once by character, each under its own and its lowered character, which
+// are the two a typed code is compared with.
+template <int FORMAT> void
+Dictionary::buildRootIndex()
 {
+    int pos = mRoot;
+    int count = readCount<FORMAT>(&pos);
+    mRootIndex = (RootChild*) malloc(count * 2 * sizeof(mRootIndex[0]));
+    if (mRootIndex == NULL) {
+        return;
+    }
+    int size = 0;
+    for (int i = 0; i < count; i++) {
+        int childPos = pos;
+        unsigned short c;
+        bool terminal;
+        int childrenAddress;
+        int freq;
+        int maxFreq;
+        readChild<FORMAT>(&pos, &c, &terminal, &childrenAddress, &freq, &maxFreq);
+        mRootIndex[size].c = c;
+        mRootIndex[size++].pos = childPos;
+        unsigned short lowerC = SearchContext::toLowerCase(c);
+        if (lowerC != c) {
+            mRootIndex[size].c = lowerC;
+            mRootIndex[size++].pos = childPos;
+        }
+    }
+    qsort(mRootIndex, size, sizeof(mRootIndex[0]), compareRootChildren);
+    mRootIndexSize = size;
+}
+
+// Adds the positions of the children of the root that code matches to the picked ones, and
+// returns how many there are then, or -1 if more than MAX_ROOT_PICKS
+int
+Dictionary::findRootChildren(int code, int *picked, int picks) const
+{
+    int low = 0;
+    int high = mRootIndexSize;
+    while (low < high) {
+        int mid = (low + high) / 2;
+        if (mRootIndex[mid].c < code) {
+            low = mid + 1;
+        } else {
+            high = mid;
+        }
+    }
+    for (int i = low; i < mRootIndexSize && mRootIndex[i].c == code; i++) {
+        if (picks == MAX_ROOT_PICKS) return -1;
+        picked[picks++] = mRootIndex[i].pos;
+    }
+    return picks;
+}
+
+int
+Dictionary::getSuggestions(SearchContext *context, int *codes, int codesSize,
+        unsigned short *outWords, int *frequencies, int maxWordLength, int maxWords,
+        int maxAlternatives, int minWords) const
+{
+    return context->getSuggestions(this, codes, codesSize, outWords, frequencies, maxWordLength,
+            maxWords, maxAlternatives, minWords);
+}
+
+SearchContext::SearchContext()
+{
+    mDictionary = NULL;
+    mNodesVisited = 0;
+    mHeap = NULL;
+    mHeapIndex = NULL;
+    mLengths = NULL;
+    mWordIndex = NULL;
+    mWordIndexMask = 0;
+    mWordHashes = NULL;
+    mResultCapacity = 0;
+}
+
+SearchContext::~SearchContext()
+{
+    free(mHeap);
+}
+
+// The bookkeeping of the results list is one block, grown when a caller asks for more words
+bool
+SearchContext::reserveResults(int maxWords)
+{
+    if (maxWords <= mResultCapacity) {
+        return true;
+    }
+    // The word index stays at most half full
+    int indexSize = 4;
+    while (indexSize < maxWords * 2) indexSize *= 2;
+    int *block = (int*) realloc(mHeap, (maxWords * 4 + indexSize) * sizeof(int));
+    if (block == NULL) {
+        return false;
+    }
+    mHeap = block;
+    mHeapIndex = block + maxWords;
+    mLengths = block + maxWords * 2;
+    mWordHashes = (unsigned int*) (block + maxWords * 3);
+    mWordIndex = block + maxWords * 4;
+    mWordIndexMask = indexSize - 1;
+    mResultCapacity = maxWords;
+    return true;
+}
+
+// If fewer than minWords suggestions match what was typed, the words that assume one edit of it
+// are merged in: a missed character, an extra one, or two swapped ones. They are all found in one
+// second walk that follows the typed characters and branches off at every position, so the
+// prefix before an edit is matched once for every edit that comes after it.
+//
+// One edit per word is a deliberate limit, not a stand-in for rows of edit distances bounded by
+// mMaxEditDistance, which only bounds the substitutions the key alternatives make:
+//  - The bounds prune a subtree by the weight still to be gained from one input position on. A
+//    row spans every position at once, so it could only be bounded by its best cell.
+//  - With one edit this walk already makes most of the reads of a query that needs it. Up to
+//    len / 2 edits would reach most short words of the dictionary.
+//  - A word with an edit scores as one without, less the full-word multiplier, as the missed
+//    characters of the user and contacts dictionaries do. Further edits would need a penalty
+//    that no other source of suggestions applies.
+int
+SearchContext::getSuggestions(const Dictionary *dictionary, int *codes, int codesSize,
+        unsigned short *outWords, int *frequencies, int maxWordLength, int maxWords,
+        int maxAlternatives, int minWords)
+{
+    mDictionary = dictionary;
+    mTypedLetterMultiplier = dictionary->mTypedLetterMultiplier;
+    mFullWordMultiplier = dictionary->mFullWordMultiplier;
     mFrequencies = frequencies;
     mOutputChars = outWords;
     mInputCodes = codes;
@@ -49,16 +264,52 @@ int Dictionary::getSuggestions(int *codes, int codesSize, unsigned short *outWor
     mMaxWordLength = maxWordLength;
     mMaxWords = maxWords;
     mWords = 0;
-    mSkipPos = skipPos;
+    if (maxWords <= 0 || !reserveResults(maxWords)) {
+        return 0;
+    }
+    mNodesVisited = 0;
     mMaxEditDistance = mInputLength < 5 ? 2 : mInputLength / 2;
+    mMaxDepth = mInputLength * 3;
+    mRemainingWeight[mInputLength] = 1;
+    for (int i = mInputLength - 1; i >= 0; i--) {
+        long long weight = mRemainingWeight[i + 1] * mTypedLetterMultiplier;
+        mRemainingWeight[i] = weight < INT_MAX ? weight : INT_MAX;
+    }
 
-    getWordsRec(0, 0, mInputLength * 3, false, 1, 0, 0);
+    mEditsOnly = false;
+    searchFromRoot();
 
+    if (mWords < minWords) {
+        mEditsOnly = true;
+        buildWordIndex();
+        searchFromRoot();
+    }
+    sortResults();
     return mWords;
 }
 
+void
+SearchContext::searchFromRoot()
+{
+    int root = mDictionary->mRoot;
+    switch (mDictionary->mFormat) {
+    case FORMAT_V1:
+        searchRec<FORMAT_V1>(root, 0, false, 1, 0, 0, EDIT_NONE, MAX_FREQUENCY);
+        break;
+    case FORMAT_V2:
+        searchRec<FORMAT_V2>(root, 0, false, 1, 0, 0, EDIT_NONE, MAX_FREQUENCY);
+        break;
+    case FORMAT_V2_EXTENSIONS:
+        searchRec<FORMAT_V2_EXTENSIONS>(root, 0, false, 1, 0, 0, EDIT_NONE, MAX_FREQUENCY);
+        break;
+    case FORMAT_V2_BOUNDS:
+        searchRec<FORMAT_V2_BOUNDS>(root, 0, false, 1, 0, 0, EDIT_NONE, MAX_FREQUENCY);
+        break;
+    }
+}
+
 unsigned short
-Dictionary::getChar(int *pos)
+Dictionary::getChar(int *pos) const
 {
     unsigned short ch = (unsigned short) (mDict[(*pos)++] & 0xFF);
     // If the code is 255, then actual 16 bit code follows (in big endian)
@@ -70,7 +321,7 @@ Dictionary::getChar(int *pos)
 }
 
 int
-Dictionary::getAddress(int *pos)
+Dictionary::getAddress(int *pos) const
 {
     int address = 0;
     if ((mDict[*pos] & FLAG_ADDRESS_MASK) == 0) {
@@ -84,57 +335,270 @@ Dictionary::getAddress(int *pos)
     return address;
 }
 
-int
-Dictionary::wideStrLen(unsigned short *str)
+template <int FORMAT> inline int
+Dictionary::readCount(int *pos) const
 {
-    if (!str) return 0;
-    unsigned short *end = str;
-    while (*end)
-        end++;
-    return end - str;
+    int count = mDict[(*pos)++];
+    if (FORMAT != FORMAT_V1 && (count & FLAG_V2_WIDE_COUNT)) {
+        count = ((count & ~FLAG_V2_WIDE_COUNT) << 8) | mDict[(*pos)++];
+    }
+    return count;
+}
+
+// Reads one child of a node. The decoder is picked per dictionary, so the format checks here
+// are resolved at compile time.
+template <int FORMAT> inline void
+Dictionary::readChild(int *pos, unsigned short *c, bool *terminal, int *childrenAddress,
+        int *freq, int *maxFreq) const
+{
+    *c = getChar(pos);
+    *maxFreq = MAX_FREQUENCY;
+    if (FORMAT == FORMAT_V1) {
+        *terminal = getTerminal(pos);
+        *childrenAddress = getAddress(pos);
+        *freq = *terminal ? getFreq(pos) : 1;
+        return;
+    }
+    int flags = mDict[(*pos)++];
+    *terminal = (flags & FLAG_V2_TERMINAL) != 0;
+    int address = 0;
+    switch ((flags & FLAG_V2_ADDRESS_MASK) >> FLAG_V2_ADDRESS_SHIFT) {
+    case 3:
+        address = mDict[(*pos)++] << 24;
+        // fall through
+    case 2:
+        address |= mDict[(*pos)++] << 16;
+        // fall through
+    case 1:
+        address |= mDict[*pos] << 8 | mDict[*pos + 1];
+        *pos += 2;
+    }
+    *childrenAddress = address;
+    *freq = *terminal ? getFreq(pos) : 1;
+    if ((FORMAT == FORMAT_V2_EXTENSIONS || FORMAT == FORMAT_V2_BOUNDS)
+            && (flags & FLAG_V2_EXTENSION)) {
+        int length = mDict[*pos];
+        if (FORMAT == FORMAT_V2_BOUNDS && length > 0 && address != 0) {
+            *maxFreq = mDict[*pos + 1];
+        }
+        // Skip the rest of the extension field
+        *pos += 1 + length;
+    }
 }
 
+// Words are ranked by frequency, then shorter first, then by their characters. Every path of the
+// first walk spells a different word, but a word that assumes an edit can also have been found as
+// typed, or through another edit; only its best scored copy is kept.
 bool
-Dictionary::addWord(unsigned short *word, int length, int frequency)
+SearchContext::rankedBefore(unsigned short *word, int length, int frequency, int slot)
 {
-    word[length] = 0;
-    if (DEBUG_DICT) {
-        char s[length + 1];
-        for (int i = 0; i <= length; i++) s[i] = word[i];
+    if (frequency != mFrequencies[slot]) {
+        return frequency > mFrequencies[slot];
+    }
+    if (length != mLengths[slot]) {
+        return length < mLengths[slot];
     }
+    return compareWords(word, mOutputChars + slot * mMaxWordLength, length) < 0;
+}
+
+void
+SearchContext::storeWord(int slot, unsigned short *word, int length, int frequency)
+{
+    unsigned short *dest = mOutputChars + slot * mMaxWordLength;
+    memcpy(dest, word, length * sizeof(dest[0]));
+    dest[length] = 0; // NULL terminate
+    mFrequencies[slot] = frequency;
+    mLengths[slot] = length;
+}
 
-    // Find the right insertion point
-    int insertAt = 0;
-    while (insertAt < mMaxWords) {
-        if (frequency > mFrequencies[insertAt]
-                 || (mFrequencies[insertAt] == frequency
-                     && length < wideStrLen(mOutputChars + insertAt * mMaxWordLength))) {
-            break;
+// The heap keeps the worst ranked word on top, where the next better word replaces it
+void
+SearchContext::siftUp(int index)
+{
+    int slot = mHeap[index];
+    while (index > 0) {
+        int parent = (index - 1) / 2;
+        if (!slotBefore(mHeap[parent], slot)) break;
+        mHeap[index] = mHeap[parent];
+        mHeapIndex[mHeap[index]] = index;
+        index = parent;
+    }
+    mHeap[index] = slot;
+    mHeapIndex[slot] = index;
+}
+
+void
+SearchContext::siftDown(int index, int size)
+{
+    int slot = mHeap[index];
+    for (;;) {
+        int child = index * 2 + 1;
+        if (child >= size) break;
+        if (child + 1 < size && slotBefore(mHeap[child], mHeap[child + 1])) child++;
+        if (!slotBefore(slot, mHeap[child])) break;
+        mHeap[index] = mHeap[child];
+        mHeapIndex[mHeap[index]] = index;
+        index = child;
+    }
+    mHeap[index] = slot;
+    mHeapIndex[slot] = index;
+}
+
+// FNV-1a over the characters of a word
+unsigned int
+SearchContext::hashWord(const unsigned short *word, int length)
+{
+    unsigned int hash = 2166136261u;
+    for (int i = 0; i < length; i++) {
+        hash = (hash ^ word[i]) * 16777619u;
+    }
+    return hash;
+}
+
+// Indexes the words of the first walk, before the second one looks for repeats among them
+void
+SearchContext::buildWordIndex()
+{
+    memset(mWordIndex, 0, (mWordIndexMask + 1) * sizeof(mWordIndex[0]));
+    for (int slot = 0; slot < mWords; slot++) {
+        indexWord(slot, hashWord(mOutputChars + slot * mMaxWordLength, mLengths[slot]));
+    }
+}
+
+// Returns the slot holding the word, or -1
+int
+SearchContext::findWord(unsigned short *word, int length, unsigned int hash)
+{
+    for (int i = hash & mWordIndexMask; mWordIndex[i] != 0; i = (i + 1) & mWordIndexMask) {
+        int slot = mWordIndex[i] - 1;
+        if (mWordHashes[slot] == hash && mLengths[slot] == length
+                && !compareWords(mOutputChars + slot * mMaxWordLength, word, length)) {
+            return slot;
+        }
+    }
+    return -1;
+}
+
+void
+SearchContext::indexWord(int slot, unsigned int hash)
+{
+    int i = hash & mWordIndexMask;
+    while (mWordIndex[i] != 0) i = (i + 1) & mWordIndexMask;
+    mWordIndex[i] = slot + 1;
+    mWordHashes[slot] = hash;
+}
+
+// Removes a slot from the index, moving back the entries after it that would no longer be found
+void
+SearchContext::unindexWord(int slot)
+{
+    int i = mWordHashes[slot] & mWordIndexMask;
+    while (mWordIndex[i] != slot + 1) i = (i + 1) & mWordIndexMask;
+    for (int j = i;;) {
+        j = (j + 1) & mWordIndexMask;
+        if (mWordIndex[j] == 0) break;
+        // An entry can fill the hole if its own position does not lie between the hole and it
+        int home = mWordHashes[mWordIndex[j] - 1] & mWordIndexMask;
+        if (i <= j ? (i < home && home <= j) : (i < home || home <= j)) continue;
+        mWordIndex[i] = mWordIndex[j];
+        i = j;
+    }
+    mWordIndex[i] = 0;
+}
+
+// A word costs a comparison with the worst one kept and O(log maxWords) slot indices moved; the
+// characters are copied once into a free or replaced slot. The second walk finds a word it
+// already has through the word index.
+bool
+SearchContext::addWord(unsigned short *word, int length, int frequency)
+{
+    // Leave room for the terminating NULL
+    if (length >= mMaxWordLength) {
+        return false;
+    }
+    unsigned int hash = 0;
+    if (mEditsOnly) {
+        hash = hashWord(word, length);
+        int slot = findWord(word, length, hash);
+        if (slot >= 0) {
+            // Keep the better scored copy of the word
+            if (!rankedBefore(word, length, frequency, slot)) {
+                return false;
+            }
+            storeWord(slot, word, length, frequency);
+            siftDown(mHeapIndex[slot], mWords);
+            return true;
         }
-        insertAt++;
-    }
-    if (insertAt < mMaxWords) {
-        memmove((char*) mFrequencies + (insertAt + 1) * sizeof(mFrequencies[0]),
-               (char*) mFrequencies + insertAt * sizeof(mFrequencies[0]),
-               (mMaxWords - insertAt - 1) * sizeof(mFrequencies[0]));
-        mFrequencies[insertAt] = frequency;
-        memmove((char*) mOutputChars + (insertAt + 1) * mMaxWordLength * sizeof(short),
-               (char*) mOutputChars + (insertAt    ) * mMaxWordLength * sizeof(short),
-               (mMaxWords - insertAt - 1) * sizeof(short) * mMaxWordLength);
-        unsigned short *dest = mOutputChars + (insertAt    ) * mMaxWordLength;
-        while (length--) {
-            *dest++ = *word++;
+    }
+    if (mWords < mMaxWords) {
+        // Like the empty slots, a word without a score is only kept if it beats another word
+        if (frequency <= 0 && (mWords == 0 || !rankedBefore(word, length, frequency, mHeap[0]))) {
+            return false;
         }
-        *dest = 0; // NULL terminate
-        // Update the word count
-        if (insertAt + 1 > mWords) mWords = insertAt + 1;
+        int slot = mWords++;
+        storeWord(slot, word, length, frequency);
+        if (mEditsOnly) indexWord(slot, hash);
+        mHeap[slot] = slot;
+        siftUp(slot);
         return true;
     }
-    return false;
+    // Replace the worst word if this one ranks before it
+    int slot = mHeap[0];
+    if (!rankedBefore(word, length, frequency, slot)) {
+        return false;
+    }
+    if (mEditsOnly) unindexWord(slot);
+    storeWord(slot, word, length, frequency);
+    if (mEditsOnly) indexWord(slot, hash);
+    siftDown(0, mWords);
+    return true;
+}
+
+// Puts the words in the output slots in rank order, moving each once
+void
+SearchContext::sortResults()
+{
+    // Heap sort: the worst word goes last, and so on
+    for (int size = mWords - 1; size > 0; size--) {
+        int slot = mHeap[0];
+        mHeap[0] = mHeap[size];
+        mHeap[size] = slot;
+        siftDown(0, size);
+    }
+    // mHeap[i] is now the slot whose word belongs in slot i. Follow each cycle of the permutation
+    // with one word set aside in mWord, which no longer holds a prefix.
+    for (int i = 0; i < mWords; i++) {
+        mHeapIndex[i] = 0;
+    }
+    for (int start = 0; start < mWords; start++) {
+        if (mHeapIndex[start] || mHeap[start] == start) continue;
+        int length = mLengths[start];
+        int frequency = mFrequencies[start];
+        memcpy(mWord, mOutputChars + start * mMaxWordLength, length * sizeof(mWord[0]));
+        int to = start;
+        while (mHeap[to] != start) {
+            int from = mHeap[to];
+            storeWord(to, mOutputChars + from * mMaxWordLength, mLengths[from],
+                    mFrequencies[from]);
+            mHeapIndex[to] = 1;
+            to = from;
+        }
+        storeWord(to, mWord, length, frequency);
+        mHeapIndex[to] = 1;
+    }
+}
+
+int
+SearchContext::compareWords(unsigned short *a, unsigned short *b, int length)
+{
+    for (int i = 0; i < length; i++) {
+        if (a[i] != b[i]) return a[i] < b[i] ? -1 : 1;
+    }
+    return 0;
 }
 
 unsigned short
-Dictionary::toLowerCase(unsigned short c) {
+SearchContext::toLowerCase(unsigned short c) {
     if (c < sizeof(BASE_CHARS) / sizeof(BASE_CHARS[0])) {
         c = BASE_CHARS[c];
     }
@@ -145,7 +609,7 @@ Dictionary::toLowerCase(unsigned short c) {
 }
 
 bool
-Dictionary::sameAsTyped(unsigned short *word, int length)
+SearchContext::sameAsTyped(unsigned short *word, int length)
 {
     if (length != mInputLength) {
         return false;
@@ -163,94 +627,239 @@ Dictionary::sameAsTyped(unsigned short *word, int length)
 
 static char QUOTE = '\'';
 
-void
-Dictionary::getWordsRec(int pos, int depth, int maxDepth, bool completion, int snr, int inputIndex,
-                        int diffs)
+// The best score of a word of frequency freq reached with the given weight
+static inline int
+boundOf(int freq, long long weight)
+{
+    long long bound = freq * weight;
+    return bound < INT_MAX ? (int) bound : INT_MAX;
+}
+
+// Finds the children of the root that the first typed character or one of its alternatives
+// matches, and the ' the search skips, in the order they are stored. Returns how many there
+// are, or -1 if the root has to be read in full.
+int
+SearchContext::pickRootChildren(int *currentChars, int *picked)
+{
+    if (mDictionary->mRootIndex == NULL) {
+        return -1;
+    }
+    int picks = 0;
+    if (currentChars[0] != QUOTE) {
+        picks = mDictionary->findRootChildren(QUOTE, picked, picks);
+    }
+    for (int j = 0; j < mMaxAlternatives && currentChars[j] > 0 && picks >= 0; j++) {
+        picks = mDictionary->findRootChildren(currentChars[j], picked, picks);
+    }
+    if (picks < 0) {
+        return -1;
+    }
+    // Several codes can match the same child
+    for (int i = 1; i < picks; i++) {
+        int pos = picked[i];
+        int j = i;
+        for (; j > 0 && picked[j - 1] > pos; j--) picked[j] = picked[j - 1];
+        picked[j] = pos;
+    }
+    int unique = 0;
+    for (int i = 0; i < picks; i++) {
+        if (unique == 0 || picked[unique - 1] != picked[i]) picked[unique++] = picked[i];
+    }
+    return unique;
+}
+
+// The search walks the trie depth first and skips every subtree whose bound, the best score any
+// word below could still reach, cannot make it into a full list. Words are ranked by a total
+// order (see addWord), so the suggestions do not depend on the order they are found in. When the
+// children of a node come strongest first, the strong words fill the list early, and the walk
+// stops at the first child whose bound cannot make it. Below the root, the first walk only reads
+// the children the first typed character can match.
+template <int FORMAT> void
+SearchContext::searchRec(int pos, int depth, bool completion, int snr, int inputIndex, int diffs,
+        int edit, int maxFreq)
 {
     // Optimization: Prune out words that are too long compared to how much was typed.
-    if (depth > maxDepth) {
+    if (depth > mMaxDepth) {
+        return;
+    }
+    // Nothing longer than the output slots can be reported
+    if (depth + 1 >= mMaxWordLength) {
         return;
     }
     if (diffs > mMaxEditDistance) {
         return;
     }
-    int count = getCount(&pos);
-    int *currentChars = NULL;
     if (mInputLength <= inputIndex) {
+        // Completions were all found by the first walk
+        if (mEditsOnly && edit == EDIT_NONE) return;
         completion = true;
-    } else {
-        currentChars = mInputCodes + (inputIndex * mMaxAlternatives);
+    }
+    // Each character still to be typed can multiply the score, and so can matching a full word.
+    // No child can do better than its own frequency bound times this.
+    long long weight = snr;
+    if (!completion) {
+        weight *= mRemainingWeight[inputIndex];
+        if (edit == EDIT_NONE) weight *= mFullWordMultiplier;
+    }
+    if (!canImprove(boundOf(maxFreq, weight))) {
+        return;
+    }
+
+    int count = mDictionary->readCount<FORMAT>(&pos);
+    int *currentChars = completion ? NULL : mInputCodes + (inputIndex * mMaxAlternatives);
+    bool sorted = mDictionary->mSortedChildren;
+    int picked[MAX_ROOT_PICKS];
+    int picks = -1;
+    if (depth == 0 && !completion && !mEditsOnly) {
+        picks = pickRootChildren(currentChars, picked);
+    }
+    if (picks >= 0) {
+        count = picks;
     }
 
     for (int i = 0; i < count; i++) {
-        unsigned short c = getChar(&pos);
+        if (picks >= 0) {
+            pos = picked[i];
+        }
+        unsigned short c;
+        bool terminal;
+        int childrenAddress;
+        int freq;
+        int childMaxFreq;
+        mDictionary->readChild<FORMAT>(&pos, &c, &terminal, &childrenAddress, &freq,
+                &childMaxFreq);
+        mNodesVisited++;
+        if (sorted) {
+            int childBound = terminal ? freq : 0;
+            if (childrenAddress != 0 && childMaxFreq > childBound) childBound = childMaxFreq;
+            // Neither this child nor the ones after it can make the list
+            if (!canImprove(boundOf(childBound, weight))) break;
+        }
         unsigned short lowerC = toLowerCase(c);
-        bool terminal = getTerminal(&pos);
-        int childrenAddress = getAddress(&pos);
-        int freq = 1;
-        if (terminal) freq = getFreq(&pos);
+        mWord[depth] = c;
         // If we are only doing completions, no need to look at the typed characters.
         if (completion) {
-            mWord[depth] = c;
             if (terminal) {
                 addWord(mWord, depth + 1, freq * snr);
             }
             if (childrenAddress != 0) {
-                getWordsRec(childrenAddress, depth + 1, maxDepth,
-                            completion, snr, inputIndex, diffs);
+                searchRec<FORMAT>(childrenAddress, depth + 1, true, snr, inputIndex, diffs, edit,
+                        childMaxFreq);
             }
-        } else if (c == QUOTE && currentChars[0] != QUOTE || mSkipPos == depth) {
-            // Skip the ' or other letter and continue deeper
-            mWord[depth] = c;
+        } else if (c == QUOTE && currentChars[0] != QUOTE) {
+            // Skip the ' and continue deeper
             if (childrenAddress != 0) {
-                getWordsRec(childrenAddress, depth + 1, maxDepth, false, snr, inputIndex, diffs);
+                searchRec<FORMAT>(childrenAddress, depth + 1, false, snr, inputIndex, diffs,
+                        edit, childMaxFreq);
             }
-        } else {
+        } else if (!mEditsOnly) {
             int j = 0;
-            while (currentChars[j] > 0) {
+            while (j < mMaxAlternatives && currentChars[j] > 0) {
                 if (currentChars[j] == lowerC || currentChars[j] == c) {
                     int addedWeight = j == 0 ? mTypedLetterMultiplier : 1;
-                    mWord[depth] = c;
-                    if (mInputLength == inputIndex + 1) {
-                        if (terminal) {
-                            if (//INCLUDE_TYPED_WORD_IF_VALID ||
-                                !sameAsTyped(mWord, depth + 1)) {
-                                int finalFreq = freq * snr * addedWeight;
-                                if (mSkipPos < 0) finalFreq *= mFullWordMultiplier;
-                                addWord(mWord, depth + 1, finalFreq);
-                            }
-                        }
-                        if (childrenAddress != 0) {
-                            getWordsRec(childrenAddress, depth + 1,
-                                    maxDepth, true, snr * addedWeight, inputIndex + 1,
-                                    diffs + (j > 0));
-                        }
-                    } else if (childrenAddress != 0) {
-                        getWordsRec(childrenAddress, depth + 1, maxDepth,
-                                false, snr * addedWeight, inputIndex + 1, diffs + (j > 0));
-                    }
+                    advance<FORMAT>(depth, terminal, childrenAddress, freq, childMaxFreq,
+                            inputIndex + 1, snr * addedWeight, diffs + (j > 0), edit);
                 }
                 j++;
-                if (mSkipPos >= 0) break;
+            }
+        } else {
+            // Edits are only looked for among the primary codes, one per word
+            int typedSnr = snr * mTypedLetterMultiplier;
+            if (edit == EDIT_SWAPPING) {
+                // The first of the swapped characters, typed second
+                if (typedAt(inputIndex, c, lowerC)) {
+                    advance<FORMAT>(depth, terminal, childrenAddress, freq, childMaxFreq,
+                            inputIndex + 2, typedSnr, diffs, EDIT_SWAPPED);
+                }
+                continue;
+            }
+            if (typedAt(inputIndex, c, lowerC)) {
+                advance<FORMAT>(depth, terminal, childrenAddress, freq, childMaxFreq,
+                        inputIndex + 1, typedSnr, diffs, edit);
+                // Assume the last typed character is extra
+                if (edit == EDIT_NONE && inputIndex + 2 == mInputLength) {
+                    advance<FORMAT>(depth, terminal, childrenAddress, freq, childMaxFreq,
+                            mInputLength, typedSnr, diffs + 1, EDIT_EXTRA);
+                }
+            }
+            if (edit != EDIT_NONE) {
+                continue;
+            }
+            // Assume the user missed this letter and continue deeper without consuming input
+            if (depth < mInputLength && childrenAddress != 0) {
+                searchRec<FORMAT>(childrenAddress, depth + 1, false, snr, inputIndex, diffs + 1,
+                        EDIT_MISSED, childMaxFreq);
+            }
+            if (inputIndex + 1 < mInputLength && typedAt(inputIndex + 1, c, lowerC)) {
+                // Assume the character typed at inputIndex is extra
+                advance<FORMAT>(depth, terminal, childrenAddress, freq, childMaxFreq,
+                        inputIndex + 2, typedSnr, diffs + 1, EDIT_EXTRA);
+                // Or that it belongs after this one
+                if (!typedAt(inputIndex, c, lowerC) && childrenAddress != 0) {
+                    searchRec<FORMAT>(childrenAddress, depth + 1, false, typedSnr, inputIndex,
+                            diffs + 1, EDIT_SWAPPING, childMaxFreq);
+                }
             }
         }
     }
 }
 
-bool
-Dictionary::isValidWord(unsigned short *word, int length)
+// Moves on to the child mWord[depth], which matched the typed characters up to inputIndex:
+// reports the word if nothing typed is left, and searches the node below.
+template <int FORMAT> void
+SearchContext::advance(int depth, bool terminal, int childrenAddress, int freq, int maxFreq,
+        int inputIndex, int snr, int diffs, int edit)
 {
-    return isValidWordRec(0, word, 0, length);
+    if (inputIndex == mInputLength) {
+        // The first walk reports the words without an edit, the second only those with one
+        if (terminal && mEditsOnly == (edit != EDIT_NONE)) {
+            if (//INCLUDE_TYPED_WORD_IF_VALID ||
+                !sameAsTyped(mWord, depth + 1)) {
+                int finalFreq = freq * snr;
+                if (edit == EDIT_NONE) finalFreq *= mFullWordMultiplier;
+                addWord(mWord, depth + 1, finalFreq);
+            }
+        }
+        // Completions assume the typed characters are a prefix, which they are not once one of
+        // them was dropped or moved
+        if (childrenAddress != 0 && edit != EDIT_EXTRA && edit != EDIT_SWAPPED) {
+            searchRec<FORMAT>(childrenAddress, depth + 1, true, snr, inputIndex, diffs, edit,
+                    maxFreq);
+        }
+    } else if (childrenAddress != 0) {
+        searchRec<FORMAT>(childrenAddress, depth + 1, false, snr, inputIndex, diffs, edit,
+                maxFreq);
+    }
 }
 
 bool
-Dictionary::isValidWordRec(int pos, unsigned short *word, int offset, int length) {
-    int count = getCount(&pos);
+Dictionary::isValidWord(unsigned short *word, int length) const
+{
+    switch (mFormat) {
+    case FORMAT_V1:
+        return isValidWordRec<FORMAT_V1>(mRoot, word, 0, length);
+    case FORMAT_V2:
+        return isValidWordRec<FORMAT_V2>(mRoot, word, 0, length);
+    case FORMAT_V2_EXTENSIONS:
+        return isValidWordRec<FORMAT_V2_EXTENSIONS>(mRoot, word, 0, length);
+    case FORMAT_V2_BOUNDS:
+        return isValidWordRec<FORMAT_V2_BOUNDS>(mRoot, word, 0, length);
+    }
+    return false;
+}
+
+template <int FORMAT> bool
+Dictionary::isValidWordRec(int pos, unsigned short *word, int offset, int length) const
+{
+    int count = readCount<FORMAT>(&pos);
     unsigned short currentChar = (unsigned short) word[offset];
     for (int j = 0; j < count; j++) {
-        unsigned short c = getChar(&pos);
-        int terminal = getTerminal(&pos);
-        int childPos = getAddress(&pos);
+        unsigned short c;
+        bool terminal;
+        int childPos;
+        int freq;
+        int maxFreq;
+        readChild<FORMAT>(&pos, &c, &terminal, &childPos, &freq, &maxFreq);
         if (c == currentChar) {
             if (offset == length - 1) {
                 if (terminal) {
@@ -258,20 +867,174 @@ Dictionary::isValidWordRec(int pos, unsigned short *word, int offset, int length
                 }
             } else {
                 if (childPos != 0) {
-                    if (isValidWordRec(childPos, word, offset + 1, length)) {
+                    if (isValidWordRec<FORMAT>(childPos, word, offset + 1, length)) {
                         return true;
                     }
                 }
             }
         }
-        if (terminal) {
-            getFreq(&pos);
-        }
         // There could be two instances of each alphabet - upper and lower case. So continue
         // looking ...
     }
     return false;
 }
 
+// Sets the bits of a word in a Bloom filter. The hash is 64-bit FNV-1a over the UTF-16 units
+// and its halves drive the probes, exactly as WordFilter.java does.
+static void
+addToWordFilter(const unsigned short *word, int length, unsigned long long *bits, int bitCount,
+        int hashes)
+{
+    unsigned long long hash = 0xcbf29ce484222325ULL;
+    for (int i = 0; i < length; i++) {
+        hash ^= word[i];
+        hash *= 0x100000001b3ULL;
+    }
+    unsigned int h1 = (unsigned int) hash;
+    unsigned int h2 = (unsigned int) (hash >> 32) | 1;
+    for (int i = 0; i < hashes; i++) {
+        unsigned int bit = (h1 + i * h2) % (unsigned int) bitCount;
+        bits[bit >> 6] |= 1ULL << (bit & 63);
+    }
+}
+
+int
+Dictionary::fillWordFilter(unsigned long long *bits, int bitCount, int hashes,
+        int maxLength) const
+{
+    if (maxLength < 2 || (bits != NULL && bitCount <= 0)) {
+        return 0;
+    }
+    unsigned short *word = (unsigned short*) malloc(maxLength * sizeof(unsigned short));
+    if (word == NULL) {
+        return 0;
+    }
+    int words = 0;
+    switch (mFormat) {
+    case FORMAT_V1:
+        words = fillWordFilterRec<FORMAT_V1>(mRoot, word, 0, maxLength, bits, bitCount, hashes);
+        break;
+    case FORMAT_V2:
+        words = fillWordFilterRec<FORMAT_V2>(mRoot, word, 0, maxLength, bits, bitCount, hashes);
+        break;
+    case FORMAT_V2_EXTENSIONS:
+        words = fillWordFilterRec<FORMAT_V2_EXTENSIONS>(mRoot, word, 0, maxLength, bits,
+                bitCount, hashes);
+        break;
+    case FORMAT_V2_BOUNDS:
+        words = fillWordFilterRec<FORMAT_V2_BOUNDS>(mRoot, word, 0, maxLength, bits, bitCount,
+                hashes);
+        break;
+    }
+    free(word);
+    return words;
+}
+
+// Walks every path of the trie, shared subtrees once per path, down to words of maxLength - 1
+template <int FORMAT> int
+Dictionary::fillWordFilterRec(int pos, unsigned short *word, int depth, int maxLength,
+        unsigned long long *bits, int bitCount, int hashes) const
+{
+    int count = readCount<FORMAT>(&pos);
+    int words = 0;
+    for (int i = 0; i < count; i++) {
+        unsigned short c;
+        bool terminal;
+        int childPos;
+        int freq;
+        int maxFreq;
+        readChild<FORMAT>(&pos, &c, &terminal, &childPos, &freq, &maxFreq);
+        word[depth] = c;
+        if (terminal) {
+            words++;
+            if (bits != NULL) {
+                addToWordFilter(word, depth + 1, bits, bitCount, hashes);
+            }
+        }
+        if (childPos != 0 && depth + 2 < maxLength) {
+            words += fillWordFilterRec<FORMAT>(childPos, word, depth + 1, maxLength, bits,
+                    bitCount, hashes);
+        }
+    }
+    return words;
+}
+
+// Compares the bigram section word at pos with word, by UTF-16 code units
+int
+Dictionary::compareBigramWord(int pos, const unsigned short *word, int length) const
+{
+    int storedLength = mDict[pos++];
+    for (int i = 0; i < storedLength && i < length; i++) {
+        unsigned short c = getChar(&pos);
+        if (c != word[i]) {
+            return c < word[i] ? -1 : 1;
+        }
+    }
+    return storedLength - length;
+}
+
+// Returns the position of the entry for word in the bigram section, or 0 if it has none
+int
+Dictionary::findBigrams(const unsigned short *word, int length) const
+{
+    int index = mBigrams + 4;
+    int lo = 0;
+    int hi = mBigramCount;
+    while (lo < hi) {
+        int mid = (lo + hi) >> 1;
+        unsigned int offset = readInt(mDict + index + mid * 4);
+        if (offset >= (unsigned int) (mDictLen - mBigrams)) {
+            return 0;
+        }
+        int entry = mBigrams + offset;
+        int diff = compareBigramWord(entry, word, length);
+        if (diff < 0) {
+            lo = mid + 1;
+        } else if (diff > 0) {
+            hi = mid;
+        } else {
+            return entry;
+        }
+    }
+    return 0;
+}
+
+int
+Dictionary::getBigrams(const unsigned short *previousWord, int length, unsigned short *outWords,
+        int *frequencies, int maxWordLength, int maxWords) const
+{
+    if (mBigramCount == 0 || length <= 0) {
+        return 0;
+    }
+    int pos = findBigrams(previousWord, length);
+    if (pos == 0) {
+        return 0;
+    }
+    // Skip the word to its successors
+    int wordLength = mDict[pos++];
+    for (int i = 0; i < wordLength; i++) {
+        getChar(&pos);
+    }
+    int count = mDict[pos++];
+    int words = 0;
+    for (int i = 0; i < count && words < maxWords; i++, pos += 4) {
+        int wordPos = mBigrams + ((mDict[pos + 1] << 16) | (mDict[pos + 2] << 8) | mDict[pos + 3]);
+        if (wordPos >= mDictLen) {
+            continue;
+        }
+        int n = mDict[wordPos++];
+        // Leave room for the terminating NULL
+        if (n >= maxWordLength) {
+            continue;
+        }
+        unsigned short *dest = outWords + words * maxWordLength;
+        for (int j = 0; j < n; j++) {
+            dest[j] = getChar(&wordPos);
+        }
+        dest[n] = 0;
+        frequencies[words++] = mDict[pos];
+    }
+    return words;
+}
 
 } // namespace awesomeime
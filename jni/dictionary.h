@@ -19,7 +19,8 @@
 
 namespace awesomeime {
 
-// 22-bit address = ~4MB dictionary size limit, which on average would be about 200k-300k words
+// Version 1: 22-bit address = ~4MB dictionary size limit, which on average would be about
+// 200k-300k words. Version 2 below lifts it.
 #define ADDRESS_MASK 0x3FFFFF
 
 // The bit that decides if an address follows in the next 22 bits
@@ -28,47 +29,244 @@ namespace awesomeime {
 // if the word has other endings.
 #define FLAG_TERMINAL_MASK 0x80
 
+// Version 2 dictionaries start with a header, all fields big endian:
+//
+//   magic        4 bytes   DICT_MAGIC
+//   version      2 bytes   DICT_VERSION
+//   flags        2 bytes   DICT_FLAG_*
+//   header size  4 bytes   offset of the root node
+//   node count   4 bytes   number of characters in the trie
+//   body length  4 bytes   number of bytes after the header
+//   checksum     4 bytes   CRC32 of the bytes after the header
+//
+// A node is a count of children, one byte or, with the top bit set, 15 bits in two bytes. Each
+// child is a character as in version 1, a flags byte, the absolute address of its children in as
+// many bytes as FLAG_V2_ADDRESS_MASK says, the frequency byte of a terminal and, if
+// FLAG_V2_EXTENSION is set, an extension field: a length byte and that many bytes that readers
+// skip unless they know what they hold. A file without the magic is read as version 1, which
+// starts with the root node.
+#define DICT_MAGIC 0x9BC13AFE
+#define DICT_VERSION 2
+#define DICT_HEADER_SIZE 24
+
+// Some nodes carry extension fields; without it the reader need not look for them
+#define DICT_FLAG_EXTENSIONS 0x1
+// The extension field of a child with children starts with the highest frequency of the words
+// below it, which bounds the score of anything the search can find there. A child without the
+// field is assumed to lead to words of any frequency.
+#define DICT_FLAG_SUBTREE_FREQUENCY 0x2
+// The header has one more field, the offset of the bigram section from the start of the
+// dictionary, 4 bytes:
+//
+//   count        4 bytes   number of words with successors
+//   index        4 bytes per word, the offset of its entry from the start of the section, in the
+//                order of the words' UTF-16 code units
+//   entries      the word, the number of its successors in one byte and, likeliest first, the
+//                probability of each successor in one byte and the offset of its word from the
+//                start of the section in 3 bytes
+//   words        the successor words that are not the word of an entry
+//
+// A word is a length byte and that many characters, each encoded as in the trie. A successor can
+// point at the word of any entry, so each word is stored once. Probabilities are quantized to a
+// log scale: a byte q from 1 to 255 stands for 2^((q - 255) / 16).
+#define DICT_FLAG_BIGRAMS 0x4
+#define DICT_BIGRAM_OFFSET_SIZE 4
+// With DICT_FLAG_SUBTREE_FREQUENCY, the children of every node come by decreasing bound: the
+// larger of a child's own frequency, if it is a terminal, and that of the words below it. Once
+// the bound of a child cannot make the list, neither can those after it.
+#define DICT_FLAG_SORTED_CHILDREN 0x8
+
+#define MAX_FREQUENCY 255
+
+#define FLAG_V2_TERMINAL 0x80
+// Size of the children address: none, 16, 24 or 32 bits
+#define FLAG_V2_ADDRESS_MASK 0x60
+#define FLAG_V2_ADDRESS_SHIFT 5
+#define FLAG_V2_EXTENSION 0x10
+#define FLAG_V2_WIDE_COUNT 0x80
+
+// The ways a dictionary is decoded, picked from its header
+enum {
+    FORMAT_INVALID,
+    FORMAT_V1,
+    FORMAT_V2,
+    FORMAT_V2_EXTENSIONS,
+    FORMAT_V2_BOUNDS
+};
+
+// The one correction a word of the second walk assumes
+enum {
+    EDIT_NONE,
+    // The user missed a character of the word
+    EDIT_MISSED,
+    // The user typed a character that is not in the word
+    EDIT_EXTRA,
+    // The user typed two characters of the word the other way round. While swapping, the first
+    // of them has been matched with the second typed one; the next must match the first.
+    EDIT_SWAPPING,
+    EDIT_SWAPPED
+};
+
+class SearchContext;
+
+// The most children of the root that the first typed character and its alternatives can match
+// before the search reads them all instead
+#define MAX_ROOT_PICKS 64
+
+// A mapped dictionary. It does not change once constructed, so any number of threads can search
+// it at once, each with its own SearchContext.
 class Dictionary {
 public:
-    Dictionary(void *dict, int typedLetterMultipler, int fullWordMultiplier);
-    int getSuggestions(int *codes, int codesSize, unsigned short *outWords, int *frequencies,
-        int maxWordLength, int maxWords, int maxAlternatives, int skipPos);
-    bool isValidWord(unsigned short *word, int length);
-    void *getBuffer() { return mDict; }
-    void setBufferLen(int len) { mDictLen = len; }
-    int getBufferLen() { return mDictLen; }
+    Dictionary(void *dict, int dictLen, int typedLetterMultipler, int fullWordMultiplier,
+            int bufferAdjust = 0);
+    // Whether the header, if any, is one this reader understands and the checksum matches
+    bool isValid() const { return mFormat != FORMAT_INVALID; }
+    int getFormat() const { return mFormat; }
+    int getNodeCount() const { return mNodeCount; }
+    // How many words the bigram section has successors for, 0 without one
+    int getBigramCount() const { return mBigramCount; }
+    int getSuggestions(SearchContext *context, int *codes, int codesSize,
+            unsigned short *outWords, int *frequencies, int maxWordLength, int maxWords,
+            int maxAlternatives, int minWords) const;
+    bool isValidWord(unsigned short *word, int length) const;
+    // Counts the words shorter than maxLength and, unless bits is NULL, sets their bits in a
+    // Bloom filter of bitCount bits laid out as in WordFilter.java
+    int fillWordFilter(unsigned long long *bits, int bitCount, int hashes, int maxLength) const;
+    // Copies the words that follow previousWord, likeliest first, with their quantized
+    // probabilities. It only reads the mapping, at most a binary search and maxWords successors.
+    int getBigrams(const unsigned short *previousWord, int length, unsigned short *outWords,
+            int *frequencies, int maxWordLength, int maxWords) const;
+    void *getBuffer() const { return mDict; }
+    int getBufferLen() const { return mDictLen; }
+    // Distance from the start of the mapping to the dictionary, which need not be page aligned
+    int getBufferAdjust() const { return mDictAdjust; }
     ~Dictionary();
 
 private:
+    friend class SearchContext;
 
-    int getAddress(int *pos);
-    bool getTerminal(int *pos) { return (mDict[*pos] & FLAG_TERMINAL_MASK) > 0; }
-    int getFreq(int *pos) { return mDict[(*pos)++] & 0xFF; }
-    int getCount(int *pos) { return mDict[(*pos)++] & 0xFF; }
-    unsigned short getChar(int *pos);
-    int wideStrLen(unsigned short *str);
+    int getAddress(int *pos) const;
+    bool getTerminal(int *pos) const { return (mDict[*pos] & FLAG_TERMINAL_MASK) > 0; }
+    int getFreq(int *pos) const { return mDict[(*pos)++] & 0xFF; }
+    int getCount(int *pos) const { return mDict[(*pos)++] & 0xFF; }
+    unsigned short getChar(int *pos) const;
+    int readHeader();
+    template <int FORMAT> int readCount(int *pos) const;
+    template <int FORMAT> void readChild(int *pos, unsigned short *c, bool *terminal,
+            int *childrenAddress, int *freq, int *maxFreq) const;
+    template <int FORMAT> bool isValidWordRec(int pos, unsigned short *word, int offset,
+            int length) const;
+    template <int FORMAT> int fillWordFilterRec(int pos, unsigned short *word, int depth,
+            int maxLength, unsigned long long *bits, int bitCount, int hashes) const;
+    int compareBigramWord(int pos, const unsigned short *word, int length) const;
+    int findBigrams(const unsigned short *word, int length) const;
+    template <int FORMAT> void buildRootIndex();
+    static int compareRootChildren(const void *a, const void *b);
+    int findRootChildren(int code, int *picked, int picks) const;
+
+    unsigned char *mDict;
+    int mDictLen;
+    int mDictAdjust;
+    int mFormat;
+    int mRoot;
+    int mNodeCount;
+    // Where the bigram section starts and how many words it has successors for; 0 without one
+    int mBigrams;
+    int mBigramCount;
+    // Whether the children of a node come by decreasing bound, see DICT_FLAG_SORTED_CHILDREN
+    bool mSortedChildren;
+    // The children of the root by character, both as stored and lowered, then by position.
+    // NULL if it could not be built; the search then reads every child of the root.
+    struct RootChild {
+        unsigned short c;
+        int pos;
+    } *mRootIndex;
+    int mRootIndexSize;
 
+    int mFullWordMultiplier;
+    int mTypedLetterMultiplier;
+};
+
+// Everything one search needs besides the dictionary. A context serves one query at a time;
+// keep one per thread, on the stack or pooled, so that its bookkeeping of the results is
+// allocated once and reused by the queries that follow.
+class SearchContext {
+public:
+    SearchContext();
+    ~SearchContext();
+    // Trie children read by the last query, for profiling
+    int getNodesVisited() const { return mNodesVisited; }
+
+private:
+    friend class Dictionary;
+
+    int getSuggestions(const Dictionary *dictionary, int *codes, int codesSize,
+            unsigned short *outWords, int *frequencies, int maxWordLength, int maxWords,
+            int maxAlternatives, int minWords);
+    void searchFromRoot();
     bool sameAsTyped(unsigned short *word, int length);
     bool addWord(unsigned short *word, int length, int frequency);
-    unsigned short toLowerCase(unsigned short c);
-    void getWordsRec(int pos, int depth, int maxDepth, bool completion, int frequency,
-            int inputIndex, int diffs);
-    bool isValidWordRec(int pos, unsigned short *word, int offset, int length);
+    bool reserveResults(int maxWords);
+    static unsigned int hashWord(const unsigned short *word, int length);
+    void buildWordIndex();
+    int findWord(unsigned short *word, int length, unsigned int hash);
+    void indexWord(int slot, unsigned int hash);
+    void unindexWord(int slot);
+    bool rankedBefore(unsigned short *word, int length, int frequency, int slot);
+    bool slotBefore(int a, int b) {
+        return rankedBefore(mOutputChars + a * mMaxWordLength, mLengths[a], mFrequencies[a], b);
+    }
+    void storeWord(int slot, unsigned short *word, int length, int frequency);
+    void siftUp(int index);
+    void siftDown(int index, int size);
+    void sortResults();
+    int pickRootChildren(int *currentChars, int *picked);
+    template <int FORMAT> void searchRec(int pos, int depth, bool completion, int snr,
+            int inputIndex, int diffs, int edit, int maxFreq);
+    template <int FORMAT> void advance(int depth, bool terminal, int childrenAddress, int freq,
+            int maxFreq, int inputIndex, int snr, int diffs, int edit);
+    static int compareWords(unsigned short *a, unsigned short *b, int length);
+    static unsigned short toLowerCase(unsigned short c);
+    bool typedAt(int inputIndex, unsigned short c, unsigned short lowerC) {
+        int code = mInputCodes[inputIndex * mMaxAlternatives];
+        return code == lowerC || code == c;
+    }
+    bool canImprove(int bound) {
+        return mWords < mMaxWords || bound >= mFrequencies[mHeap[0]];
+    }
 
-    unsigned char *mDict;
-    int mDictLen;
+    const Dictionary *mDictionary;
+    int mNodesVisited;
 
+    // Until the search ends the output slots are not in order: mHeap holds the slots of the
+    // words found so far, the worst ranked first, and mLengths their lengths.
     int *mFrequencies;
     int mMaxWords;
     int mMaxWordLength;
     int mWords;
     unsigned short *mOutputChars;
+    int *mHeap;
+    // Where each slot is in mHeap
+    int *mHeapIndex;
+    int *mLengths;
+    // While looking for words with an edit, which can repeat a word already found, an open
+    // addressing table of slot + 1 by the hash of their words, and that hash for each slot
+    int *mWordIndex;
+    int mWordIndexMask;
+    unsigned int *mWordHashes;
+    int mResultCapacity;
     int *mInputCodes;
     int mInputLength;
     int mMaxAlternatives;
     unsigned short mWord[128];
-    int mSkipPos;
     int mMaxEditDistance;
+    int mMaxDepth;
+
+    // How much the score can still grow by matching the typed characters from each position on
+    long long mRemainingWeight[128];
+
+    // Set while looking only for words that assume one edit
+    bool mEditsOnly;
 
     int mFullWordMultiplier;
     int mTypedLetterMultiplier;
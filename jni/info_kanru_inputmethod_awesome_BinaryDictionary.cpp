@@ -16,6 +16,9 @@
 */
 
 #include <stdio.h>
+#include <string.h>
+#include <errno.h>
+#include <limits.h>
 #include <assert.h>
 #include <unistd.h>
 #include <fcntl.h>
@@ -28,6 +31,7 @@
 
 #define LOG_TAG "AwesomeDictionary"
 #define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
+#define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
 
 // ----------------------------------------------------------------------------
 
@@ -46,45 +50,128 @@ static void throwException(JNIEnv *env, const char* ex, const char* fmt, int dat
     }
 }
 
+//
+// Maps length bytes at offset of the file at path. The built-in dictionary is stored uncompressed
+// in the APK, so it is mapped in place from there; a dictionary file is mapped from offset 0.
+//
 static jint awesomeime_BinaryDictionary_open
-        (JNIEnv *env, jobject object, jobject assetManager, jstring resourceString,
+        (JNIEnv *env, jobject object, jstring pathString, jlong offset, jlong length,
          jint typedLetterMultiplier, jint fullWordMultiplier)
 {
-    const char *resourcePath = "/sdcard/main.dict";
-
-    int fd = open(resourcePath, O_RDONLY);
-    off_t length = lseek(fd, 0, SEEK_END);
-    void *dict = mmap(NULL, length, PROT_READ, MAP_PRIVATE, fd, 0);
+    if (pathString == NULL || offset < 0 || length <= 0 || length > INT_MAX) {
+        return 0;
+    }
+    const char *path = env->GetStringUTFChars(pathString, NULL);
+    if (path == NULL) {
+        return 0;
+    }
+    int fd = open(path, O_RDONLY);
+    if (fd < 0) {
+        LOGE("Cannot open %s: %s", path, strerror(errno));
+        env->ReleaseStringUTFChars(pathString, path);
+        return 0;
+    }
+    // mmap wants a page aligned offset
+    int adjust = offset % sysconf(_SC_PAGESIZE);
+    void *dict = mmap(NULL, length + adjust, PROT_READ, MAP_PRIVATE, fd, offset - adjust);
+    int error = errno;
+    // The mapping stays valid without the descriptor
+    close(fd);
+    if (dict == MAP_FAILED) {
+        LOGE("Cannot map %s: %s", path, strerror(error));
+        env->ReleaseStringUTFChars(pathString, path);
+        return 0;
+    }
 
-    if (dict == NULL) {
+    Dictionary *dictionary = new Dictionary((char*) dict + adjust, length, typedLetterMultiplier,
+            fullWordMultiplier, adjust);
+    if (!dictionary->isValid()) {
+        LOGE("Not a usable dictionary: %s", path);
+        env->ReleaseStringUTFChars(pathString, path);
+        munmap(dict, length + adjust);
+        delete dictionary;
         return 0;
     }
-    Dictionary *dictionary = new Dictionary(dict, typedLetterMultiplier, fullWordMultiplier);
-    dictionary->setBufferLen(length);
+    env->ReleaseStringUTFChars(pathString, path);
     return (jint) dictionary;
 }
 
+//
+// The dictionary is never written after open, so it can be shared by any number of queries at
+// once as long as each runs with its own context. The context keeps its search space between
+// queries, so it should live as long as whatever issues them.
+//
+static jint awesomeime_BinaryDictionary_newSearchContext
+        (JNIEnv *env, jobject object)
+{
+    return (jint) new SearchContext();
+}
+
+static void awesomeime_BinaryDictionary_deleteSearchContext
+        (JNIEnv *env, jobject object, jint context)
+{
+    delete (SearchContext*) context;
+}
+
+//
+// The input codes, output characters and frequencies live in direct buffers allocated once by
+// the Java side, so a query neither pins nor copies any array. The results are written in place
+// and only the first count entries are meaningful.
+//
 static int awesomeime_BinaryDictionary_getSuggestions(
-        JNIEnv *env, jobject object, jint dict, jintArray inputArray, jint arraySize,
-        jcharArray outputArray, jintArray frequencyArray, jint maxWordLength, jint maxWords,
-        jint maxAlternatives, jint skipPos)
+        JNIEnv *env, jobject object, jint dict, jint context, jobject inputBuffer, jint arraySize,
+        jobject outputBuffer, jobject frequencyBuffer, jint maxWordLength, jint maxWords,
+        jint maxAlternatives, jint minWords)
+{
+    Dictionary *dictionary = (Dictionary*) dict;
+    SearchContext *searchContext = (SearchContext*) context;
+    if (dictionary == NULL || searchContext == NULL)
+        return 0;
+
+    int *inputCodes = (int*) env->GetDirectBufferAddress(inputBuffer);
+    unsigned short *outputChars = (unsigned short*) env->GetDirectBufferAddress(outputBuffer);
+    int *frequencies = (int*) env->GetDirectBufferAddress(frequencyBuffer);
+    if (inputCodes == NULL || outputChars == NULL || frequencies == NULL)
+        return 0;
+    if (env->GetDirectBufferCapacity(inputBuffer)
+                < (jlong) (arraySize * maxAlternatives * sizeof(int))
+            || env->GetDirectBufferCapacity(outputBuffer)
+                < (jlong) (maxWords * maxWordLength * sizeof(unsigned short))
+            || env->GetDirectBufferCapacity(frequencyBuffer)
+                < (jlong) (maxWords * sizeof(int)))
+        return 0;
+
+    return dictionary->getSuggestions(searchContext, inputCodes, arraySize, outputChars,
+            frequencies, maxWordLength, maxWords, maxAlternatives, minWords);
+}
+
+//
+// The previous word is passed in a direct buffer too, and the predicted words come back like
+// suggestions. The lookup only reads the mapping, so it needs no search context.
+//
+static int awesomeime_BinaryDictionary_getBigrams(
+        JNIEnv *env, jobject object, jint dict, jobject wordBuffer, jint wordLength,
+        jobject outputBuffer, jobject frequencyBuffer, jint maxWordLength, jint maxWords)
 {
     Dictionary *dictionary = (Dictionary*) dict;
     if (dictionary == NULL)
         return 0;
 
-    int *frequencies = env->GetIntArrayElements(frequencyArray, NULL);
-    int *inputCodes = env->GetIntArrayElements(inputArray, NULL);
-    jchar *outputChars = env->GetCharArrayElements(outputArray, NULL);
-
-    int count = dictionary->getSuggestions(inputCodes, arraySize, (unsigned short*) outputChars, frequencies,
-            maxWordLength, maxWords, maxAlternatives, skipPos);
-    
-    env->ReleaseIntArrayElements(frequencyArray, frequencies, 0);
-    env->ReleaseIntArrayElements(inputArray, inputCodes, JNI_ABORT);
-    env->ReleaseCharArrayElements(outputArray, outputChars, 0);
-    
-    return count;
+    unsigned short *word = (unsigned short*) env->GetDirectBufferAddress(wordBuffer);
+    unsigned short *outputChars = (unsigned short*) env->GetDirectBufferAddress(outputBuffer);
+    int *frequencies = (int*) env->GetDirectBufferAddress(frequencyBuffer);
+    if (word == NULL || outputChars == NULL || frequencies == NULL)
+        return 0;
+    if (env->GetDirectBufferCapacity(wordBuffer)
+                < (jlong) (wordLength * sizeof(unsigned short))
+            || env->GetDirectBufferCapacity(outputBuffer)
+                < (jlong) (maxWords * maxWordLength * sizeof(unsigned short))
+            || env->GetDirectBufferCapacity(frequencyBuffer)
+                < (jlong) (maxWords * sizeof(int)))
+        return 0;
+
+    return dictionary->getBigrams(word, wordLength, outputChars, frequencies, maxWordLength,
+            maxWords);
 }
 
 static jboolean awesomeime_BinaryDictionary_isValidWord
@@ -100,22 +187,58 @@ static jboolean awesomeime_BinaryDictionary_isValidWord
     return result;
 }
 
+//
+// Counts the words and, given an array, fills it as the bits of a WordFilter. This walks the
+// whole trie, so it is done once when the dictionary is opened.
+//
+static jint awesomeime_BinaryDictionary_fillWordFilter
+        (JNIEnv *env, jobject object, jint dict, jlongArray bitArray, jint hashes,
+         jint maxLength)
+{
+    Dictionary *dictionary = (Dictionary*) dict;
+    if (dictionary == NULL) return 0;
+    if (bitArray == NULL) {
+        return dictionary->fillWordFilter(NULL, 0, hashes, maxLength);
+    }
+
+    jsize length = env->GetArrayLength(bitArray);
+    jlong *bits = env->GetLongArrayElements(bitArray, NULL);
+    if (bits == NULL) return 0;
+    jint words = dictionary->fillWordFilter((unsigned long long*) bits, length * 64, hashes,
+            maxLength);
+    env->ReleaseLongArrayElements(bitArray, bits, 0);
+
+    return words;
+}
+
 static void awesomeime_BinaryDictionary_close
         (JNIEnv *env, jobject object, jint dict)
 {
     Dictionary *dictionary = (Dictionary*) dict;
-    munmap(dictionary->getBuffer(), dictionary->getBufferLen());
-    delete (Dictionary*) dict;
+    if (dictionary == NULL) return;
+    int adjust = dictionary->getBufferAdjust();
+    munmap((char*) dictionary->getBuffer() - adjust, dictionary->getBufferLen() + adjust);
+    delete dictionary;
 }
 
 // ----------------------------------------------------------------------------
 
 static JNINativeMethod gMethods[] = {
-    {"openNative",           "(Landroid/content/res/AssetManager;Ljava/lang/String;II)I",
+    {"openNative",           "(Ljava/lang/String;JJII)I",
                                           (void*)awesomeime_BinaryDictionary_open},
     {"closeNative",          "(I)V",            (void*)awesomeime_BinaryDictionary_close},
-    {"getSuggestionsNative", "(I[II[C[IIIII)I",  (void*)awesomeime_BinaryDictionary_getSuggestions},
-    {"isValidWordNative",    "(I[CI)Z",         (void*)awesomeime_BinaryDictionary_isValidWord}
+    {"newSearchContextNative", "()I",
+                                          (void*)awesomeime_BinaryDictionary_newSearchContext},
+    {"deleteSearchContextNative", "(I)V",
+                                          (void*)awesomeime_BinaryDictionary_deleteSearchContext},
+    {"getSuggestionsNative",
+            "(IILjava/nio/ByteBuffer;ILjava/nio/ByteBuffer;Ljava/nio/ByteBuffer;IIII)I",
+                                          (void*)awesomeime_BinaryDictionary_getSuggestions},
+    {"getBigramsNative",
+            "(ILjava/nio/ByteBuffer;ILjava/nio/ByteBuffer;Ljava/nio/ByteBuffer;II)I",
+                                          (void*)awesomeime_BinaryDictionary_getBigrams},
+    {"isValidWordNative",    "(I[CI)Z",         (void*)awesomeime_BinaryDictionary_isValidWord},
+    {"fillWordFilterNative", "(I[JII)I",        (void*)awesomeime_BinaryDictionary_fillWordFilter}
 };
 
 static int registerNativeMethods(JNIEnv* env, const char* className,
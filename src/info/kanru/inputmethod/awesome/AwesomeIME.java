@@ -263,6 +263,7 @@ public class AwesomeIME extends InputMethodService {
 
         loadSettings();
         mLatinInputMethod.loadSettings();
+        mCinInputMethod.loadSettings();
         mLatinInputMethod.setPredictionOn(predictionOn);
         mLatinInputMethod.setAutoCorrectOn(autoCorrectOn);
         mInputView.setProximityCorrectionEnabled(true);
@@ -437,6 +438,18 @@ public class AwesomeIME extends InputMethodService {
                                       typedWordValid, haveMinimalSuggestion);
     }
 
+    public void setSuggestionPages(boolean hasPrev, boolean hasNext) {
+        mCandidateView.setPages(hasPrev, hasNext);
+    }
+
+    public void prevSuggestionPage() {
+        mInputMethod.prevSuggestionPage();
+    }
+
+    public void nextSuggestionPage() {
+        mInputMethod.nextSuggestionPage();
+    }
+
     public void setShifted(boolean set) {
         getInputView().setShifted(set);
     }
@@ -20,19 +20,28 @@ import android.inputmethodservice.Keyboard;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.preference.CheckBoxPreference;
+import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceGroup;
 import android.text.AutoText;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 public class AwesomeIMESettings extends PreferenceActivity
-    implements SharedPreferences.OnSharedPreferenceChangeListener {
+    implements SharedPreferences.OnSharedPreferenceChangeListener,
+    Preference.OnPreferenceChangeListener {
 
     private static final String QUICK_FIXES_KEY = "quick_fixes";
     private static final String SHOW_SUGGESTIONS_KEY = "show_suggestions";
     private static final String PREDICTION_SETTINGS_KEY = "prediction_settings";
+    private static final String CIN_TABLES_KEY = "cin_tables";
     
     private CheckBoxPreference mQuickFixes;
     private CheckBoxPreference mShowSuggestions;
+    private PreferenceGroup mCinTables;
     
     @Override
     protected void onCreate(Bundle icicle) {
@@ -40,10 +49,60 @@ public class AwesomeIMESettings extends PreferenceActivity
         addPreferencesFromResource(R.xml.prefs);
         mQuickFixes = (CheckBoxPreference) findPreference(QUICK_FIXES_KEY);
         mShowSuggestions = (CheckBoxPreference) findPreference(SHOW_SUGGESTIONS_KEY);
+        mCinTables = (PreferenceGroup) findPreference(CIN_TABLES_KEY);
+        addCinTables();
         getPreferenceManager().getSharedPreferences().registerOnSharedPreferenceChangeListener(
                 this);
     }
 
+    /**
+     * Adds a check box for every CIN table, checked unless the table is in
+     * the disabled tables preference, or hides the category if there are
+     * no tables.
+     */
+    private void addCinTables() {
+        final List<File> tables = CinInputMethod.findTables();
+        if (tables.isEmpty()) {
+            getPreferenceScreen().removePreference(mCinTables);
+            return;
+        }
+        final List<String> disabled = getDisabledTables();
+        for (File table : tables) {
+            final CheckBoxPreference box = new CheckBoxPreference(this);
+            box.setTitle(table.getName());
+            box.setPersistent(false);
+            box.setChecked(!disabled.contains(table.getName()));
+            box.setOnPreferenceChangeListener(this);
+            mCinTables.addPreference(box);
+        }
+    }
+
+    private List<String> getDisabledTables() {
+        final String disabled = getPreferenceManager().getSharedPreferences()
+                .getString(CinInputMethod.PREF_DISABLED_TABLES, "");
+        return new ArrayList<String>(Arrays.asList(disabled.split(",")));
+    }
+
+    /**
+     * Writes the disabled tables preference when a table is checked or
+     * unchecked. Tables that are not there now keep their setting.
+     */
+    public boolean onPreferenceChange(Preference preference, Object newValue) {
+        final List<String> disabled = getDisabledTables();
+        final String name = preference.getTitle().toString();
+        disabled.remove(name);
+        if (!(Boolean) newValue) disabled.add(name);
+        final StringBuilder value = new StringBuilder();
+        for (String table : disabled) {
+            if (table.length() == 0) continue;
+            if (value.length() > 0) value.append(',');
+            value.append(table);
+        }
+        getPreferenceManager().getSharedPreferences().edit()
+                .putString(CinInputMethod.PREF_DISABLED_TABLES, value.toString()).commit();
+        return true;
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
@@ -16,10 +16,20 @@
 
 package info.kanru.inputmethod.awesome;
 
-import java.util.Arrays;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
 
 import android.content.Context;
-import android.content.res.AssetManager;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
+import android.os.Environment;
 import android.util.Log;
 
 /**
@@ -27,29 +37,56 @@ import android.util.Log;
  */
 public class BinaryDictionary extends Dictionary {
 
+    private static final String TAG = "BinaryDictionary";
+
+    /** A dictionary in external storage that replaces the built-in one. */
+    private static final String OVERRIDE_DICT = "main.dict";
+
     public static final int MAX_WORD_LENGTH = 48;
     private static final int MAX_ALTERNATIVES = 16;
     private static final int MAX_WORDS = 16;
 
     private static final int TYPED_LETTER_MULTIPLIER = 2;
-    private static final boolean ENABLE_MISSED_CHARACTERS = true;
+    private static final boolean ENABLE_EDITS = true;
+    // Fewer suggestions than this also brings in the ones assuming a missed, extra or swapped
+    // character
+    private static final int MIN_SUGGESTIONS = 5;
+
+    private static boolean sNativeLibrary;
 
     private int mNativeDict;
-    private int[] mInputCodes = new int[MAX_WORD_LENGTH * MAX_ALTERNATIVES];
+    // The search space of this instance's queries, which share nothing else with other readers
+    // of the native dictionary
+    private int mNativeContext;
+    // Used instead of the native dictionary when the native library is missing
+    private JavaBinaryDictionary mJavaDict;
+    // The native dictionary's words, so most words it does not have are turned down without
+    // crossing into native code
+    private WordFilter mFilter;
+    // Shared with the native code, which reads the codes and writes the results in place
+    private final ByteBuffer mInputBuffer = allocate(MAX_WORD_LENGTH * MAX_ALTERNATIVES * 4);
+    private final ByteBuffer mOutputBuffer = allocate(MAX_WORD_LENGTH * MAX_WORDS * 2);
+    private final ByteBuffer mFrequencyBuffer = allocate(MAX_WORDS * 4);
+    private final IntBuffer mInputCodes = mInputBuffer.asIntBuffer();
+    private final CharBuffer mOutputChars = mOutputBuffer.asCharBuffer();
+    private final IntBuffer mFrequencies = mFrequencyBuffer.asIntBuffer();
+    private final ByteBuffer mPreviousWordBuffer = allocate(MAX_WORD_LENGTH * 2);
+    private final CharBuffer mPreviousWord = mPreviousWordBuffer.asCharBuffer();
     private WordCallback mWordCallback;
-    private char[] mOutputChars = new char[MAX_WORD_LENGTH * MAX_WORDS];
-    private int[] mFrequencies = new int[MAX_WORDS];
+    private final char[] mWord = new char[MAX_WORD_LENGTH];
 
     static {
         try {
             System.loadLibrary("jni_awesomeime");
+            sNativeLibrary = true;
         } catch (UnsatisfiedLinkError ule) {
-            Log.e("BinaryDictionary", "Could not load native library jni_awesomeime");
+            Log.e(TAG, "Could not load native library jni_awesomeime, using the Java reader");
         }
     }
 
     /**
-     * Create a dictionary from a raw resource file
+     * Create a dictionary from a raw resource file, or from main.dict in external storage
+     * if there is one
      * @param context application context for reading resources
      * @param resId the resource containing the raw binary dictionary
      */
@@ -59,63 +96,181 @@ public class BinaryDictionary extends Dictionary {
         }
     }
 
-    private native int openNative(AssetManager am, String resourcePath, int typedLetterMultiplier,
-            int fullWordMultiplier);
+    private native int openNative(String sourceDir, long offset, long length,
+            int typedLetterMultiplier, int fullWordMultiplier);
     private native void closeNative(int dict);
+    private native int newSearchContextNative();
+    private native void deleteSearchContextNative(int context);
     private native boolean isValidWordNative(int nativeData, char[] word, int wordLength);
-    private native int getSuggestionsNative(int dict, int[] inputCodes, int codesSize, 
-            char[] outputChars, int[] frequencies,
-            int maxWordLength, int maxWords, int maxAlternatives, int skipPos);
+    private native int fillWordFilterNative(int dict, long[] bits, int hashes, int maxLength);
+    private native int getSuggestionsNative(int dict, int context,
+            ByteBuffer inputCodes, int codesSize,
+            ByteBuffer outputChars, ByteBuffer frequencies,
+            int maxWordLength, int maxWords, int maxAlternatives, int minWords);
+    private native int getBigramsNative(int dict, ByteBuffer previousWord, int length,
+            ByteBuffer outputChars, ByteBuffer frequencies, int maxWordLength, int maxWords);
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+
+    private boolean open(String path, long offset, long length) {
+        if (sNativeLibrary) {
+            mNativeDict = openNative(path, offset, length,
+                    TYPED_LETTER_MULTIPLIER, FULL_WORD_FREQ_MULTIPLIER);
+            if (mNativeDict == 0) return false;
+            mNativeContext = newSearchContextNative();
+            // Counting the words first sizes the filter
+            mFilter = new WordFilter(fillWordFilterNative(mNativeDict, null,
+                    WordFilter.HASHES, MAX_WORD_LENGTH));
+            fillWordFilterNative(mNativeDict, mFilter.getBits(), WordFilter.HASHES,
+                    MAX_WORD_LENGTH);
+            return true;
+        }
+        try {
+            mJavaDict = new JavaBinaryDictionary(path, offset, length);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open " + path + ": " + e);
+            return false;
+        }
+    }
 
     private final void loadDictionary(Context context, int resId) {
-        AssetManager am = context.getResources().getAssets();
-        String assetName = context.getResources().getString(resId);
-        mNativeDict = openNative(am, assetName, TYPED_LETTER_MULTIPLIER, FULL_WORD_FREQ_MULTIPLIER);
+        final File external = new File(Environment.getExternalStorageDirectory(), OVERRIDE_DICT);
+        if (external.isFile()) {
+            if (open(external.getPath(), 0, external.length())) return;
+            Log.e(TAG, "Cannot open " + external + ", using the built-in dictionary");
+        }
+
+        // The dictionary is stored uncompressed in the APK (see LOCAL_AAPT_FLAGS), so the
+        // dictionary can be mapped in place instead of copied out.
+        final String sourceDir = context.getApplicationInfo().sourceDir;
+        AssetFileDescriptor afd = null;
+        try {
+            afd = context.getResources().openRawResourceFd(resId);
+        } catch (Resources.NotFoundException e) {
+            // Compressed by a build that does not honour LOCAL_AAPT_FLAGS
+        }
+        if (afd != null) {
+            boolean opened;
+            try {
+                opened = open(sourceDir, afd.getStartOffset(), afd.getLength());
+            } finally {
+                try {
+                    afd.close();
+                } catch (IOException e) {}
+            }
+            if (opened) return;
+        }
+
+        // Otherwise unpack it once into private storage and map that copy.
+        final File copy = new File(context.getFilesDir(), OVERRIDE_DICT);
+        boolean opened = false;
+        try {
+            if (!copy.isFile() || copy.lastModified() < new File(sourceDir).lastModified()) {
+                copyResource(context, resId, copy);
+            }
+            opened = open(copy.getPath(), 0, copy.length());
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot unpack the built-in dictionary: " + e);
+        } catch (Resources.NotFoundException e) {
+            Log.e(TAG, "Cannot find the built-in dictionary: " + e);
+        }
+        if (!opened) {
+            Log.e(TAG, "Cannot open the built-in dictionary");
+        }
+    }
+
+    private static void copyResource(Context context, int resId, File file) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        final InputStream in = context.getResources().openRawResource(resId);
+        try {
+            final OutputStream out = new FileOutputStream(temp);
+            try {
+                final byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Cannot rename " + temp + " to " + file);
+        }
     }
 
     @Override
     public void getWords(final WordComposer codes, final WordCallback callback) {
+        if (mJavaDict != null) {
+            mJavaDict.getWords(codes, callback);
+            return;
+        }
         mWordCallback = callback;
         final int codesSize = codes.size();
         // Wont deal with really long words.
         if (codesSize > MAX_WORD_LENGTH - 1) return;
         
-        Arrays.fill(mInputCodes, -1);
+        final IntBuffer inputCodes = mInputCodes;
         for (int i = 0; i < codesSize; i++) {
             int[] alternatives = codes.getCodesAt(i);
-            System.arraycopy(alternatives, 0, mInputCodes, i * MAX_ALTERNATIVES,
-                    Math.min(alternatives.length, MAX_ALTERNATIVES));
-        }
-        Arrays.fill(mOutputChars, (char) 0);
-        Arrays.fill(mFrequencies, 0);
-
-        int count = getSuggestionsNative(mNativeDict, mInputCodes, codesSize,
-                mOutputChars, mFrequencies,
-                MAX_WORD_LENGTH, MAX_WORDS, MAX_ALTERNATIVES, -1);
-
-        // If there aren't sufficient suggestions, search for words by allowing wild cards at
-        // the different character positions. This feature is not ready for prime-time as we need
-        // to figure out the best ranking for such words compared to proximity corrections and
-        // completions.
-        if (ENABLE_MISSED_CHARACTERS && count < 5) {
-            for (int skip = 0; skip < codesSize; skip++) {
-                int tempCount = getSuggestionsNative(mNativeDict, mInputCodes, codesSize,
-                        mOutputChars, mFrequencies,
-                        MAX_WORD_LENGTH, MAX_WORDS, MAX_ALTERNATIVES, skip);
-                count = Math.max(count, tempCount);
-                if (tempCount > 0) break;
+            final int n = Math.min(alternatives.length, MAX_ALTERNATIVES);
+            final int base = i * MAX_ALTERNATIVES;
+            for (int j = 0; j < n; j++) {
+                inputCodes.put(base + j, alternatives[j]);
             }
+            // Terminate a short list of alternatives instead of clearing the whole buffer
+            if (n < MAX_ALTERNATIVES) inputCodes.put(base + n, -1);
         }
 
+        // If there aren't sufficient suggestions, also offer words that assume one character was
+        // missed, typed by mistake or swapped with the next one. The native search looks for all
+        // three in one more walk.
+        int count = getSuggestionsNative(mNativeDict, mNativeContext, mInputBuffer, codesSize,
+                mOutputBuffer, mFrequencyBuffer,
+                MAX_WORD_LENGTH, MAX_WORDS, MAX_ALTERNATIVES,
+                ENABLE_EDITS ? MIN_SUGGESTIONS : 0);
+        reportWords(count, callback);
+    }
+
+    @Override
+    public void getBigrams(final CharSequence previousWord, final WordCallback callback) {
+        if (mJavaDict != null) {
+            mJavaDict.getBigrams(previousWord, callback);
+            return;
+        }
+        final int length = previousWord.length();
+        if (mNativeDict == 0 || length == 0 || length > MAX_WORD_LENGTH) return;
+        final CharBuffer word = mPreviousWord;
+        for (int i = 0; i < length; i++) {
+            word.put(i, previousWord.charAt(i));
+        }
+        int count = getBigramsNative(mNativeDict, mPreviousWordBuffer, length,
+                mOutputBuffer, mFrequencyBuffer, MAX_WORD_LENGTH, MAX_WORDS);
+        reportWords(count, callback);
+    }
+
+    // Hands the first count words of the output buffers to the callback
+    private void reportWords(int count, WordCallback callback) {
+        // Only the first count entries were written by this query.
+        final CharBuffer outputChars = mOutputChars;
+        final char[] word = mWord;
         for (int j = 0; j < count; j++) {
-            if (mFrequencies[j] < 1) break;
+            final int frequency = mFrequencies.get(j);
+            if (frequency < 1) break;
             int start = j * MAX_WORD_LENGTH;
             int len = 0;
-            while (mOutputChars[start + len] != 0) {
-                len++;
+            char c;
+            while (len < MAX_WORD_LENGTH && (c = outputChars.get(start + len)) != 0) {
+                word[len++] = c;
             }
             if (len > 0) {
-                callback.addWord(mOutputChars, start, len, mFrequencies[j]);
+                callback.addWord(word, 0, len, frequency);
             }
         }
     }
@@ -123,7 +278,20 @@ public class BinaryDictionary extends Dictionary {
     @Override
     public boolean isValidWord(CharSequence word) {
         if (word == null) return false;
-        char[] chars = word.toString().toLowerCase().toCharArray();
+        if (mJavaDict != null) return mJavaDict.isValidWord(word);
+        if (mNativeDict == 0) return false;
+        // Lowercase ASCII stays as it is in any locale, which spares the copy for most words
+        CharSequence lower = word;
+        for (int i = 0; i < word.length(); i++) {
+            final char c = word.charAt(i);
+            if (c >= 0x80 || (c >= 'A' && c <= 'Z')) {
+                lower = word.toString().toLowerCase();
+                break;
+            }
+        }
+        // The filter holds every word short enough to be suggested
+        if (lower.length() < MAX_WORD_LENGTH && !mFilter.mightContain(lower)) return false;
+        char[] chars = lower.toString().toCharArray();
         return isValidWordNative(mNativeDict, chars, chars.length);
     }
 
@@ -132,6 +300,12 @@ public class BinaryDictionary extends Dictionary {
             closeNative(mNativeDict);
             mNativeDict = 0;
         }
+        if (mNativeContext != 0) {
+            deleteSearchContextNative(mNativeContext);
+            mNativeContext = 0;
+        }
+        mJavaDict = null;
+        mFilter = null;
     }
 
     @Override
@@ -85,6 +85,9 @@ public class CandidateView extends View {
     
     private int mTotalWidth;
     private int mScrollX = 0;
+
+    private boolean mHasPrevPage;
+    private boolean mHasNextPage;
     
     private GestureDetector mGestureDetector;
 
@@ -293,6 +296,8 @@ public class CandidateView extends View {
             mSuggestions = new ArrayList<CharSequence>(suggestions);
         }
         mShowingCompletions = completions;
+        mHasPrevPage = false;
+        mHasNextPage = false;
         mTypedWordValid = typedWordValid;
         mScrollX = 0;
         mTargetScrollX = 0;
@@ -304,7 +309,30 @@ public class CandidateView extends View {
         requestLayout();
     }
 
+    /**
+     * Tells the view whether more candidates can be paged in before or after the
+     * ones currently shown. Scrolling past either end of the strip then asks the
+     * service for the neighbouring page.
+     */
+    public void setPages(boolean hasPrev, boolean hasNext) {
+        mHasPrevPage = hasPrev;
+        mHasNextPage = hasNext;
+        requestLayout();
+    }
+
+    public boolean hasPrevPage() {
+        return mHasPrevPage;
+    }
+
+    public boolean hasNextPage() {
+        return mHasNextPage;
+    }
+
     public void scrollPrev() {
+        if (mScrollX <= 0 && mHasPrevPage) {
+            mService.prevSuggestionPage();
+            return;
+        }
         int i = 0;
         final int count = mSuggestions.size();
         int firstItem = 0; // Actually just before the first item, if at the boundary
@@ -322,6 +350,10 @@ public class CandidateView extends View {
     }
     
     public void scrollNext() {
+        if (mScrollX + getWidth() >= mTotalWidth && mHasNextPage) {
+            mService.nextSuggestionPage();
+            return;
+        }
         int i = 0;
         int targetX = mScrollX;
         final int count = mSuggestions.size();
@@ -57,8 +57,9 @@ public class CandidateViewContainer extends LinearLayout implements OnTouchListe
             int availableWidth = mCandidates.getWidth();
             int neededWidth = mCandidates.computeHorizontalScrollRange();
             int x = mCandidates.getScrollX();
-            boolean leftVisible = x > 0;
-            boolean rightVisible = x + availableWidth < neededWidth;
+            boolean leftVisible = x > 0 || mCandidates.hasPrevPage();
+            boolean rightVisible = x + availableWidth < neededWidth
+                    || mCandidates.hasNextPage();
             if (mButtonLeftLayout != null) {
                 mButtonLeftLayout.setVisibility(leftVisible ? VISIBLE : GONE);
             }
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2010 Kan-Ru Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package info.kanru.inputmethod.awesome;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Follow-up characters and phrases for a committed character, read from an
+ * association table built by the makeassoc tool (see MakeAssocTable for the
+ * format). The table is mapped read-only and looked up by binary search on
+ * the committed character; follow-ups are copied into a per-thread buffer,
+ * so a lookup allocates nothing.
+ */
+public class CinAssociations {
+
+    private static final int MAGIC = 0x41415343; // "AASC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int LEAD_SIZE = 12;
+
+    private final ByteBuffer mTable;
+    private final int mLeads;
+    private final int mLeadsOffset;
+    private final int mPhrasesOffset;
+    private final int mMaxLength;
+
+    private final ThreadLocal<char[]> mBuffer = new ThreadLocal<char[]>();
+
+    public CinAssociations(String filepath) throws IOException {
+        RandomAccessFile fd = new RandomAccessFile(filepath, "r");
+        final ByteBuffer table;
+        try {
+            FileChannel channel = fd.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Association table too large: " + filepath);
+            }
+            table = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            fd.close();
+        }
+        final int limit = table.limit();
+        if (limit < HEADER_SIZE || table.getInt(0) != MAGIC) {
+            throw new IOException("Not an association table: " + filepath);
+        }
+        final int version = table.getShort(4) & 0xFFFF;
+        if (version != VERSION) {
+            throw new IOException("Unsupported association table version " + version + ": "
+                    + filepath);
+        }
+        final long leads = table.getInt(8) & 0xFFFFFFFFL;
+        final long leadsOffset = table.getInt(12) & 0xFFFFFFFFL;
+        final long phrasesOffset = table.getInt(16) & 0xFFFFFFFFL;
+        if (leadsOffset + leads * LEAD_SIZE > phrasesOffset || phrasesOffset > limit) {
+            throw new IOException("Truncated association table: " + filepath);
+        }
+        if (TableChecksum.crc32(table, HEADER_SIZE, limit) != table.getInt(28)) {
+            throw new IOException("Corrupt association table: " + filepath);
+        }
+        // Every follow-up list has to start inside the phrases, with room for its lengths
+        final int phrasesSize = limit - (int) phrasesOffset;
+        for (int i = 0; i < leads; i++) {
+            final int entry = (int) leadsOffset + i * LEAD_SIZE;
+            final int first = table.getInt(entry + 4);
+            final int count = table.getInt(entry + 8);
+            if (first < 0 || count < 0 || first > phrasesSize
+                    || count > (phrasesSize - first) / 2) {
+                throw new IOException("Corrupt association table entry " + i + ": " + filepath);
+            }
+        }
+        mTable = table;
+        mLeads = (int) leads;
+        mLeadsOffset = (int) leadsOffset;
+        mPhrasesOffset = (int) phrasesOffset;
+        mMaxLength = table.getShort(20) & 0xFFFF;
+    }
+
+    /**
+     * Reports the follow-ups of the last character of text, most likely first,
+     * until the callback declines one. Each follow-up is scored by its rank,
+     * so the callback keeps them in table order.
+     * @return whether the character has any follow-ups
+     */
+    public boolean getAssociations(CharSequence text, Dictionary.WordCallback callback) {
+        final int length = text == null ? 0 : text.length();
+        if (length == 0) return false;
+        final int lead = Character.codePointBefore(text, length);
+
+        // Binary search the lead characters.
+        int lo = 0;
+        int hi = mLeads;
+        int pos = -1;
+        while (lo < hi) {
+            final int m = (lo + hi) >>> 1;
+            final int entry = mLeadsOffset + m * LEAD_SIZE;
+            final int c = mTable.getInt(entry);
+            if (c < lead) {
+                lo = m + 1;
+            } else if (c > lead) {
+                hi = m;
+            } else {
+                pos = entry;
+                break;
+            }
+        }
+        if (pos < 0) return false;
+
+        final int limit = mTable.limit();
+        final int count = mTable.getInt(pos + 8);
+        int p = mPhrasesOffset + mTable.getInt(pos + 4);
+        char[] buffer = mBuffer.get();
+        if (buffer == null) {
+            buffer = new char[mMaxLength];
+            mBuffer.set(buffer);
+        }
+        for (int i = 0; i < count && p + 2 <= limit; i++) {
+            final int len = mTable.getShort(p) & 0xFFFF;
+            p += 2;
+            if (len > buffer.length || p + len * 2 > limit) break;
+            for (int j = 0; j < len; j++, p += 2) {
+                buffer[j] = mTable.getChar(p);
+            }
+            if (!callback.addWord(buffer, 0, len, count - i)) break;
+        }
+        return count > 0;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2010 Kan-Ru Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package info.kanru.inputmethod.awesome;
+
+import java.util.Arrays;
+
+/**
+ * A bounded least-recently-used cache of decoded CIN candidates, keyed by the
+ * lowercased keys packed into a long (see CinDictionary.packKey). The cache
+ * is limited by the total number of characters it holds rather than by the
+ * number of keys, so a few short prefixes with many candidates cannot crowd
+ * out everything else.
+ *
+ * Entries live in fixed slots linked into hash chains and into a recency
+ * list by slot number, so neither a hit nor a miss allocates.
+ *
+ * A cache is not synchronized. CinDictionary keeps one in the per-thread
+ * state of its queries, so lookups never wait for each other.
+ */
+class CinCandidateCache {
+
+    /**
+     * The decoded candidates of one key.
+     */
+    static class Entry {
+        /** The first candidates of the key, in table order. */
+        final char[][] words;
+        /** Number of candidates matching the key, including undecoded ones. */
+        final int count;
+        final int weight;
+
+        Entry(char[][] words, int count) {
+            this.words = words;
+            this.count = count;
+            int weight = words.length;
+            for (char[] word : words) {
+                weight += word.length;
+            }
+            this.weight = weight;
+        }
+    }
+
+    private static final int NONE = -1;
+
+    private final int mMaxWeight;
+    private final long[] mKeys;
+    private final Entry[] mEntries;
+    // Next slot in the same hash chain, or in the free list
+    private final int[] mChain;
+    // Neighbours in the recency list, most recently used first
+    private final int[] mNewer;
+    private final int[] mOlder;
+    private final int[] mBuckets;
+    private int mNewest = NONE;
+    private int mOldest = NONE;
+    private int mFree;
+    private int mWeight;
+    private int mHits;
+    private int mMisses;
+
+    /**
+     * @param maxWeight the number of characters, plus one per candidate, that the
+     * cache may hold before it evicts its least recently used keys
+     * @param maxEntries the number of keys the cache may hold
+     */
+    CinCandidateCache(int maxWeight, int maxEntries) {
+        mMaxWeight = maxWeight;
+        mKeys = new long[maxEntries];
+        mEntries = new Entry[maxEntries];
+        mChain = new int[maxEntries];
+        mNewer = new int[maxEntries];
+        mOlder = new int[maxEntries];
+        int buckets = 1;
+        while (buckets < maxEntries) buckets <<= 1;
+        mBuckets = new int[buckets];
+        clear();
+    }
+
+    private int bucket(long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (mBuckets.length - 1);
+    }
+
+    Entry get(long key) {
+        for (int slot = mBuckets[bucket(key)]; slot != NONE; slot = mChain[slot]) {
+            if (mKeys[slot] == key) {
+                mHits++;
+                unlink(slot);
+                linkNewest(slot);
+                return mEntries[slot];
+            }
+        }
+        mMisses++;
+        return null;
+    }
+
+    void put(long key, Entry entry) {
+        if (entry.weight > mMaxWeight) return;
+        final int b = bucket(key);
+        for (int slot = mBuckets[b]; slot != NONE; slot = mChain[slot]) {
+            if (mKeys[slot] == key) {
+                mWeight += entry.weight - mEntries[slot].weight;
+                mEntries[slot] = entry;
+                unlink(slot);
+                linkNewest(slot);
+                evict();
+                return;
+            }
+        }
+        if (mFree == NONE) {
+            remove(mOldest);
+        }
+        final int slot = mFree;
+        mFree = mChain[slot];
+        mKeys[slot] = key;
+        mEntries[slot] = entry;
+        mChain[slot] = mBuckets[b];
+        mBuckets[b] = slot;
+        linkNewest(slot);
+        mWeight += entry.weight;
+        evict();
+    }
+
+    void clear() {
+        Arrays.fill(mBuckets, NONE);
+        Arrays.fill(mEntries, null);
+        for (int i = 0; i < mChain.length; i++) {
+            mChain[i] = i + 1 < mChain.length ? i + 1 : NONE;
+        }
+        mFree = mChain.length > 0 ? 0 : NONE;
+        mNewest = NONE;
+        mOldest = NONE;
+        mWeight = 0;
+    }
+
+    int getHitCount() {
+        return mHits;
+    }
+
+    int getMissCount() {
+        return mMisses;
+    }
+
+    int getWeight() {
+        return mWeight;
+    }
+
+    private void evict() {
+        while (mWeight > mMaxWeight && mOldest != NONE) {
+            remove(mOldest);
+        }
+    }
+
+    private void remove(int slot) {
+        final int b = bucket(mKeys[slot]);
+        if (mBuckets[b] == slot) {
+            mBuckets[b] = mChain[slot];
+        } else {
+            int prev = mBuckets[b];
+            while (mChain[prev] != slot) prev = mChain[prev];
+            mChain[prev] = mChain[slot];
+        }
+        unlink(slot);
+        mWeight -= mEntries[slot].weight;
+        mEntries[slot] = null;
+        mChain[slot] = mFree;
+        mFree = slot;
+    }
+
+    private void unlink(int slot) {
+        final int newer = mNewer[slot];
+        final int older = mOlder[slot];
+        if (newer != NONE) mOlder[newer] = older; else mNewest = older;
+        if (older != NONE) mNewer[older] = newer; else mOldest = newer;
+    }
+
+    private void linkNewest(int slot) {
+        mNewer[slot] = NONE;
+        mOlder[slot] = mNewest;
+        if (mNewest != NONE) mNewer[mNewest] = slot;
+        mNewest = slot;
+        if (mOldest == NONE) mOldest = slot;
+    }
+}
@@ -1,136 +1,986 @@
 package info.kanru.inputmethod.awesome;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
-import android.util.Log;
-
+/**
+ * CIN table dictionary. The .tbl file is mapped read-only once when the
+ * dictionary is opened and every lookup is served from the mapping, so the
+ * query path does not issue any read or seek system calls.
+ *
+ * Two table formats are understood. The original format is a 4-byte item
+ * count followed by fixed 9-byte items (a 5-byte key padded with spaces and
+ * the offset of its candidate) and the newline terminated UTF-8 candidates. Version 2 tables
+ * are produced by the makecin tool and start with the header described in
+ * MakeCinTable; they carry variable-length keys of up to MAX_KEY_SIZE bytes,
+ * per-item frequencies, an index of the first key byte and a CRC32 of the
+ * table body.
+ *
+ * Lookups do not take any lock. The loaded table is immutable and only read
+ * with absolute gets, which never move the position of the shared mapping,
+ * and the state of an incremental query, along with a cache of decoded
+ * candidates, lives in a per-thread Query. A
+ * prefetch thread and the UI thread can therefore query one dictionary at
+ * the same time.
+ *
+ * A query may contain the wildcards '?', which matches any one key, and '*',
+ * which matches any number of keys. The keys before the first wildcard narrow
+ * the item range as usual, and posting lists of CinKeyIndex pick the items
+ * worth testing within it. At most MAX_WILDCARD_SCAN items are tested and
+ * MAX_WILDCARD_MATCHES candidates reported, which bounds the latency of a
+ * query that matches most of the table.
+ */
 public class CinDictionary extends Dictionary {
 
-    private static final String TAG = "CinDictionary";
-
     private static final int mHeaderSize = 4;
-    private static final int mKeySize = 5;
     private static final int mPosSize = 4;
-    private static final int mItemSize = mKeySize + mPosSize;
 
-    // Header
-    private long mNItems;
+    /** Key size of the original fixed-width table format. */
+    private static final int V1_KEY_SIZE = 5;
+
+    private static final int V2_MAGIC = 0x4143494E; // "ACIN"
+    private static final int V2_VERSION = 2;
+    private static final int V2_HEADER_SIZE = 32;
+    private static final int V2_INDEX_SIZE = 257;
+    private static final int V2_FREQ_SIZE = 2;
+    private static final int V2_FLAG_FREQUENCIES = 0x1;
+
+    /** Longest key that fits in the packed key index. */
+    static final int MAX_KEY_SIZE = 8;
+
+    /** Number of leading candidates of a key kept in the candidate cache. */
+    private static final int CACHED_CANDIDATES = 36;
+    /** Size of the candidate cache of each thread, in characters. */
+    private static final int CACHE_WEIGHT = 32 * 1024;
+    /** Most keys in the candidate cache. */
+    private static final int CACHE_ENTRIES = 1024;
+
+    private static final char WILDCARD_ONE = '?';
+    private static final char WILDCARD_ANY = '*';
+    /** Most items tested against one wildcard query. */
+    private static final int MAX_WILDCARD_SCAN = 16 * 1024;
+    /** Most candidates reported for one wildcard query. */
+    private static final int MAX_WILDCARD_MATCHES = 256;
+    /** Longest wildcard pattern that can match a key, with no '*' repeated. */
+    private static final int MAX_PATTERN_SIZE = 2 * MAX_KEY_SIZE + 1;
+
+    /**
+     * An opened table. Nothing in it changes after it is loaded, except for
+     * the posting lists that keyIndex builds on demand.
+     */
+    private static class Table {
+        final ByteBuffer dict;
+        final int nItems;
+        final int keySize;
+        // Offset of the candidate lines
+        final int dictOffset;
+        /**
+         * The key column of the item table. Each key is packed big-endian
+         * into the low keySize bytes of a long and padded with zeroes, so
+         * comparing two packed keys orders them exactly like comparing the
+         * raw bytes.
+         */
+        final long[] keys;
+        /**
+         * Offset of the candidate line of each item, relative to dictOffset.
+         */
+        final int[] offsets;
+        /**
+         * Frequency of each item, 0-65535, or null if the table gives none.
+         */
+        final char[] frequencies;
+        /**
+         * firstByteIndex[b] is the first item whose key starts with a byte not
+         * less than b, or null if the table does not have this index.
+         */
+        final int[] firstByteIndex;
+        final CinKeyIndex keyIndex;
+
+        Table(ByteBuffer dict, int nItems, int keySize, int dictOffset,
+                long[] keys, int[] offsets, char[] frequencies, int[] firstByteIndex) {
+            this.dict = dict;
+            this.nItems = nItems;
+            this.keySize = keySize;
+            this.dictOffset = dictOffset;
+            this.keys = keys;
+            this.offsets = offsets;
+            this.frequencies = frequencies;
+            this.firstByteIndex = firstByteIndex;
+            this.keyIndex = new CinKeyIndex(keys, keySize);
+        }
+    }
+
+    /**
+     * The state of the incremental search of one thread.
+     */
+    private static class Query {
+        /**
+         * Item ranges matched by the prefixes of the last query. rangeLo[d] and
+         * rangeHi[d] bound the items whose keys start with the first d bytes
+         * of rangeKey, and the ranges are valid up to rangeDepth. Typing one
+         * more key only narrows the deepest range, and backspace pops back to
+         * a range that is already known.
+         */
+        final byte[] rangeKey = new byte[MAX_KEY_SIZE];
+        final int[] rangeLo = new int[MAX_KEY_SIZE + 1];
+        final int[] rangeHi = new int[MAX_KEY_SIZE + 1];
+        int rangeDepth;
+
+        // The last decoded candidate
+        char[] word = new char[16];
 
-    // Dict info
-    private long mDictOffset;
+        // Items of the learned candidates found in the range, in rank order
+        // and in table order, for the picks of learnedKey in learnedTable
+        final int[] learned = new int[CinFrequencyStore.MAX_WORDS_PER_KEY];
+        final int[] skipped = new int[CinFrequencyStore.MAX_WORDS_PER_KEY];
+        int nLearned;
+        Table learnedTable;
+        long learnedKey;
+        CinFrequencyStore.Learned learnedPicks;
 
-    private RandomAccessFile fd;
+        // The wildcard query being looked up
+        final byte[] pattern = new byte[MAX_PATTERN_SIZE];
+        // Items matching the last wildcard query, kept for its later pages
+        final byte[] wildcardPattern = new byte[MAX_PATTERN_SIZE];
+        int wildcardLength = -1;
+        final int[] wildcardMatches = new int[MAX_WILDCARD_MATCHES];
+        int wildcardCount;
+
+        // The candidates of the keys this thread looked up last
+        final CinCandidateCache cache = new CinCandidateCache(CACHE_WEIGHT, CACHE_ENTRIES);
+
+        Query(int nItems) {
+            rangeLo[0] = 0;
+            rangeHi[0] = nItems;
+            rangeDepth = 0;
+        }
+    }
+
+    private volatile Table mTable;
+
+    private final ThreadLocal<Query> mQuery = new ThreadLocal<Query>();
+
+    private volatile CinFrequencyStore mFrequencies;
 
     public CinDictionary(String filepath) throws IOException {
         loadDictionary(filepath);
     }
 
     private void loadDictionary(String filepath) throws IOException {
-        fd = new RandomAccessFile(filepath, "r");
-    }
-
-    private long readInt() throws IOException {
-        int b1, b2, b3, b4;
-        b1 = fd.read();
-        b2 = fd.read();
-        b3 = fd.read();
-        b4 = fd.read();
-        return (((long)b1 << 24) +
-                ((long)b2 << 16) +
-                ((long)b3 << 8) +
-                (long)b4);
-    }
-
-    private long seekStart(String q) throws IOException {
-        long l, r, m = 0;
-        byte[] buf = new byte[mKeySize];
-
-        fd.seek(0);
-        mNItems = readInt();
-        mDictOffset = mHeaderSize + mItemSize * mNItems;
-
-        l = -1;
-        r = mNItems;
-        while (l+1!=r) {
-            m = (r-l)/2+l;
-            fd.seek(m*mItemSize+mHeaderSize);
-            fd.readFully(buf);
-            String key = new String(buf);
-            if (key.compareTo(q) < 0)
-                l = m;
+        MappedByteBuffer dict;
+        RandomAccessFile fd = new RandomAccessFile(filepath, "r");
+        try {
+            FileChannel channel = fd.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("CIN table too large: " + filepath);
+            }
+            dict = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            // The mapping stays valid after the file is closed.
+            fd.close();
+        }
+        if (dict.limit() >= V2_HEADER_SIZE && dict.getInt(0) == V2_MAGIC) {
+            mTable = loadIndexV2(dict, filepath);
+        } else {
+            mTable = loadIndex(dict, filepath);
+        }
+    }
+
+    private static Table loadIndex(ByteBuffer dict, String filepath) throws IOException {
+        final int itemSize = V1_KEY_SIZE + mPosSize;
+        if (dict.limit() < mHeaderSize) {
+            throw new IOException("Truncated CIN table: " + filepath);
+        }
+        final long n = readInt(dict, 0);
+        if (mHeaderSize + itemSize * n > dict.limit()) {
+            throw new IOException("Truncated CIN table: " + filepath);
+        }
+        final int nItems = (int) n;
+
+        final long[] keys = new long[nItems];
+        final int[] offsets = new int[nItems];
+        int pos = mHeaderSize;
+        for (int i = 0; i < nItems; i++) {
+            long key = 0;
+            for (int j = 0; j < V1_KEY_SIZE; j++) {
+                key = (key << 8) | (dict.get(pos++) & 0xFF);
+            }
+            // Pad with zeroes instead, like version 2 keys. Key bytes are
+            // printable, so this keeps the keys in order.
+            int pad = 0;
+            while (pad < V1_KEY_SIZE && ((key >>> (pad * 8)) & 0xFF) == ' ') {
+                pad++;
+            }
+            keys[i] = pad == V1_KEY_SIZE ? 0 : key >>> (pad * 8) << (pad * 8);
+            offsets[i] = dict.getInt(pos);
+            pos += mPosSize;
+        }
+        final int valuesOffset = mHeaderSize + itemSize * nItems;
+        checkOffsets(offsets, dict.limit() - valuesOffset, filepath);
+        return new Table(dict, nItems, V1_KEY_SIZE, valuesOffset,
+                keys, offsets, null, null);
+    }
+
+    private static Table loadIndexV2(ByteBuffer dict, String filepath) throws IOException {
+        final int limit = dict.limit();
+        final int version = dict.getShort(4) & 0xFFFF;
+        if (version != V2_VERSION) {
+            throw new IOException("Unsupported CIN table version " + version + ": " + filepath);
+        }
+        final int flags = dict.getShort(6) & 0xFFFF;
+        final long n = readInt(dict, 8);
+        final int keySize = dict.getShort(12) & 0xFFFF;
+        final long indexOffset = readInt(dict, 16);
+        final long itemsOffset = readInt(dict, 20);
+        final long valuesOffset = readInt(dict, 24);
+        if (keySize < 1 || keySize > MAX_KEY_SIZE) {
+            throw new IOException("Unsupported CIN key size " + keySize + ": " + filepath);
+        }
+        if (indexOffset + V2_INDEX_SIZE * mPosSize > limit || itemsOffset > limit
+                || valuesOffset > limit || n > limit) {
+            throw new IOException("Truncated CIN table: " + filepath);
+        }
+        if (TableChecksum.crc32(dict, V2_HEADER_SIZE, limit) != dict.getInt(28)) {
+            throw new IOException("CIN table checksum mismatch: " + filepath);
+        }
+        final int nItems = (int) n;
+
+        final int[] firstByteIndex = new int[V2_INDEX_SIZE];
+        for (int i = 0; i < V2_INDEX_SIZE; i++) {
+            firstByteIndex[i] = dict.getInt((int) indexOffset + i * mPosSize);
+            // The index narrows the first key byte to a range of items
+            if (firstByteIndex[i] < (i == 0 ? 0 : firstByteIndex[i - 1])
+                    || firstByteIndex[i] > nItems) {
+                throw new IOException("Corrupt CIN index entry " + i + ": " + filepath);
+            }
+        }
+        final long[] keys = new long[nItems];
+        final int[] offsets = new int[nItems];
+        char[] frequencies = (flags & V2_FLAG_FREQUENCIES) != 0 ? new char[nItems] : null;
+        boolean weighted = false;
+        int pos = (int) itemsOffset;
+        for (int i = 0; i < nItems; i++) {
+            final int length = dict.get(pos++) & 0xFF;
+            if (length > keySize || pos + length + V2_FREQ_SIZE + mPosSize > limit) {
+                throw new IOException("Corrupt CIN item " + i + ": " + filepath);
+            }
+            long key = 0;
+            for (int j = 0; j < keySize; j++) {
+                key <<= 8;
+                if (j < length) key |= dict.get(pos++) & 0xFF;
+            }
+            keys[i] = key;
+            if (frequencies != null) {
+                frequencies[i] = dict.getChar(pos);
+                weighted |= frequencies[i] != 0;
+            }
+            pos += V2_FREQ_SIZE;
+            offsets[i] = dict.getInt(pos);
+            pos += mPosSize;
+        }
+        checkOffsets(offsets, limit - (int) valuesOffset, filepath);
+        // A table compiled from a .cin without frequencies only has its order.
+        if (!weighted) frequencies = null;
+        return new Table(dict, nItems, keySize, (int) valuesOffset,
+                keys, offsets, frequencies, firstByteIndex);
+    }
+
+    // Every candidate line has to start inside the values section, or decoding
+    // it would read outside the mapping.
+    private static void checkOffsets(int[] offsets, int valuesSize, String filepath)
+            throws IOException {
+        for (int i = 0; i < offsets.length; i++) {
+            if (offsets[i] < 0 || offsets[i] >= valuesSize) {
+                throw new IOException("Corrupt CIN item " + i + ": " + filepath);
+            }
+        }
+    }
+
+    private static long readInt(ByteBuffer dict, int pos) {
+        return dict.getInt(pos) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Returns the index of the first key in [lo, hi) that is not less than key.
+     */
+    private static int lowerBound(long[] keys, long key, int lo, int hi) {
+        while (lo < hi) {
+            final int m = (lo + hi) >>> 1;
+            if (keys[m] < key)
+                lo = m + 1;
+            else
+                hi = m;
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the index of the first key in [lo, hi) that is greater than key.
+     */
+    private static int upperBound(long[] keys, long key, int lo, int hi) {
+        while (lo < hi) {
+            final int m = (lo + hi) >>> 1;
+            if (keys[m] <= key)
+                lo = m + 1;
             else
-                r = m;
+                hi = m;
         }
-        return r * mItemSize + mHeaderSize;
+        return lo;
     }
 
-    private String readLine() throws IOException {
-        ByteArrayOutputStream bo = new ByteArrayOutputStream();
-        int b;
-        while (true) {
-            b = fd.read();
-            if (b == '\n') {
-                String out = bo.toString("UTF-8");
-                bo.close();
-                return out;
+    /**
+     * Decodes the newline terminated UTF-8 line starting at pos into q.word,
+     * growing it if needed. Malformed sequences decode to U+FFFD.
+     * @return the number of chars decoded
+     */
+    private static int decodeLine(ByteBuffer dict, Query q, int pos) {
+        final int limit = dict.limit();
+        char[] word = q.word;
+        int len = 0;
+        while (pos < limit) {
+            final int b = dict.get(pos++);
+            if (b == '\n') break;
+            // One code point takes at most two chars.
+            if (len + 2 > word.length) {
+                final char[] tmp = new char[word.length * 2];
+                System.arraycopy(word, 0, tmp, 0, len);
+                q.word = word = tmp;
+            }
+            if (b >= 0) {
+                word[len++] = (char) b;
+                continue;
+            }
+            int c;
+            int more;
+            int min;
+            if ((b & 0xE0) == 0xC0) {
+                c = b & 0x1F;
+                more = 1;
+                min = 0x80;
+            } else if ((b & 0xF0) == 0xE0) {
+                c = b & 0x0F;
+                more = 2;
+                min = 0x800;
+            } else if ((b & 0xF8) == 0xF0) {
+                c = b & 0x07;
+                more = 3;
+                min = 0x10000;
+            } else {
+                word[len++] = '\uFFFD';
+                continue;
+            }
+            for (; more > 0 && pos < limit; more--) {
+                final int cont = dict.get(pos);
+                if ((cont & 0xC0) != 0x80) break;
+                c = (c << 6) | (cont & 0x3F);
+                pos++;
+            }
+            if (more > 0 || c < min || c > Character.MAX_CODE_POINT
+                    || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)) {
+                word[len++] = '\uFFFD';
+            } else if (c >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                word[len++] = Character.highSurrogate(c);
+                word[len++] = Character.lowSurrogate(c);
             } else {
-                bo.write(b);
+                word[len++] = (char) c;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Packs the lowercased keys of a query big-endian into a long, first key
+     * in the highest byte, so that equal queries give equal values.
+     * @return the packed keys, or -1 if the query is longer than MAX_KEY_SIZE
+     * or has a key that is not ASCII
+     */
+    static long packKey(CharSequence query) {
+        final int length = query.length();
+        if (length > MAX_KEY_SIZE) return -1;
+        long packed = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = Character.toLowerCase(query.charAt(i));
+            if (c > 0x7F) return -1;
+            packed |= (long) c << ((MAX_KEY_SIZE - 1 - i) * 8);
+        }
+        return packed;
+    }
+
+    private Query getQuery(Table table) {
+        Query q = mQuery.get();
+        if (q == null) {
+            q = new Query(table.nItems);
+            mQuery.set(q);
+        }
+        return q;
+    }
+
+    /**
+     * Narrows the cached item ranges to the lowercased first length keys of
+     * the query and returns the
+     * depth of the range matching the whole query, or -1 if the query can
+     * never match a key. Only the keys that differ from the previous query
+     * are searched, each within the range of its parent prefix.
+     */
+    private static int narrowRange(Table table, Query q, CharSequence query, int length) {
+        if (length > table.keySize) return -1;
+
+        final byte[] rangeKey = q.rangeKey;
+        final int[] rangeLo = q.rangeLo;
+        final int[] rangeHi = q.rangeHi;
+        int depth = 0;
+        long prefix = 0;
+        while (depth < length) {
+            final char c = Character.toLowerCase(query.charAt(depth));
+            if (c > 0x7F) return -1;
+            if (depth >= q.rangeDepth || rangeKey[depth] != c) break;
+            prefix = (prefix << 8) | c;
+            depth++;
+        }
+        for (; depth < length; depth++) {
+            final char c = Character.toLowerCase(query.charAt(depth));
+            if (c > 0x7F) {
+                q.rangeDepth = depth;
+                return -1;
+            }
+            rangeKey[depth] = (byte) c;
+            prefix = (prefix << 8) | c;
+
+            if (depth == 0 && table.firstByteIndex != null) {
+                rangeLo[1] = table.firstByteIndex[c];
+                rangeHi[1] = table.firstByteIndex[c + 1];
+                continue;
             }
+            // Every key starting with the prefix lies between the prefix padded
+            // with 0x00 and the prefix padded with 0xff.
+            final int shift = (table.keySize - depth - 1) * 8;
+            final long low = prefix << shift;
+            final long high = low | ((1L << shift) - 1);
+            final int lo = lowerBound(table.keys, low, rangeLo[depth], rangeHi[depth]);
+            rangeLo[depth + 1] = lo;
+            rangeHi[depth + 1] = upperBound(table.keys, high, lo, rangeHi[depth]);
         }
+        q.rangeDepth = length;
+        return length;
     }
 
+    /**
+     * Reports every candidate whose key starts with the typed keys, in table
+     * order. Candidates are decoded one at a time and the enumeration stops
+     * as soon as the callback declines a word.
+     */
     @Override public void getWords(final WordComposer codes, final WordCallback callback) {
-        try {
-            CharSequence query = codes.getTypedWord();
-            String q = query.toString().toLowerCase();
-            long cur = seekStart(q);
-
-            byte[] buf = new byte[mKeySize];
-            int nph = 0;
-            long pos = 0;
-            fd.seek(cur);
-            //System.out.println("seek: " + cur);
-            while (true) {
-                fd.readFully(buf);
-                if (pos == 0) {
-                    pos = readInt();
-                } else {
-                    fd.skipBytes(4);
+        getWords(codes, callback, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reports the candidates in [start, start + count) of the matches for the
+     * typed keys. Only the candidates of the requested page are decoded, and
+     * each one is scored by its position among all the matches so that pages
+     * rank consistently with each other. The first candidates of recently
+     * typed keys are served from the candidate cache.
+     *
+     * Candidates the user picked for exactly these keys come first, most
+     * picked first, and the rest follow in table order.
+     *
+     * Once the table is open and the cache holds the typed keys, a query
+     * allocates nothing: keys are compared as packed bytes and candidates
+     * past the cached ones are decoded into a per-thread buffer.
+     */
+    @Override public boolean getWords(final WordComposer codes,
+            final WordCallback callback, int start, int count) {
+        final Table table = mTable;
+        if (table == null) return false;
+        final CharSequence query = codes.getTypedWord();
+        if (query == null) return false;
+        if (hasWildcard(query)) {
+            return getWildcardWords(table, query, callback, start, count);
+        }
+        final int length = query.length();
+        if (length > table.keySize) return false;
+        final long key = packKey(query);
+        if (key == -1) return false;
+        final Query q = getQuery(table);
+        CinCandidateCache.Entry cached = q.cache.get(key);
+        int lo = -1;
+        if (cached == null) {
+            final int depth = narrowRange(table, q, query, length);
+            if (depth < 0) return false;
+            lo = q.rangeLo[depth];
+            cached = decode(table, q, key, lo, q.rangeHi[depth] - lo);
+        }
+
+        final char[][] words = cached.words;
+        final int nph = cached.count;
+        int nLearned = 0;
+        final int[] learned = q.learned;
+        final int[] skipped = q.skipped;
+        final CinFrequencyStore frequencies = mFrequencies;
+        final CinFrequencyStore.Learned picks = frequencies == null ? null : frequencies.get(key);
+        if (picks != null && nph > 0) {
+            // Picks are immutable, so the items found for the same picks of
+            // the same keys are still valid.
+            if (q.learnedPicks != picks || q.learnedTable != table || q.learnedKey != key) {
+                if (lo < 0) lo = q.rangeLo[narrowRange(table, q, query, length)];
+                final long tableKey = key >>> ((MAX_KEY_SIZE - table.keySize) * 8);
+                final int exact = upperBound(table.keys, tableKey, lo, lo + nph) - lo;
+                q.nLearned = findLearned(table, lo, exact, nph, picks, learned);
+                System.arraycopy(learned, 0, skipped, 0, q.nLearned);
+                Arrays.sort(skipped, 0, q.nLearned);
+                q.learnedPicks = picks;
+                q.learnedTable = table;
+                q.learnedKey = key;
+            }
+            nLearned = q.nLearned;
+        }
+
+        if (start < 0) start = 0;
+        final int end = count > nph - start ? nph : start + count;
+        for (int i = start; i < end; i++) {
+            // Map the rank to an item of the range.
+            int item;
+            if (i < nLearned) {
+                item = learned[i];
+            } else {
+                item = i - nLearned;
+                for (int k = 0; k < nLearned && skipped[k] <= item; k++) {
+                    item++;
+                }
+            }
+            final boolean more;
+            if (item < words.length) {
+                final char[] word = words[item];
+                more = callback.addWord(word, 0, word.length, nph-i);
+            } else {
+                // Past the cached candidates, decode straight from the table.
+                if (lo < 0) {
+                    lo = q.rangeLo[narrowRange(table, q, query, length)];
                 }
-                String key = new String(buf);
-                //System.out.println(key);
-                if (key.startsWith(q)) {
-                    nph += 1;
-                    if (nph > 100) {
-                        break;
-                    }
-                } else {
+                final int len = decodeLine(table.dict, q, table.dictOffset + table.offsets[lo + item]);
+                more = callback.addWord(q.word, 0, len, nph-i);
+            }
+            if (!more) {
+                return i + 1 < nph;
+            }
+        }
+        return end < nph;
+    }
+
+    /**
+     * Reports the candidates in [start, start + count) of the matches for a
+     * query with wildcards, in table order.
+     */
+    private boolean getWildcardWords(Table table, CharSequence query, WordCallback callback,
+            int start, int count) {
+        final Query q = getQuery(table);
+        final int nph = findWildcardMatches(table, q, query);
+        final int[] matches = q.wildcardMatches;
+        if (start < 0) start = 0;
+        final int end = count > nph - start ? nph : start + count;
+        for (int i = start; i < end; i++) {
+            final int len = decodeLine(table.dict, q, table.dictOffset + table.offsets[matches[i]]);
+            if (!callback.addWord(q.word, 0, len, nph-i)) {
+                return i + 1 < nph;
+            }
+        }
+        return end < nph;
+    }
+
+    /**
+     * Finds the items matching a query with wildcards into q.wildcardMatches,
+     * unless they are there from the last query.
+     * @return the number of matches
+     */
+    private static int findWildcardMatches(Table table, Query q, CharSequence query) {
+        final int length = encodePattern(query, q.pattern);
+        if (length != q.wildcardLength
+                || !equals(q.pattern, q.wildcardPattern, length)) {
+            q.wildcardCount = length < 0 ? 0 : matchWildcard(table, q, query, length);
+            q.wildcardLength = length;
+            System.arraycopy(q.pattern, 0, q.wildcardPattern, 0, Math.max(0, length));
+        }
+        return q.wildcardCount;
+    }
+
+    private static boolean hasWildcard(CharSequence query) {
+        final int length = query.length();
+        for (int i = 0; i < length; i++) {
+            final char c = query.charAt(i);
+            if (c == WILDCARD_ONE || c == WILDCARD_ANY) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Encodes the lowercased wildcard query into pattern, with runs of '*'
+     * folded into one.
+     * @return the length of the pattern, or -1 if the query has a key that
+     * is not ASCII or can never match a key
+     */
+    private static int encodePattern(CharSequence query, byte[] pattern) {
+        final int length = query.length();
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = Character.toLowerCase(query.charAt(i));
+            if (c > 0x7F) return -1;
+            if (c == WILDCARD_ANY && n > 0 && pattern[n - 1] == WILDCARD_ANY) continue;
+            if (n == pattern.length) return -1;
+            pattern[n++] = (byte) c;
+        }
+        return n;
+    }
+
+    private static boolean equals(byte[] a, byte[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Finds the items matching the wildcard pattern in q.pattern and stores
+     * them in q.wildcardMatches.
+     * @return the number of matches found
+     */
+    private static int matchWildcard(Table table, Query q, CharSequence query, int length) {
+        final byte[] bytes = q.pattern;
+        int prefix = -1;
+        int fixed = 0;
+        for (int i = 0; i < length; i++) {
+            final byte c = bytes[i];
+            if (c == WILDCARD_ONE || c == WILDCARD_ANY) {
+                if (prefix < 0) prefix = i;
+            }
+            if (c != WILDCARD_ANY) fixed++;
+        }
+        // Every key position but those matched by '*' is taken by one byte.
+        if (fixed > table.keySize) return 0;
+
+        // The keys before the first wildcard narrow the range like a prefix.
+        final int depth = narrowRange(table, q, query, prefix);
+        if (depth < 0) return 0;
+        final int lo = q.rangeLo[depth];
+        final int hi = q.rangeHi[depth];
+
+        // Walk the posting list of the rarest key after the prefix, if any.
+        int[] items = null;
+        int from = lo;
+        int to = hi;
+        int position = prefix;
+        for (int i = prefix; i < length; i++) {
+            final int c = bytes[i] & 0xFF;
+            if (c == WILDCARD_ANY) {
+                position = CinKeyIndex.ANY_POSITION;
+                continue;
+            }
+            if (c != WILDCARD_ONE) {
+                final int[] list = table.keyIndex.getItems(position, c);
+                final int listFrom = lowerBound(list, lo, 0, list.length);
+                final int listTo = lowerBound(list, hi, listFrom, list.length);
+                if (listTo - listFrom < to - from) {
+                    items = list;
+                    from = listFrom;
+                    to = listTo;
+                }
+            }
+            if (position != CinKeyIndex.ANY_POSITION) position++;
+        }
+
+        final int[] matches = q.wildcardMatches;
+        int n = 0;
+        final int last = Math.min(to, from + MAX_WILDCARD_SCAN);
+        for (int i = from; i < last && n < matches.length; i++) {
+            final int item = items == null ? i : items[i];
+            if (globMatches(table.keys[item], table.keySize, bytes, length, prefix)) {
+                matches[n++] = item;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Whether the packed key, from byte start on, begins with something that
+     * matches the first length bytes of pattern from start on. '?' matches
+     * one byte of the key and '*' any number of them.
+     */
+    private static boolean globMatches(long key, int keySize, byte[] pattern, int length,
+            int start) {
+        // Only the bytes of the key itself can match, not its padding.
+        final int keyLength = CinKeyIndex.keyLength(key, keySize);
+        int k = start;
+        int p = start;
+        int starP = -1;
+        int starK = 0;
+        while (p < length) {
+            final int c = pattern[p];
+            if (c == WILDCARD_ANY) {
+                starP = ++p;
+                starK = k;
+            } else if (k < keyLength && (c == WILDCARD_ONE
+                    || c == ((key >>> ((keySize - 1 - k) * 8)) & 0xFF))) {
+                p++;
+                k++;
+            } else if (starP >= 0 && starK < keyLength) {
+                // Let the last '*' swallow one more byte and retry.
+                p = starP;
+                k = ++starK;
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the first item in [lo, hi) of the sorted list that
+     * is not less than item.
+     */
+    private static int lowerBound(int[] list, int item, int lo, int hi) {
+        while (lo < hi) {
+            final int m = (lo + hi) >>> 1;
+            if (list[m] < item)
+                lo = m + 1;
+            else
+                hi = m;
+        }
+        return lo;
+    }
+
+    /**
+     * Finds the learned candidates among the nph items starting at lo and
+     * stores their items, relative to lo, into learned in the order of the
+     * learned candidates. The first exact items hold the typed keys
+     * themselves, where the user almost always picked from, so the longer
+     * keys after them are only searched for the picks not found there.
+     * @return the number of learned candidates found in the range
+     */
+    private static int findLearned(Table table, int lo, int exact, int nph,
+            CinFrequencyStore.Learned picks, int[] learned) {
+        final int n = picks.size();
+        // Bit k is set once learned candidate k has been found.
+        int foundMask = findLearned(table, lo, 0, exact, picks, learned, 0);
+        if (foundMask != (1 << n) - 1) {
+            foundMask = findLearned(table, lo, exact, nph, picks, learned, foundMask);
+        }
+        // Drop the candidates that are not in the range, keeping the order.
+        int j = 0;
+        for (int k = 0; k < n; k++) {
+            if ((foundMask & (1 << k)) != 0) learned[j++] = learned[k];
+        }
+        return j;
+    }
+
+    // Searches the items [from, to) after lo for the learned candidates not
+    // in foundMask, and returns foundMask with the ones found added.
+    private static int findLearned(Table table, int lo, int from, int to,
+            CinFrequencyStore.Learned picks, int[] learned, int foundMask) {
+        final int n = picks.size();
+        final int all = (1 << n) - 1;
+        for (int i = from; i < to && foundMask != all; i++) {
+            final int pos = table.dictOffset + table.offsets[lo + i];
+            for (int k = 0; k < n; k++) {
+                if ((foundMask & (1 << k)) == 0 && lineEquals(table.dict, pos, picks.bytes[k])) {
+                    foundMask |= 1 << k;
+                    learned[k] = i;
                     break;
                 }
             }
-            fd.seek(mDictOffset + pos);
-            //System.out.println("seek: " + pos);
-            for (int i = 0; i < nph; i++) {
-                String v = readLine();
-                callback.addWord(v.toCharArray(), 0, v.length(), nph-i);
+        }
+        return foundMask;
+    }
+
+    /**
+     * Whether the line starting at pos holds exactly the given UTF-8 bytes.
+     */
+    private static boolean lineEquals(ByteBuffer dict, int pos, byte[] word) {
+        final int end = pos + word.length;
+        if (end >= dict.limit()) {
+            if (end > dict.limit()) return false;
+        } else if (dict.get(end) != '\n') {
+            return false;
+        }
+        for (int i = 0; i < word.length; i++) {
+            if (dict.get(pos + i) != word[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the leading candidates of the nph items starting at lo and adds
+     * them to the candidate cache under the packed key.
+     */
+    private CinCandidateCache.Entry decode(Table table, Query q, long key, int lo, int nph) {
+        final char[][] words = new char[Math.min(nph, CACHED_CANDIDATES)][];
+        for (int i = 0; i < words.length; i++) {
+            final int len = decodeLine(table.dict, q, table.dictOffset + table.offsets[lo + i]);
+            words[i] = new char[len];
+            System.arraycopy(q.word, 0, words[i], 0, len);
+        }
+        final CinCandidateCache.Entry entry = new CinCandidateCache.Entry(words, nph);
+        q.cache.put(key, entry);
+        return entry;
+    }
+
+    /**
+     * Returns a cursor over the candidates of this dictionary, for the
+     * thread that creates it.
+     */
+    Cursor newCursor() {
+        return new Cursor();
+    }
+
+    /**
+     * The candidates matching one query in table order, each with the
+     * frequency the table gives it. Like getWords, a cursor allocates
+     * nothing once the candidate cache holds the typed keys, and it keeps
+     * reading the table that was open when it was opened.
+     */
+    final class Cursor {
+        private Table mCursorTable;
+        private Query mCursorQuery;
+        // The matches are the items from mLo on, or those in mItems
+        private int mLo;
+        private int[] mItems;
+        // The typed keys packed as the table keys, when there is no wildcard
+        private long mTableKey;
+        private int mCount;
+        private char[][] mCached;
+        private char[] mWord;
+
+        private Cursor() {
+        }
+
+        /**
+         * Looks up the candidates matching the typed keys, which may hold
+         * wildcards.
+         * @return the number of candidates
+         */
+        int open(CharSequence query) {
+            mCount = 0;
+            mItems = null;
+            mCached = null;
+            final Table table = mTable;
+            mCursorTable = table;
+            if (table == null || query == null) return 0;
+            final Query q = getQuery(table);
+            mCursorQuery = q;
+            if (hasWildcard(query)) {
+                mItems = q.wildcardMatches;
+                mCount = findWildcardMatches(table, q, query);
+                return mCount;
+            }
+            final int length = query.length();
+            if (length > table.keySize) return 0;
+            final long key = packKey(query);
+            if (key == -1) return 0;
+            final int depth = narrowRange(table, q, query, length);
+            if (depth < 0) return 0;
+            mLo = q.rangeLo[depth];
+            mTableKey = key >>> ((MAX_KEY_SIZE - table.keySize) * 8);
+            CinCandidateCache.Entry cached = q.cache.get(key);
+            if (cached == null) {
+                cached = decode(table, q, key, mLo, q.rangeHi[depth] - mLo);
             }
-        } catch (IOException e) {
-            Log.e("CinDictionary", "Failed to query " + codes.getTypedWord());
-            e.printStackTrace();
+            mCached = cached.words;
+            mCount = cached.count;
+            return mCount;
         }
+
+        int getCount() {
+            return mCount;
+        }
+
+        /** Whether the table gives its candidates frequencies. */
+        boolean hasFrequencies() {
+            return mCursorTable != null && mCursorTable.frequencies != null;
+        }
+
+        /**
+         * Returns the frequency of the candidate of the given rank, or 0 if
+         * the table gives none.
+         */
+        int getFrequency(int rank) {
+            final char[] frequencies = mCursorTable.frequencies;
+            return frequencies == null ? 0 : frequencies[item(rank)];
+        }
+
+        /**
+         * Reads the candidate of the given rank, which getWord returns until
+         * the next read.
+         * @return the length of the candidate
+         */
+        int read(int rank) {
+            if (mCached != null && rank < mCached.length) {
+                mWord = mCached[rank];
+                return mWord.length;
+            }
+            final Table table = mCursorTable;
+            final int len = decodeLine(table.dict, mCursorQuery,
+                    table.dictOffset + table.offsets[item(rank)]);
+            mWord = mCursorQuery.word;
+            return len;
+        }
+
+        char[] getWord() {
+            return mWord;
+        }
+
+        /**
+         * Finds the learned candidates among the matches, as getWords does,
+         * and stores the rank of learned candidate k into ranks[k]. Nothing
+         * is found for a query with wildcards.
+         * @return a mask with bit k set if learned candidate k was found
+         */
+        int findLearned(CinFrequencyStore.Learned picks, int[] ranks) {
+            if (mItems != null || mCount == 0) return 0;
+            final Table table = mCursorTable;
+            final int exact = upperBound(table.keys, mTableKey, mLo, mLo + mCount) - mLo;
+            final int foundMask = CinDictionary.findLearned(table, mLo, 0, exact, picks, ranks, 0);
+            if (foundMask == (1 << picks.size()) - 1) return foundMask;
+            return CinDictionary.findLearned(table, mLo, exact, mCount, picks, ranks, foundMask);
+        }
+
+        private int item(int rank) {
+            return mItems != null ? mItems[rank] : mLo + rank;
+        }
+    }
+
+    /**
+     * Returns the cache of decoded candidates of the calling thread, whose
+     * counters tell how often repeated codes were answered without touching
+     * the table, or null if the thread has not looked anything up.
+     */
+    CinCandidateCache getCandidateCache() {
+        final Query q = mQuery.get();
+        return q == null ? null : q.cache;
+    }
+
+    /**
+     * Ranks the candidates the user picked before the others.
+     * @param frequencies the store of picked candidates, or null to rank by
+     * table order only
+     */
+    public void setFrequencyStore(CinFrequencyStore frequencies) {
+        mFrequencies = frequencies;
     }
 
     @Override public boolean isValidWord(CharSequence word) {
         return true;
     }
 
-    public synchronized void close() {
-        try {
-            fd.close();
-        } catch (IOException e) {
-        }
+    /**
+     * Releases the table. Lookups that are still running keep using it, and
+     * later lookups return no candidates.
+     */
+    public void close() {
+        mTable = null;
+        // The other threads drop their state along with the dictionary.
+        mQuery.remove();
     }
 
     @Override protected void finalize() throws Throwable {
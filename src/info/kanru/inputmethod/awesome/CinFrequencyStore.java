@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2010 Kan-Ru Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package info.kanru.inputmethod.awesome;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.util.Log;
+
+/**
+ * How often the user picked each candidate of a CIN key.
+ *
+ * The counts live in memory and are persisted in an append-only log, one
+ * "key candidate count" line per selection. The log is replayed when the
+ * store is opened and is compacted to one line per (key, candidate) whenever
+ * it doubles in size. Every file operation runs on a single
+ * background thread, so recording a selection never waits for the disk.
+ */
+public class CinFrequencyStore {
+
+    private static final String TAG = "CinFrequencyStore";
+
+    /** Most candidates remembered for one key. */
+    static final int MAX_WORDS_PER_KEY = 8;
+    /**
+     * The log is compacted when it grows to twice its size after the last
+     * compaction, but never below this many lines.
+     */
+    private static final int MIN_COMPACT_LINES = 512;
+    private static final int MAX_COUNT = 0xFFFF;
+
+    /**
+     * The learned candidates of one key, sorted by decreasing count. Instances
+     * are never modified once they are published, so lookups can use them
+     * without holding the store lock.
+     */
+    static class Learned {
+        final String[] words;
+        /** The UTF-8 encoding of each word, to compare against table lines. */
+        final byte[][] bytes;
+        final int[] counts;
+
+        Learned(String[] words, int[] counts) {
+            this.words = words;
+            this.counts = counts;
+            this.bytes = new byte[words.length][];
+            for (int i = 0; i < words.length; i++) {
+                this.bytes[i] = encode(words[i]);
+            }
+        }
+
+        int size() {
+            return words.length;
+        }
+
+        /**
+         * Returns a copy of this with the count of word set to count, keeping
+         * the words sorted by count and dropping the rarest one if there are
+         * too many. A word that ties with the rarest one goes in, so the latest
+         * pick wins.
+         */
+        Learned put(String word, int count) {
+            int n = words.length;
+            int found = -1;
+            for (int i = 0; i < n; i++) {
+                if (words[i].equals(word)) {
+                    found = i;
+                    break;
+                }
+            }
+            final String[] newWords;
+            final int[] newCounts;
+            int pos;
+            if (found >= 0) {
+                newWords = words.clone();
+                newCounts = counts.clone();
+                newCounts[found] = count;
+                pos = found;
+            } else {
+                if (n == MAX_WORDS_PER_KEY) {
+                    if (counts[n - 1] > count) return this;
+                    n--;
+                }
+                newWords = new String[n + 1];
+                newCounts = new int[n + 1];
+                System.arraycopy(words, 0, newWords, 0, n);
+                System.arraycopy(counts, 0, newCounts, 0, n);
+                newWords[n] = word;
+                newCounts[n] = count;
+                pos = n;
+            }
+            // Bubble the updated word up past the words it now outranks.
+            while (pos > 0 && newCounts[pos - 1] < newCounts[pos]) {
+                final String w = newWords[pos];
+                final int c = newCounts[pos];
+                newWords[pos] = newWords[pos - 1];
+                newCounts[pos] = newCounts[pos - 1];
+                newWords[pos - 1] = w;
+                newCounts[pos - 1] = c;
+                pos--;
+            }
+            return new Learned(newWords, newCounts);
+        }
+    }
+
+    private static final Learned EMPTY = new Learned(new String[0], new int[0]);
+
+    /**
+     * The learned keys packed by CinDictionary.packKey, sorted, and their
+     * candidates. A snapshot is never modified once it is published; a
+     * change publishes a new one.
+     */
+    private static class Snapshot {
+        final long[] keys;
+        final Learned[] learned;
+
+        Snapshot(long[] keys, Learned[] learned) {
+            this.keys = keys;
+            this.learned = learned;
+        }
+    }
+
+    private final File mFile;
+    // Guarded by this. The count of every (key, candidate) pair, keyed by
+    // "key candidate" as in the log, and the most picked candidates of each
+    // key. A candidate that fell out of its key keeps counting, and comes
+    // back once it is picked as often as the rarest one kept.
+    private final HashMap<String, Integer> mCounts = new HashMap<String, Integer>();
+    private final HashMap<String, Learned> mLearned = new HashMap<String, Learned>();
+    private volatile Snapshot mSnapshot = new Snapshot(new long[0], new Learned[0]);
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    // Never keeps the process alive if close() is not called
+                    final Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    // Only touched from the writer thread
+    private int mLogLines;
+    private int mCompactedLines;
+
+    /**
+     * Opens the store backed by the log file. The log is read in the
+     * background; selections recorded before it is loaded are kept.
+     */
+    public CinFrequencyStore(File file) {
+        mFile = file;
+        mWriter.execute(new Runnable() {
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Returns the learned candidates of the keys packed by
+     * CinDictionary.packKey, or null if the user never picked a candidate
+     * for them. This takes no lock and does not allocate.
+     */
+    Learned get(long key) {
+        final Snapshot snapshot = mSnapshot;
+        final int i = Arrays.binarySearch(snapshot.keys, key);
+        return i >= 0 ? snapshot.learned[i] : null;
+    }
+
+    // Publishes a snapshot of every learned key
+    private synchronized void pack() {
+        final long[] keys = new long[mLearned.size()];
+        final HashMap<Long, Learned> byKey = new HashMap<Long, Learned>();
+        int n = 0;
+        for (Map.Entry<String, Learned> entry : mLearned.entrySet()) {
+            final long key = CinDictionary.packKey(entry.getKey());
+            if (key == -1) continue;
+            keys[n++] = key;
+            byKey.put(key, entry.getValue());
+        }
+        final long[] packedKeys = Arrays.copyOf(keys, n);
+        Arrays.sort(packedKeys);
+        final Learned[] packedLearned = new Learned[n];
+        for (int i = 0; i < n; i++) {
+            packedLearned[i] = byKey.get(packedKeys[i]);
+        }
+        mSnapshot = new Snapshot(packedKeys, packedLearned);
+    }
+
+    // Publishes a copy of the snapshot with the candidates of one key replaced
+    private void publish(String key, Learned learned) {
+        final long packed = CinDictionary.packKey(key);
+        if (packed == -1) return;
+        final Snapshot snapshot = mSnapshot;
+        final int i = Arrays.binarySearch(snapshot.keys, packed);
+        if (i >= 0) {
+            final Learned[] newLearned = snapshot.learned.clone();
+            newLearned[i] = learned;
+            mSnapshot = new Snapshot(snapshot.keys, newLearned);
+            return;
+        }
+        final int at = -i - 1;
+        final int n = snapshot.keys.length;
+        final long[] newKeys = new long[n + 1];
+        final Learned[] newLearned = new Learned[n + 1];
+        System.arraycopy(snapshot.keys, 0, newKeys, 0, at);
+        System.arraycopy(snapshot.learned, 0, newLearned, 0, at);
+        newKeys[at] = packed;
+        newLearned[at] = learned;
+        System.arraycopy(snapshot.keys, at, newKeys, at + 1, n - at);
+        System.arraycopy(snapshot.learned, at, newLearned, at + 1, n - at);
+        mSnapshot = new Snapshot(newKeys, newLearned);
+    }
+
+    /**
+     * Records that the user picked word for the typed key.
+     */
+    public void addSelection(CharSequence key, CharSequence word) {
+        if (key == null || key.length() == 0 || word == null || word.length() == 0) return;
+        final String k = lowerCase(key);
+        final String w = word.toString();
+        // The log is split on whitespace.
+        if (containsWhitespace(k) || containsWhitespace(w)) return;
+        synchronized (this) {
+            publish(k, add(k, w, 1));
+        }
+        mWriter.execute(new Runnable() {
+            public void run() {
+                append(k, w);
+            }
+        });
+    }
+
+    /**
+     * Writes out the pending selections and stops the background thread.
+     */
+    public void close() {
+        mWriter.shutdown();
+    }
+
+    private synchronized Learned add(String key, String word, int count) {
+        final String pair = key + ' ' + word;
+        final Integer old = mCounts.get(pair);
+        count = Math.min(MAX_COUNT, (old == null ? 0 : old) + count);
+        mCounts.put(pair, count);
+        Learned learned = mLearned.get(key);
+        if (learned == null) learned = EMPTY;
+        learned = learned.put(word, count);
+        mLearned.put(key, learned);
+        return learned;
+    }
+
+    private void load() {
+        final HashMap<String, Integer> counts = new HashMap<String, Integer>();
+        try {
+            mLogLines = read(counts);
+            mCompactedLines = counts.size();
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + mFile + ": " + e);
+            return;
+        }
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            final String pair = entry.getKey();
+            final int space = pair.indexOf(' ');
+            add(pair.substring(0, space), pair.substring(space + 1), entry.getValue());
+        }
+        pack();
+    }
+
+    /**
+     * Replays the log into counts, keyed by "key candidate".
+     * @return the number of lines in the log
+     */
+    private int read(HashMap<String, Integer> counts) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(mFile), "UTF-8"));
+        int lines = 0;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                final String[] fields = line.split(" ");
+                if (fields.length != 3) continue;
+                final int count;
+                try {
+                    count = Integer.parseInt(fields[2]);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                final String pair = fields[0] + ' ' + fields[1];
+                final Integer old = counts.get(pair);
+                counts.put(pair, Math.min(MAX_COUNT, (old == null ? 0 : old) + count));
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    private void append(String key, String word) {
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(mFile, true), "UTF-8");
+            try {
+                out.write(key + ' ' + word + " 1\n");
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + mFile + ": " + e);
+            return;
+        }
+        mLogLines++;
+        if (mLogLines > Math.max(MIN_COMPACT_LINES, mCompactedLines * 2)) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the log with one line per (key, candidate). The new log is
+     * built from the old one rather than from memory, because selections that
+     * are already counted in memory may still be waiting to be appended.
+     */
+    private void compact() {
+        final HashMap<String, Integer> counts = new HashMap<String, Integer>();
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            read(counts);
+            Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            try {
+                for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+                    out.write(entry.getKey() + ' ' + entry.getValue() + '\n');
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("cannot rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to compact " + mFile + ": " + e);
+            tmp.delete();
+            return;
+        }
+        mLogLines = counts.size();
+        mCompactedLines = mLogLines;
+    }
+
+    // Per char, as CinDictionary.packKey does, whatever the locale: String.toLowerCase would turn
+    // I into a dotless i under a Turkish one, and the key would match no table.
+    private static String lowerCase(CharSequence key) {
+        final char[] chars = new char[key.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(key.charAt(i));
+        }
+        return new String(chars);
+    }
+
+    private static boolean containsWhitespace(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.isWhitespace(s.charAt(i))) return true;
+        }
+        return false;
+    }
+
+    private static byte[] encode(String word) {
+        try {
+            return word.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
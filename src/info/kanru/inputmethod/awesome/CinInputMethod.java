@@ -16,13 +16,20 @@
 
 package info.kanru.inputmethod.awesome;
 
+import android.content.SharedPreferences;
 import android.inputmethodservice.Keyboard;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.Message;
+import android.preference.PreferenceManager;
+import android.util.Log;
 import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputConnection;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class CinInputMethod extends InputMethod {
@@ -31,10 +38,27 @@ public class CinInputMethod extends InputMethod {
     private WordComposer mWord = new WordComposer();
     private Suggest mSuggest;
     private CharSequence mBestWord;
-    private CinDictionary mCinDictionary;
+    private CinMultiDictionary mCinDictionary;
+    private CinFrequencyStore mFrequencies;
+    // The association table of each table, by index in mCinDictionary, or null
+    private final ArrayList<CinAssociations> mAssociations = new ArrayList<CinAssociations>();
+    // Index of the first candidate shown in the candidate strip
+    private int mPageStart;
 
     private static final int MSG_UPDATE_SUGGESTIONS = 0;
 
+    private static final String TAG = "CinInputMethod";
+
+    private static final String FREQUENCY_FILE = "cin_frequency.log";
+    private static final String LEGACY_TABLE = "NewCJ3.tbl";
+    // Directory on the external storage holding more tables
+    private static final String TABLE_DIR = "awesomeime";
+    private static final String TABLE_SUFFIX = ".tbl";
+    // A table's follow-up phrases are in a file of the same name with this suffix
+    private static final String ASSOC_SUFFIX = ".assoc";
+    // Comma separated names of the tables the user turned off in the settings
+    static final String PREF_DISABLED_TABLES = "cin_disabled_tables";
+
     Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -53,6 +77,9 @@ public class CinInputMethod extends InputMethod {
     }
 
     public void pickSuggestionManually(int index, CharSequence suggestion) {
+        if (mFrequencies != null) {
+            mFrequencies.addSelection(mWord.getTypedWord(), suggestion);
+        }
         pickSuggestion(suggestion);
         mComposing.setLength(0);
         mWord.reset();
@@ -64,7 +91,31 @@ public class CinInputMethod extends InputMethod {
             ic.commitText(suggestion, 1);
         }
         mService.setCommittedLength(suggestion.length());
-        mService.setSuggestions(null, false, false, false);
+        mBestWord = null;
+        final List<CharSequence> stringList = getAssociations(suggestion);
+        if (stringList != null) {
+            // Offer what usually follows the committed text right away.
+            mService.setSuggestions(stringList, false, false, false);
+            mService.setSuggestionPages(false, false);
+            mService.setCandidatesViewShown(true);
+        } else {
+            mService.setSuggestions(null, false, false, false);
+        }
+    }
+
+    /**
+     * Returns the follow-ups of the committed text from the first enabled
+     * table whose association table has any, or null if none has.
+     */
+    private List<CharSequence> getAssociations(CharSequence committed) {
+        if (committed.length() == 0) return null;
+        for (int i = 0; i < mAssociations.size(); i++) {
+            final CinAssociations associations = mAssociations.get(i);
+            if (associations == null || !mCinDictionary.isEnabled(i)) continue;
+            final List<CharSequence> stringList = mSuggest.getAssociations(associations, committed);
+            if (!stringList.isEmpty()) return stringList;
+        }
+        return null;
     }
 
     private void handleBackspace() {
@@ -80,6 +131,7 @@ public class CinInputMethod extends InputMethod {
             postUpdateSuggestions();
         } else {
             ic.deleteSurroundingText(1, 0);
+            mService.setSuggestions(null, false, false, false);
         }
     }
 
@@ -103,10 +155,15 @@ public class CinInputMethod extends InputMethod {
             return;
         }
 
+        mPageStart = 0;
+        showSuggestionPage();
+    }
+
+    private void showSuggestionPage() {
         List<CharSequence> stringList = mSuggest.getCinSuggestions(mService.getInputView(),
-                                                                   mWord);
-        CharSequence typedWord = mWord.getTypedWord();
+                                                                   mWord, mPageStart);
         mService.setSuggestions(stringList, false, false, false); 
+        mService.setSuggestionPages(mPageStart > 0, mSuggest.hasMoreSuggestions());
         if (stringList.size() > 0)
             mBestWord = stringList.get(0);
         else
@@ -114,6 +171,22 @@ public class CinInputMethod extends InputMethod {
         mService.setCandidatesViewShown(true);
     }
 
+    @Override
+    public void prevSuggestionPage() {
+        if (mSuggest == null || mComposing.length() == 0 || mPageStart == 0)
+            return;
+        mPageStart = Math.max(0, mPageStart - mSuggest.getMaxSuggestions());
+        showSuggestionPage();
+    }
+
+    @Override
+    public void nextSuggestionPage() {
+        if (mSuggest == null || mComposing.length() == 0 || !mSuggest.hasMoreSuggestions())
+            return;
+        mPageStart += mSuggest.getMaxSuggestions();
+        showSuggestionPage();
+    }
+
     private void handleCharacter(int primaryCode, int[] keyCodes) {
         if (primaryCode == ' ') {
             updateSuggestions();
@@ -197,17 +270,83 @@ public class CinInputMethod extends InputMethod {
         }
     }
 
+    @Override
+    public void loadSettings() {
+        if (mCinDictionary == null)
+            return;
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(mService);
+        final List<String> disabled =
+            Arrays.asList(sp.getString(PREF_DISABLED_TABLES, "").split(","));
+        for (int i = 0; i < mCinDictionary.getTableCount(); i++) {
+            mCinDictionary.setEnabled(i, !disabled.contains(mCinDictionary.getTableName(i)));
+        }
+    }
+
     public void initSuggest() {
         mSuggest = new Suggest(mService);
-        try {
-            mCinDictionary = new CinDictionary("/sdcard/NewCJ3.tbl");
-        } catch (IOException e) {}
+        mFrequencies = new CinFrequencyStore(new File(mService.getFilesDir(), FREQUENCY_FILE));
+        mCinDictionary = new CinMultiDictionary();
+        mAssociations.clear();
+        for (File table : findTables()) {
+            addTable(table);
+        }
+        mCinDictionary.setFrequencyStore(mFrequencies);
         mSuggest.addDictionary(mCinDictionary);
+        loadSettings();
     }
 
-    public void close() {
+    /**
+     * Returns the CIN tables on the external storage: the table of earlier
+     * versions first, then every table in the table directory by name.
+     */
+    static List<File> findTables() {
+        final ArrayList<File> found = new ArrayList<File>();
+        final File storage = Environment.getExternalStorageDirectory();
+        final File legacy = new File(storage, LEGACY_TABLE);
+        if (legacy.isFile()) found.add(legacy);
+        File[] tables = new File(storage, TABLE_DIR).listFiles();
+        if (tables != null) {
+            Arrays.sort(tables);
+            for (File table : tables) {
+                if (table.isFile() && table.getName().endsWith(TABLE_SUFFIX)) {
+                    found.add(table);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Adds a table, and the association table next to it if there is one:
+     * NewCJ3.assoc for NewCJ3.tbl.
+     */
+    private void addTable(File file) {
         try {
+            mCinDictionary.addTable(file.getName(), new CinDictionary(file.getPath()));
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open CIN table " + file + ": " + e);
+            return;
+        }
+        final String name = file.getName();
+        final File assoc = new File(file.getParentFile(),
+                name.substring(0, name.length() - TABLE_SUFFIX.length()) + ASSOC_SUFFIX);
+        CinAssociations associations = null;
+        if (assoc.isFile()) {
+            try {
+                associations = new CinAssociations(assoc.getPath());
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot open association table " + assoc + ": " + e);
+            }
+        }
+        mAssociations.add(associations);
+    }
+
+    public void close() {
+        if (mCinDictionary != null) {
             mCinDictionary.close();
-        } catch (IOException e) {}
+        }
+        if (mFrequencies != null) {
+            mFrequencies.close();
+        }
     }
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2010 Kan-Ru Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package info.kanru.inputmethod.awesome;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Posting lists over the packed key column of a CIN table, used to answer
+ * wildcard queries without testing every item. A list holds, in increasing
+ * order, the items whose key has a given byte at a given position, or has a
+ * given byte anywhere. Lists are built on first use with one pass over the
+ * key column and kept until the cached lists grow past a few times the size
+ * of the table.
+ *
+ * Lists are never modified once built and are published through an atomic
+ * array, so lookups take no lock. Two threads that need a missing list at
+ * the same time may both build it, and either copy is kept.
+ */
+class CinKeyIndex {
+
+    /** Position used for the lists of keys containing a byte anywhere. */
+    static final int ANY_POSITION = 0xFF;
+
+    private final long[] mKeys;
+    private final int mKeySize;
+    // The list of byte c at position p is at p * 256 + c, those of
+    // ANY_POSITION after the last position.
+    private final AtomicReferenceArray<int[]> mLists;
+    private final int mMaxSize;
+    // Items in the cached lists, give or take the lists being built
+    private final AtomicInteger mSize = new AtomicInteger();
+
+    /**
+     * @param keys the key column, each key packed big-endian into the low
+     * keySize bytes and padded with zeroes
+     */
+    CinKeyIndex(long[] keys, int keySize) {
+        mKeys = keys;
+        mKeySize = keySize;
+        mLists = new AtomicReferenceArray<int[]>((keySize + 1) * 256);
+        mMaxSize = 4 * keys.length;
+    }
+
+    /**
+     * Returns the items whose key has byte c at position, or contains c
+     * anywhere if position is ANY_POSITION.
+     */
+    int[] getItems(int position, int c) {
+        final int id = (position == ANY_POSITION ? mKeySize : position) * 256 + c;
+        int[] items = mLists.get(id);
+        if (items == null) {
+            items = build(position, c);
+            if (mSize.addAndGet(items.length) > mMaxSize) {
+                for (int i = 0; i < mLists.length(); i++) {
+                    mLists.set(i, null);
+                }
+                mSize.set(items.length);
+            }
+            mLists.set(id, items);
+        }
+        return items;
+    }
+
+    private int[] build(int position, int c) {
+        final long[] keys = mKeys;
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (matches(keys[i], position, c)) n++;
+        }
+        final int[] items = new int[n];
+        n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (matches(keys[i], position, c)) items[n++] = i;
+        }
+        return items;
+    }
+
+    // Only the bytes of the key itself count, not its padding
+    private boolean matches(long key, int position, int c) {
+        final int length = keyLength(key, mKeySize);
+        if (position != ANY_POSITION) {
+            return position < length
+                    && ((key >>> ((mKeySize - 1 - position) * 8)) & 0xFF) == c;
+        }
+        key >>>= (mKeySize - length) * 8;
+        for (int i = 0; i < length; i++, key >>>= 8) {
+            if ((key & 0xFF) == c) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the length of a key packed into the low keySize bytes of a
+     * long, not counting the zeroes it is padded with.
+     */
+    static int keyLength(long key, int keySize) {
+        return key == 0 ? 0 : keySize - Long.numberOfTrailingZeros(key) / 8;
+    }
+}
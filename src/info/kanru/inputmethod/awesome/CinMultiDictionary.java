@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2010 Kan-Ru Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package info.kanru.inputmethod.awesome;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Several CIN tables queried as one dictionary.
+ *
+ * The candidates of every enabled table are merged by a score that compares
+ * across tables: the stored frequency for a table of version 2, and a weight
+ * falling with the rank for a table without frequencies. Each step takes the
+ * best of the next candidates of the tables, so every table keeps its own
+ * order, and candidates of equal score come in the order the tables were
+ * added. A candidate already offered is dropped. The candidates the user
+ * picked for the typed keys come first, once for the merged list.
+ *
+ * The merge runs on the calling thread; tables are mapped in memory, so a
+ * lookup never waits for the disk. Each thread keeps a cursor into every
+ * table and the merged list so far, so the next page of the same keys picks
+ * up where the last one stopped. With a single table enabled its candidates
+ * are reported directly.
+ *
+ * Tables can be enabled and disabled at any time; the others stay open.
+ */
+public class CinMultiDictionary extends Dictionary {
+
+    /** Score of the first merged candidate; later ones count down from it. */
+    private static final int MAX_SCORE = 1 << 20;
+    /** Weight of the first candidate of a table without frequencies. */
+    private static final int MAX_FREQUENCY = 0xFFFF;
+
+    private static class Entry {
+        final String name;
+        final CinDictionary dictionary;
+        boolean enabled = true;
+
+        Entry(String name, CinDictionary dictionary) {
+            this.name = name;
+            this.dictionary = dictionary;
+        }
+    }
+
+    /**
+     * The words of the merged list so far, to drop the ones offered twice.
+     * Words are copied into one character pool and hashed with open
+     * addressing, so clearing and refilling it does not allocate.
+     */
+    private static final class WordSet {
+        private char[] mChars = new char[256];
+        private int mCharCount;
+        private int[] mStarts = new int[32];
+        private int[] mLengths = new int[32];
+        private int mSize;
+        // Index + 1 of the word in each slot, or 0 for an empty slot
+        private int[] mSlots = new int[64];
+
+        void clear() {
+            Arrays.fill(mSlots, 0);
+            mSize = 0;
+            mCharCount = 0;
+        }
+
+        /**
+         * Adds a word unless it is already there.
+         * @return whether the word was added
+         */
+        boolean add(char[] word, int length) {
+            final int mask = mSlots.length - 1;
+            int slot = hash(word, 0, length) & mask;
+            for (int i; (i = mSlots[slot]) != 0; slot = (slot + 1) & mask) {
+                if (equals(i - 1, word, length)) return false;
+            }
+            if (mSize == mStarts.length) {
+                mStarts = Arrays.copyOf(mStarts, mSize * 2);
+                mLengths = Arrays.copyOf(mLengths, mSize * 2);
+            }
+            if (mCharCount + length > mChars.length) {
+                mChars = Arrays.copyOf(mChars, Math.max(mChars.length * 2, mCharCount + length));
+            }
+            System.arraycopy(word, 0, mChars, mCharCount, length);
+            mStarts[mSize] = mCharCount;
+            mLengths[mSize] = length;
+            mCharCount += length;
+            mSlots[slot] = ++mSize;
+            if (mSize * 2 > mSlots.length) rehash();
+            return true;
+        }
+
+        private boolean equals(int i, char[] word, int length) {
+            if (mLengths[i] != length) return false;
+            final int start = mStarts[i];
+            for (int j = 0; j < length; j++) {
+                if (mChars[start + j] != word[j]) return false;
+            }
+            return true;
+        }
+
+        private void rehash() {
+            mSlots = new int[mSlots.length * 2];
+            final int mask = mSlots.length - 1;
+            for (int i = 0; i < mSize; i++) {
+                int slot = hash(mChars, mStarts[i], mLengths[i]) & mask;
+                while (mSlots[slot] != 0) slot = (slot + 1) & mask;
+                mSlots[slot] = i + 1;
+            }
+        }
+
+        private static int hash(char[] chars, int start, int length) {
+            int h = 0;
+            for (int i = start; i < start + length; i++) {
+                h = 31 * h + chars[i];
+            }
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /**
+     * The merge of one query on one thread: a cursor into every enabled
+     * table, the rank of the next candidate of each, and the merged list so
+     * far as (table, rank) pairs.
+     */
+    private static final class Merge {
+        CinDictionary[] tables;
+        CinDictionary.Cursor[] cursors;
+        int[] counts;
+        int[] next;
+
+        // The keys and the learned candidates the merged list is for
+        char[] query = new char[CinDictionary.MAX_KEY_SIZE];
+        int queryLength = -1;
+        CinFrequencyStore.Learned picks;
+        final int[] pickRanks = new int[CinFrequencyStore.MAX_WORDS_PER_KEY];
+        final int[] pickTables = new int[CinFrequencyStore.MAX_WORDS_PER_KEY];
+        final int[] pickTableRanks = new int[CinFrequencyStore.MAX_WORDS_PER_KEY];
+
+        int[] mergedTables = new int[64];
+        int[] mergedRanks = new int[64];
+        int size;
+        final WordSet seen = new WordSet();
+
+        /**
+         * Starts merging the candidates of query, unless the merged list
+         * already holds them.
+         */
+        void open(CinDictionary[] enabled, CharSequence keys,
+                CinFrequencyStore.Learned learned) {
+            if (enabled != tables) {
+                final int n = enabled.length;
+                tables = enabled;
+                cursors = new CinDictionary.Cursor[n];
+                for (int t = 0; t < n; t++) {
+                    cursors[t] = enabled[t].newCursor();
+                }
+                counts = new int[n];
+                next = new int[n];
+                queryLength = -1;
+            }
+            if (learned == picks && sameQuery(keys)) return;
+
+            final int length = keys.length();
+            if (length > query.length) query = new char[length];
+            for (int i = 0; i < length; i++) {
+                query[i] = keys.charAt(i);
+            }
+            queryLength = length;
+            picks = learned;
+            size = 0;
+            seen.clear();
+            for (int t = 0; t < tables.length; t++) {
+                counts[t] = cursors[t].open(keys);
+                next[t] = 0;
+            }
+            if (learned != null) addPicks(learned);
+        }
+
+        private boolean sameQuery(CharSequence keys) {
+            final int length = keys.length();
+            if (length != queryLength) return false;
+            for (int i = 0; i < length; i++) {
+                if (query[i] != keys.charAt(i)) return false;
+            }
+            return true;
+        }
+
+        // Puts the learned candidates found in any table first, most picked first
+        private void addPicks(CinFrequencyStore.Learned learned) {
+            final int n = learned.size();
+            Arrays.fill(pickTables, 0, n, -1);
+            for (int t = 0; t < tables.length; t++) {
+                final int found = cursors[t].findLearned(learned, pickRanks);
+                for (int k = 0; k < n; k++) {
+                    if ((found & (1 << k)) != 0 && pickTables[k] < 0) {
+                        pickTables[k] = t;
+                        pickTableRanks[k] = pickRanks[k];
+                    }
+                }
+            }
+            for (int k = 0; k < n; k++) {
+                final int t = pickTables[k];
+                if (t < 0) continue;
+                final int length = cursors[t].read(pickTableRanks[k]);
+                if (seen.add(cursors[t].getWord(), length)) append(t, pickTableRanks[k]);
+            }
+        }
+
+        /**
+         * Merges candidates until the list holds n or the tables run out.
+         * @return the size of the merged list
+         */
+        int fill(int n) {
+            while (size < n) {
+                int best = -1;
+                int bestScore = -1;
+                for (int t = 0; t < tables.length; t++) {
+                    if (next[t] >= counts[t]) continue;
+                    final int score = score(t);
+                    if (score > bestScore) {
+                        best = t;
+                        bestScore = score;
+                    }
+                }
+                if (best < 0) break;
+                final int rank = next[best]++;
+                final CinDictionary.Cursor cursor = cursors[best];
+                final int length = cursor.read(rank);
+                if (seen.add(cursor.getWord(), length)) append(best, rank);
+            }
+            return size;
+        }
+
+        private int score(int t) {
+            final CinDictionary.Cursor cursor = cursors[t];
+            final int rank = next[t];
+            return cursor.hasFrequencies() ? cursor.getFrequency(rank)
+                    : MAX_FREQUENCY / (rank + 1);
+        }
+
+        private void append(int t, int rank) {
+            if (size == mergedTables.length) {
+                mergedTables = Arrays.copyOf(mergedTables, size * 2);
+                mergedRanks = Arrays.copyOf(mergedRanks, size * 2);
+            }
+            mergedTables[size] = t;
+            mergedRanks[size] = rank;
+            size++;
+        }
+    }
+
+    // Guarded by this
+    private final ArrayList<Entry> mTables = new ArrayList<Entry>();
+    // The dictionaries of the enabled tables, rebuilt whenever a table is
+    // added, enabled or disabled
+    private volatile CinDictionary[] mEnabled = new CinDictionary[0];
+    private volatile CinFrequencyStore mFrequencies;
+    private final ThreadLocal<Merge> mMerge = new ThreadLocal<Merge>();
+
+    /**
+     * Adds a table after the ones already added. Candidates of earlier tables
+     * win ties and duplicates.
+     */
+    public synchronized void addTable(String name, CinDictionary dictionary) {
+        mTables.add(new Entry(name, dictionary));
+        dictionary.setFrequencyStore(mFrequencies);
+        updateEnabled();
+    }
+
+    public synchronized int getTableCount() {
+        return mTables.size();
+    }
+
+    public synchronized String getTableName(int index) {
+        return mTables.get(index).name;
+    }
+
+    public synchronized boolean isEnabled(int index) {
+        return mTables.get(index).enabled;
+    }
+
+    /**
+     * Enables or disables one table without touching the others.
+     */
+    public synchronized void setEnabled(int index, boolean enabled) {
+        final Entry entry = mTables.get(index);
+        if (entry.enabled == enabled) return;
+        entry.enabled = enabled;
+        updateEnabled();
+    }
+
+    /**
+     * Ranks the candidates the user picked before the others, in every table.
+     */
+    public synchronized void setFrequencyStore(CinFrequencyStore frequencies) {
+        mFrequencies = frequencies;
+        for (Entry entry : mTables) {
+            entry.dictionary.setFrequencyStore(frequencies);
+        }
+    }
+
+    private void updateEnabled() {
+        int n = 0;
+        for (Entry entry : mTables) {
+            if (entry.enabled) n++;
+        }
+        final CinDictionary[] enabled = new CinDictionary[n];
+        n = 0;
+        for (Entry entry : mTables) {
+            if (entry.enabled) enabled[n++] = entry.dictionary;
+        }
+        mEnabled = enabled;
+    }
+
+    @Override public void getWords(final WordComposer codes, final WordCallback callback) {
+        getWords(codes, callback, 0, Integer.MAX_VALUE);
+    }
+
+    @Override public boolean getWords(final WordComposer codes,
+            final WordCallback callback, int start, int count) {
+        final CinDictionary[] tables = mEnabled;
+        if (tables.length == 0) return false;
+        if (tables.length == 1) {
+            return tables[0].getWords(codes, callback, start, count);
+        }
+        final CharSequence query = codes.getTypedWord();
+        if (query == null) return false;
+
+        Merge merge = mMerge.get();
+        if (merge == null) {
+            merge = new Merge();
+            mMerge.set(merge);
+        }
+        merge.open(tables, query, getPicks(query));
+
+        if (start < 0) start = 0;
+        final int end = count > Integer.MAX_VALUE - start ? Integer.MAX_VALUE : start + count;
+        // One candidate past the page tells whether there are more.
+        final int size = merge.fill(end == Integer.MAX_VALUE ? end : end + 1);
+        final int last = Math.min(end, size);
+        for (int i = start; i < last; i++) {
+            final CinDictionary.Cursor cursor = merge.cursors[merge.mergedTables[i]];
+            final int length = cursor.read(merge.mergedRanks[i]);
+            if (!callback.addWord(cursor.getWord(), 0, length, MAX_SCORE - i)) {
+                return i + 1 < merge.fill(i + 2);
+            }
+        }
+        return size > end;
+    }
+
+    private CinFrequencyStore.Learned getPicks(CharSequence query) {
+        final CinFrequencyStore frequencies = mFrequencies;
+        if (frequencies == null) return null;
+        final long key = CinDictionary.packKey(query);
+        return key == -1 ? null : frequencies.get(key);
+    }
+
+    @Override public boolean isValidWord(CharSequence word) {
+        return true;
+    }
+
+    /**
+     * Closes every table.
+     */
+    public synchronized void close() {
+        for (Entry entry : mTables) {
+            entry.dictionary.close();
+        }
+        mEnabled = new CinDictionary[0];
+        mMerge.remove();
+    }
+}
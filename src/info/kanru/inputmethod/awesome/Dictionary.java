@@ -59,6 +59,33 @@ abstract public class Dictionary {
      */
     abstract public void getWords(final WordComposer composer, final WordCallback callback);
 
+    /**
+     * Searches for words like {@link #getWords(WordComposer, WordCallback)}, but only reports
+     * one page of the matches, in the dictionary's own candidate order. Dictionaries that
+     * cannot page their results report all of them on the first page.
+     * @param composer the key sequence to match
+     * @param callback the callback object to send matched words to as possible candidates
+     * @param start index of the first match to report
+     * @param count maximum number of matches to report
+     * @return true if there are more matches after this page, false otherwise
+     */
+    public boolean getWords(final WordComposer composer, final WordCallback callback,
+            int start, int count) {
+        if (start == 0) {
+            getWords(composer, callback);
+        }
+        return false;
+    }
+
+    /**
+     * Looks up the words that are likely to follow a word and adds them through the callback,
+     * likeliest first. Dictionaries that know nothing about word pairs add nothing.
+     * @param previousWord the word that was just committed
+     * @param callback the callback object to send the predicted words to
+     */
+    public void getBigrams(final CharSequence previousWord, final WordCallback callback) {
+    }
+
     /**
      * Checks if the given word occurs in the dictionary
      * @param word the word to search for. The search should be case-insensitive.
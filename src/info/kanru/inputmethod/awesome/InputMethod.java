@@ -59,6 +59,10 @@ public abstract class InputMethod
 
     public void pickSuggestionManually(int index, CharSequence suggestion) {}
 
+    public void prevSuggestionPage() {}
+
+    public void nextSuggestionPage() {}
+
     public void addWord(String word, int freq) {}
 
     public void loadSettings() {}
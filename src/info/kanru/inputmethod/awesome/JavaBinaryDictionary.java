@@ -0,0 +1,786 @@
+/*
+ * Copyright (C) 2010 Kan-Ru Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package info.kanru.inputmethod.awesome;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the binary dictionary format of jni/dictionary.cpp in Java. It stands
+ * in for BinaryDictionary when the native library cannot be loaded, and gives
+ * the same suggestions in the same order, so the two can be checked against
+ * each other (see tools/dictbench).
+ *
+ * The trie is walked straight from the mapped file with an explicit stack, one
+ * frame per depth, instead of recursion; a query allocates nothing. The walk
+ * is exhaustive, so it also checks that the bounds the native search prunes
+ * with lose no suggestion. Like BinaryDictionary, an instance is not meant to
+ * be queried from several threads at once.
+ */
+public class JavaBinaryDictionary extends Dictionary {
+
+    // The same limits and multipliers as BinaryDictionary
+    public static final int MAX_WORD_LENGTH = 48;
+    private static final int MAX_ALTERNATIVES = 16;
+    private static final int MAX_WORDS = 16;
+    private static final int TYPED_LETTER_MULTIPLIER = 2;
+    private static final int MIN_SUGGESTIONS = 5;
+
+    // See jni/dictionary.h for the layout
+    private static final int ADDRESS_MASK = 0x3FFFFF;
+    private static final int FLAG_ADDRESS_MASK = 0x40;
+    private static final int FLAG_TERMINAL_MASK = 0x80;
+
+    private static final int DICT_MAGIC = 0x9BC13AFE;
+    private static final int DICT_VERSION = 2;
+    private static final int DICT_HEADER_SIZE = 24;
+    private static final int DICT_FLAG_EXTENSIONS = 0x1;
+    private static final int DICT_FLAG_SUBTREE_FREQUENCY = 0x2;
+    private static final int DICT_FLAG_BIGRAMS = 0x4;
+    private static final int DICT_BIGRAM_OFFSET_SIZE = 4;
+
+    private static final int FLAG_V2_TERMINAL = 0x80;
+    private static final int FLAG_V2_ADDRESS_MASK = 0x60;
+    private static final int FLAG_V2_ADDRESS_SHIFT = 5;
+    private static final int FLAG_V2_EXTENSION = 0x10;
+    private static final int FLAG_V2_WIDE_COUNT = 0x80;
+
+    private static final int FORMAT_V1 = 1;
+    private static final int FORMAT_V2 = 2;
+    private static final int FORMAT_V2_EXTENSIONS = 3;
+    private static final int FORMAT_V2_BOUNDS = 4;
+
+    private static final char QUOTE = '\'';
+
+    // What a frame does next with the child it has read
+    private static final int NEXT_CHILD = 0;
+    private static final int COMPLETE = 1;
+    private static final int SKIP_QUOTE = 2;
+    private static final int MATCH = 3;
+    private static final int EDIT = 4;
+
+    // The one correction a word of the second walk assumes, as in jni/dictionary.h
+    private static final int EDIT_NONE = 0;
+    private static final int EDIT_MISSED = 1;
+    private static final int EDIT_EXTRA = 2;
+    private static final int EDIT_SWAPPING = 3;
+    private static final int EDIT_SWAPPED = 4;
+
+    // The ways the second walk tries a child, in the order of SearchContext::searchRec
+    private static final int BRANCH_TYPED = 0;
+    private static final int BRANCH_EXTRA_LAST = 1;
+    private static final int BRANCH_MISSED = 2;
+    private static final int BRANCH_EXTRA = 3;
+    private static final int BRANCH_SWAPPING = 4;
+    private static final int BRANCHES = 5;
+
+    private final ByteBuffer mDict;
+    private final int mFormat;
+    private final int mRoot;
+    private final int mNodeCount;
+    // Where the bigram section starts and how many words it has successors for
+    private final int mBigrams;
+    private final int mBigramCount;
+    // Every word short enough to look up, so most words that are not there need no walk
+    private final WordFilter mFilter;
+
+    // The first child of the node last counted by readCount, and the child last decoded by
+    // readChild
+    private int mFirstChild;
+    private char mChildChar;
+    private boolean mChildTerminal;
+    private int mChildAddress;
+    private int mChildFreq;
+
+    // The query
+    private final int[][] mInputCodes = new int[MAX_WORD_LENGTH][];
+    private int mInputLength;
+    private int mMaxDepth;
+    private int mMaxEditDistance;
+    private boolean mEditsOnly;
+    private int mNodesVisited;
+
+    // The search stack; the frame of a node is its depth
+    private final int[] mPos = new int[MAX_WORD_LENGTH];
+    private final int[] mLeft = new int[MAX_WORD_LENGTH];
+    private final boolean[] mCompletion = new boolean[MAX_WORD_LENGTH];
+    private final int[] mSnr = new int[MAX_WORD_LENGTH];
+    private final int[] mInputIndex = new int[MAX_WORD_LENGTH];
+    private final int[] mDiffs = new int[MAX_WORD_LENGTH];
+    private final int[] mEdit = new int[MAX_WORD_LENGTH];
+    private final int[] mNext = new int[MAX_WORD_LENGTH];
+    private final int[] mAlternative = new int[MAX_WORD_LENGTH];
+    private final char[] mChar = new char[MAX_WORD_LENGTH];
+    private final char[] mLowerChar = new char[MAX_WORD_LENGTH];
+    private final boolean[] mTerminal = new boolean[MAX_WORD_LENGTH];
+    private final int[] mAddress = new int[MAX_WORD_LENGTH];
+    private final int[] mFreq = new int[MAX_WORD_LENGTH];
+    private final char[] mWord = new char[MAX_WORD_LENGTH];
+
+    // The results, best first
+    private final char[] mOutputChars = new char[MAX_WORDS * MAX_WORD_LENGTH];
+    private final int[] mOutputLengths = new int[MAX_WORDS];
+    private final int[] mFrequencies = new int[MAX_WORDS];
+    private int mWords;
+
+    /**
+     * Maps length bytes at offset of the file at path, as BinaryDictionary does natively.
+     * @throws IOException if the file cannot be mapped or is not a usable dictionary
+     */
+    public JavaBinaryDictionary(String path, long offset, long length) throws IOException {
+        this(map(path, offset, length));
+    }
+
+    /**
+     * Reads the dictionary in dict, from its position to its limit.
+     * @throws IOException if dict does not hold a usable dictionary
+     */
+    public JavaBinaryDictionary(ByteBuffer dict) throws IOException {
+        mDict = dict.slice();
+        final int dictLen = mDict.capacity();
+        if (dictLen < DICT_HEADER_SIZE || mDict.getInt(0) != DICT_MAGIC) {
+            // Version 1 has no header, so it cannot be checked
+            if (dictLen == 0) throw new IOException("Empty dictionary");
+            mFormat = FORMAT_V1;
+            mRoot = 0;
+            mNodeCount = 0;
+            mBigrams = 0;
+            mBigramCount = 0;
+            mFilter = buildFilter();
+            return;
+        }
+        final int version = mDict.getShort(4) & 0xFFFF;
+        final int flags = mDict.getShort(6) & 0xFFFF;
+        final int headerSize = mDict.getInt(8);
+        final int bodyLength = mDict.getInt(16);
+        if (version != DICT_VERSION || headerSize < DICT_HEADER_SIZE || headerSize > dictLen
+                || bodyLength != dictLen - headerSize) {
+            throw new IOException("Bad dictionary header");
+        }
+        if (TableChecksum.crc32(mDict, headerSize, dictLen) != mDict.getInt(20)) {
+            throw new IOException("Dictionary checksum mismatch");
+        }
+        if ((flags & DICT_FLAG_SUBTREE_FREQUENCY) != 0) {
+            mFormat = FORMAT_V2_BOUNDS;
+        } else {
+            mFormat = (flags & DICT_FLAG_EXTENSIONS) != 0 ? FORMAT_V2_EXTENSIONS : FORMAT_V2;
+        }
+        mRoot = headerSize;
+        mNodeCount = mDict.getInt(12);
+        if ((flags & DICT_FLAG_BIGRAMS) != 0) {
+            if (headerSize < DICT_HEADER_SIZE + DICT_BIGRAM_OFFSET_SIZE) {
+                throw new IOException("Bad dictionary header");
+            }
+            final long bigrams = mDict.getInt(DICT_HEADER_SIZE) & 0xFFFFFFFFL;
+            if (bigrams < headerSize || bigrams > dictLen - 4) {
+                throw new IOException("Bad bigram section");
+            }
+            // The index at least has to fit
+            final long count = mDict.getInt((int) bigrams) & 0xFFFFFFFFL;
+            if (count > (dictLen - bigrams - 4) / 4) {
+                throw new IOException("Bad bigram section");
+            }
+            mBigrams = (int) bigrams;
+            mBigramCount = (int) count;
+        } else {
+            mBigrams = 0;
+            mBigramCount = 0;
+        }
+        mFilter = buildFilter();
+    }
+
+    // Counting the words first sizes the filter
+    private WordFilter buildFilter() {
+        final WordFilter filter = new WordFilter(addWords(null));
+        addWords(filter);
+        return filter;
+    }
+
+    // Walks every word shorter than MAX_WORD_LENGTH, adding it to filter if there is one, and
+    // returns how many there are
+    private int addWords(WordFilter filter) {
+        final char[] chars = mWord;
+        final CharBuffer word = CharBuffer.wrap(chars);
+        int words = 0;
+        int depth = 0;
+        mLeft[0] = readCount(mRoot);
+        mPos[0] = mFirstChild;
+        while (depth >= 0) {
+            if (mLeft[depth] == 0) {
+                depth--;
+                continue;
+            }
+            mLeft[depth]--;
+            mPos[depth] = readChild(mPos[depth]);
+            chars[depth] = mChildChar;
+            if (mChildTerminal) {
+                words++;
+                if (filter != null) {
+                    word.limit(depth + 1);
+                    filter.add(word);
+                }
+            }
+            if (mChildAddress != 0 && depth + 2 < MAX_WORD_LENGTH) {
+                depth++;
+                mLeft[depth] = readCount(mChildAddress);
+                mPos[depth] = mFirstChild;
+            }
+        }
+        return words;
+    }
+
+    private static ByteBuffer map(String path, long offset, long length) throws IOException {
+        if (offset < 0 || length <= 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Bad dictionary range in " + path);
+        }
+        final RandomAccessFile file = new RandomAccessFile(new File(path), "r");
+        try {
+            if (offset + length > file.length()) {
+                throw new IOException(path + " is too short for the dictionary");
+            }
+            // The mapping stays valid after the file is closed
+            return file.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Returns how the dictionary is decoded, numbered as in jni/dictionary.h: 1 for version 1,
+     * 2 for version 2, 3 for version 2 with extension fields and 4 for version 2 with subtree
+     * frequencies.
+     */
+    public int getFormat() {
+        return mFormat;
+    }
+
+    /** Returns the number of characters in the trie, or 0 if the format does not record it. */
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+
+    /** Returns how many words the bigram section has successors for, 0 without one. */
+    public int getBigramCount() {
+        return mBigramCount;
+    }
+
+    /** Returns the number of trie children the last query looked at. */
+    public int getNodesVisited() {
+        return mNodesVisited;
+    }
+
+    @Override
+    public void getWords(final WordComposer codes, final WordCallback callback) {
+        final int codesSize = codes.size();
+        // Wont deal with really long words.
+        if (codesSize > MAX_WORD_LENGTH - 1) return;
+
+        for (int i = 0; i < codesSize; i++) {
+            mInputCodes[i] = codes.getCodesAt(i);
+        }
+        final int count = getSuggestions(codesSize, MIN_SUGGESTIONS);
+        for (int i = 0; i < codesSize; i++) {
+            mInputCodes[i] = null;
+        }
+
+        final char[] word = mWord;
+        for (int j = 0; j < count; j++) {
+            final int frequency = mFrequencies[j];
+            if (frequency < 1) break;
+            final int len = mOutputLengths[j];
+            if (len > 0) {
+                System.arraycopy(mOutputChars, j * MAX_WORD_LENGTH, word, 0, len);
+                callback.addWord(word, 0, len, frequency);
+            }
+        }
+    }
+
+    // Mirrors Dictionary::getSuggestions: if fewer than minWords suggestions match what was
+    // typed, a second walk merges in the words that assume one edit: a missed character, an
+    // extra one or two swapped ones. It allows one edit per word on purpose; see there for why.
+    private int getSuggestions(int codesSize, int minWords) {
+        mInputLength = codesSize;
+        mMaxDepth = codesSize * 3;
+        mMaxEditDistance = codesSize < 5 ? 2 : codesSize / 2;
+        mWords = 0;
+        mNodesVisited = 0;
+
+        mEditsOnly = false;
+        search();
+        if (mWords < minWords) {
+            mEditsOnly = true;
+            search();
+        }
+        return mWords;
+    }
+
+    private int readCount(int pos) {
+        int count = mDict.get(pos++) & 0xFF;
+        if (mFormat != FORMAT_V1 && (count & FLAG_V2_WIDE_COUNT) != 0) {
+            count = ((count & ~FLAG_V2_WIDE_COUNT) << 8) | (mDict.get(pos++) & 0xFF);
+        }
+        mFirstChild = pos;
+        return count;
+    }
+
+    // The same folding as Dictionary::toLowerCase, which unlike ExpandableDictionary leaves
+    // non-ASCII letters alone once they are reduced to their base characters
+    private static char toLowerCase(char c) {
+        if (c < BaseChars.BASE_CHARS.length) {
+            c = BaseChars.BASE_CHARS[c];
+        }
+        if (c >= 'A' && c <= 'Z') {
+            c = (char) (c | 32);
+        }
+        return c;
+    }
+
+    // Decodes the child at pos into the mChild fields and returns the position of the next one
+    private int readChild(int pos) {
+        final ByteBuffer dict = mDict;
+        char c = (char) (dict.get(pos++) & 0xFF);
+        // If the code is 255, then actual 16 bit code follows (in big endian)
+        if (c == 0xFF) {
+            c = dict.getChar(pos);
+            pos += 2;
+        }
+        mChildChar = c;
+        if (mFormat == FORMAT_V1) {
+            final int flags = dict.get(pos) & 0xFF;
+            mChildTerminal = (flags & FLAG_TERMINAL_MASK) != 0;
+            if ((flags & FLAG_ADDRESS_MASK) == 0) {
+                mChildAddress = 0;
+                pos += 1;
+            } else {
+                mChildAddress = (flags & (ADDRESS_MASK >> 16)) << 16
+                        | (dict.get(pos + 1) & 0xFF) << 8 | (dict.get(pos + 2) & 0xFF);
+                pos += 3;
+            }
+            mChildFreq = mChildTerminal ? dict.get(pos++) & 0xFF : 1;
+            return pos;
+        }
+        final int flags = dict.get(pos++) & 0xFF;
+        mChildTerminal = (flags & FLAG_V2_TERMINAL) != 0;
+        switch ((flags & FLAG_V2_ADDRESS_MASK) >> FLAG_V2_ADDRESS_SHIFT) {
+        case 0:
+            mChildAddress = 0;
+            break;
+        case 1:
+            mChildAddress = dict.getChar(pos);
+            pos += 2;
+            break;
+        case 2:
+            mChildAddress = (dict.get(pos) & 0xFF) << 16 | dict.getChar(pos + 1);
+            pos += 3;
+            break;
+        default:
+            mChildAddress = dict.getInt(pos);
+            pos += 4;
+            break;
+        }
+        mChildFreq = mChildTerminal ? dict.get(pos++) & 0xFF : 1;
+        if (mFormat >= FORMAT_V2_EXTENSIONS && (flags & FLAG_V2_EXTENSION) != 0) {
+            // Skip the extension field; this reader searches exhaustively, without bounds
+            pos += 1 + (dict.get(pos) & 0xFF);
+        }
+        return pos;
+    }
+
+    // Sets up the frame of a node at depth, unless the node is pruned; the checks are those
+    // SearchContext::searchRec makes, less the bound.
+    private boolean enter(int depth, int pos, boolean completion, int snr, int inputIndex,
+            int diffs, int edit) {
+        // Prune out words that are too long compared to how much was typed, or that do not fit
+        if (depth > mMaxDepth || depth + 1 >= MAX_WORD_LENGTH || diffs > mMaxEditDistance) {
+            return false;
+        }
+        final int count = readCount(pos);
+        if (mInputLength <= inputIndex) {
+            // Completions were all found by the first walk
+            if (mEditsOnly && edit == EDIT_NONE) return false;
+            completion = true;
+        }
+        mNodesVisited += count;
+        mPos[depth] = mFirstChild;
+        mLeft[depth] = count;
+        mCompletion[depth] = completion;
+        mSnr[depth] = snr;
+        mInputIndex[depth] = inputIndex;
+        mDiffs[depth] = diffs;
+        mEdit[depth] = edit;
+        mNext[depth] = NEXT_CHILD;
+        return true;
+    }
+
+    // Visits, depth first, every node the native search could reach, without pruning any by
+    // its bound.
+    private void search() {
+        int depth = enter(0, mRoot, false, 1, 0, 0, EDIT_NONE) ? 0 : -1;
+        while (depth >= 0) {
+            depth = step(depth);
+        }
+    }
+
+    // Works on the frame at depth until it enters a child node, returning depth + 1, or runs
+    // out of children, returning depth - 1.
+    private int step(final int depth) {
+        final int child = depth + 1;
+        while (true) {
+            switch (mNext[depth]) {
+            case NEXT_CHILD: {
+                if (mLeft[depth] == 0) return depth - 1;
+                mLeft[depth]--;
+                mPos[depth] = readChild(mPos[depth]);
+                final char c = mChildChar;
+                mChar[depth] = c;
+                mTerminal[depth] = mChildTerminal;
+                mAddress[depth] = mChildAddress;
+                mFreq[depth] = mChildFreq;
+                mWord[depth] = c;
+                if (mCompletion[depth]) {
+                    // If we are only doing completions, no need to look at the typed characters.
+                    if (mChildTerminal) {
+                        addWord(child, mChildFreq * mSnr[depth]);
+                    }
+                    mNext[depth] = COMPLETE;
+                } else if (c == QUOTE && mInputCodes[mInputIndex[depth]][0] != QUOTE) {
+                    mNext[depth] = SKIP_QUOTE;
+                } else {
+                    mNext[depth] = mEditsOnly ? EDIT : MATCH;
+                    mLowerChar[depth] = toLowerCase(c);
+                    mAlternative[depth] = 0;
+                }
+                break;
+            }
+            case COMPLETE:
+            case SKIP_QUOTE: {
+                final boolean completion = mNext[depth] == COMPLETE;
+                mNext[depth] = NEXT_CHILD;
+                if (mAddress[depth] != 0 && enter(child, mAddress[depth], completion,
+                        mSnr[depth], mInputIndex[depth], mDiffs[depth], mEdit[depth])) {
+                    return child;
+                }
+                break;
+            }
+            case MATCH: {
+                final int j = mAlternative[depth]++;
+                final int[] currentChars = mInputCodes[mInputIndex[depth]];
+                if (j >= currentChars.length || j >= MAX_ALTERNATIVES || currentChars[j] <= 0) {
+                    mNext[depth] = NEXT_CHILD;
+                    break;
+                }
+                if (currentChars[j] != mLowerChar[depth] && currentChars[j] != mChar[depth]) {
+                    break;
+                }
+                final int addedWeight = j == 0 ? TYPED_LETTER_MULTIPLIER : 1;
+                if (advance(depth, mInputIndex[depth] + 1, mSnr[depth] * addedWeight,
+                        mDiffs[depth] + (j > 0 ? 1 : 0), mEdit[depth])) {
+                    return child;
+                }
+                break;
+            }
+            case EDIT: {
+                final int branch = mAlternative[depth]++;
+                if (branch == BRANCHES) {
+                    mNext[depth] = NEXT_CHILD;
+                    break;
+                }
+                if (edit(depth, branch)) {
+                    return child;
+                }
+                break;
+            }
+            }
+        }
+    }
+
+    // Tries one way to match the child just read at depth in the second walk, which only looks
+    // at the primary codes and allows one edit per word. Returns whether it entered the node
+    // below.
+    private boolean edit(int depth, int branch) {
+        final int inputIndex = mInputIndex[depth];
+        final int edit = mEdit[depth];
+        final int snr = mSnr[depth] * TYPED_LETTER_MULTIPLIER;
+        final int diffs = mDiffs[depth];
+        if (edit == EDIT_SWAPPING) {
+            // The first of the swapped characters, typed second
+            return branch == BRANCH_TYPED && typedAt(inputIndex, depth)
+                    && advance(depth, inputIndex + 2, snr, diffs, EDIT_SWAPPED);
+        }
+        switch (branch) {
+        case BRANCH_TYPED:
+            return typedAt(inputIndex, depth) && advance(depth, inputIndex + 1, snr, diffs, edit);
+        case BRANCH_EXTRA_LAST:
+            // Assume the last typed character is extra
+            return edit == EDIT_NONE && inputIndex + 2 == mInputLength
+                    && typedAt(inputIndex, depth)
+                    && advance(depth, mInputLength, snr, diffs + 1, EDIT_EXTRA);
+        }
+        if (edit != EDIT_NONE) return false;
+        switch (branch) {
+        case BRANCH_MISSED:
+            // Assume the user missed this letter and continue deeper without consuming input
+            if (depth < mInputLength && mAddress[depth] != 0) {
+                mWord[depth] = mChar[depth];
+                return enter(depth + 1, mAddress[depth], false, mSnr[depth], inputIndex,
+                        diffs + 1, EDIT_MISSED);
+            }
+            return false;
+        case BRANCH_EXTRA:
+            // Assume the character typed at inputIndex is extra
+            return inputIndex + 1 < mInputLength && typedAt(inputIndex + 1, depth)
+                    && advance(depth, inputIndex + 2, snr, diffs + 1, EDIT_EXTRA);
+        case BRANCH_SWAPPING:
+            // Or that it belongs after this one
+            if (inputIndex + 1 < mInputLength && typedAt(inputIndex + 1, depth)
+                    && !typedAt(inputIndex, depth) && mAddress[depth] != 0) {
+                mWord[depth] = mChar[depth];
+                return enter(depth + 1, mAddress[depth], false, snr, inputIndex, diffs + 1,
+                        EDIT_SWAPPING);
+            }
+            return false;
+        }
+        return false;
+    }
+
+    // Whether the primary code typed at inputIndex is the child just read at depth
+    private boolean typedAt(int inputIndex, int depth) {
+        final int code = mInputCodes[inputIndex][0];
+        return code == mLowerChar[depth] || code == mChar[depth];
+    }
+
+    // Moves on to the child just read at depth, which matched the typed characters up to
+    // inputIndex, like Dictionary::advance: reports the word if nothing typed is left, and
+    // returns whether it entered the node below.
+    private boolean advance(int depth, int inputIndex, int snr, int diffs, int edit) {
+        final int child = depth + 1;
+        mWord[depth] = mChar[depth];
+        if (inputIndex == mInputLength) {
+            // The first walk reports the words without an edit, the second only those with one
+            if (mTerminal[depth] && mEditsOnly == (edit != EDIT_NONE) && !sameAsTyped(child)) {
+                int finalFreq = mFreq[depth] * snr;
+                if (edit == EDIT_NONE) finalFreq *= FULL_WORD_FREQ_MULTIPLIER;
+                addWord(child, finalFreq);
+            }
+            // No completions once a typed character was dropped or moved
+            return mAddress[depth] != 0 && edit != EDIT_EXTRA && edit != EDIT_SWAPPED
+                    && enter(child, mAddress[depth], true, snr, inputIndex, diffs, edit);
+        }
+        return mAddress[depth] != 0
+                && enter(child, mAddress[depth], false, snr, inputIndex, diffs, edit);
+    }
+
+    private boolean sameAsTyped(int length) {
+        if (length != mInputLength) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (mInputCodes[i][0] != mWord[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int compareWord(int slot, int length) {
+        final int start = slot * MAX_WORD_LENGTH;
+        for (int i = 0; i < length; i++) {
+            final char other = mOutputChars[start + i];
+            if (mWord[i] != other) return mWord[i] < other ? -1 : 1;
+        }
+        return 0;
+    }
+
+    private boolean sameWord(int slot, int length) {
+        if (mOutputLengths[slot] != length) return false;
+        final int start = slot * MAX_WORD_LENGTH;
+        for (int i = 0; i < length; i++) {
+            if (mOutputChars[start + i] != mWord[i]) return false;
+        }
+        return true;
+    }
+
+    // Inserts the first length characters of mWord by frequency, then by length, then by
+    // characters, like Dictionary::addWord. Only the second walk can find a word twice.
+    // The order is total, so the exhaustive walk here ends with the same list as the pruned
+    // native search.
+    private boolean addWord(int length, int frequency) {
+        if (length >= MAX_WORD_LENGTH) {
+            return false;
+        }
+        int insertAt = 0;
+        while (insertAt < mWords) {
+            if (frequency > mFrequencies[insertAt]) {
+                break;
+            }
+            if (mFrequencies[insertAt] == frequency) {
+                final int otherLength = mOutputLengths[insertAt];
+                if (length < otherLength
+                        || (length == otherLength && compareWord(insertAt, length) < 0)) {
+                    break;
+                }
+            }
+            if (mEditsOnly && sameWord(insertAt, length)) {
+                return false;
+            }
+            insertAt++;
+        }
+        if (insertAt == mWords && frequency <= 0) {
+            return false;
+        }
+        if (insertAt >= MAX_WORDS) {
+            return false;
+        }
+        // Drop a worse scored copy of the word
+        for (int i = insertAt; mEditsOnly && i < mWords; i++) {
+            if (sameWord(i, length)) {
+                mWords--;
+                System.arraycopy(mFrequencies, i + 1, mFrequencies, i, mWords - i);
+                System.arraycopy(mOutputLengths, i + 1, mOutputLengths, i, mWords - i);
+                System.arraycopy(mOutputChars, (i + 1) * MAX_WORD_LENGTH,
+                        mOutputChars, i * MAX_WORD_LENGTH, (mWords - i) * MAX_WORD_LENGTH);
+                break;
+            }
+        }
+        // Shift down the words below, dropping the last one if the list is full
+        final int moved = (mWords < MAX_WORDS ? mWords : MAX_WORDS - 1) - insertAt;
+        if (moved > 0) {
+            System.arraycopy(mFrequencies, insertAt, mFrequencies, insertAt + 1, moved);
+            System.arraycopy(mOutputLengths, insertAt, mOutputLengths, insertAt + 1, moved);
+            System.arraycopy(mOutputChars, insertAt * MAX_WORD_LENGTH,
+                    mOutputChars, (insertAt + 1) * MAX_WORD_LENGTH, moved * MAX_WORD_LENGTH);
+        }
+        mFrequencies[insertAt] = frequency;
+        mOutputLengths[insertAt] = length;
+        System.arraycopy(mWord, 0, mOutputChars, insertAt * MAX_WORD_LENGTH, length);
+        if (mWords < MAX_WORDS) mWords++;
+        return true;
+    }
+
+    /**
+     * Adds the words that follow previousWord, likeliest first, like Dictionary::getBigrams.
+     * The frequency of each is its quantized probability.
+     */
+    @Override
+    public void getBigrams(final CharSequence previousWord, final WordCallback callback) {
+        final int length = previousWord.length();
+        if (mBigramCount == 0 || length == 0 || length > MAX_WORD_LENGTH) return;
+        int pos = findBigrams(previousWord, length);
+        if (pos < 0) return;
+        final ByteBuffer dict = mDict;
+        // Skip the word to its successors
+        final int wordLength = dict.get(pos++) & 0xFF;
+        for (int i = 0; i < wordLength; i++) {
+            pos += (dict.get(pos) & 0xFF) == 0xFF ? 3 : 1;
+        }
+        final int count = dict.get(pos++) & 0xFF;
+        final char[] word = mWord;
+        int words = 0;
+        for (int i = 0; i < count && words < MAX_WORDS; i++, pos += 4) {
+            int wordPos = mBigrams + ((dict.get(pos + 1) & 0xFF) << 16
+                    | (dict.get(pos + 2) & 0xFF) << 8 | (dict.get(pos + 3) & 0xFF));
+            if (wordPos >= dict.limit()) continue;
+            final int n = dict.get(wordPos++) & 0xFF;
+            // Leave room for the terminating NULL, as the native lookup does
+            if (n >= MAX_WORD_LENGTH) continue;
+            for (int j = 0; j < n; j++) {
+                char c = (char) (dict.get(wordPos++) & 0xFF);
+                if (c == 0xFF) {
+                    c = dict.getChar(wordPos);
+                    wordPos += 2;
+                }
+                word[j] = c;
+            }
+            words++;
+            if (!callback.addWord(word, 0, n, dict.get(pos) & 0xFF)) break;
+        }
+    }
+
+    // Returns the position of the entry for word in the bigram section, or -1 if it has none
+    private int findBigrams(CharSequence word, int length) {
+        final ByteBuffer dict = mDict;
+        int lo = 0;
+        int hi = mBigramCount;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            final long offset = dict.getInt(mBigrams + 4 + mid * 4) & 0xFFFFFFFFL;
+            if (offset >= dict.limit() - mBigrams) return -1;
+            final int entry = mBigrams + (int) offset;
+            final int diff = compareBigramWord(entry, word, length);
+            if (diff < 0) {
+                lo = mid + 1;
+            } else if (diff > 0) {
+                hi = mid;
+            } else {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    // Compares the bigram section word at pos with word, by UTF-16 code units
+    private int compareBigramWord(int pos, CharSequence word, int length) {
+        final ByteBuffer dict = mDict;
+        final int storedLength = dict.get(pos++) & 0xFF;
+        for (int i = 0; i < storedLength && i < length; i++) {
+            char c = (char) (dict.get(pos++) & 0xFF);
+            if (c == 0xFF) {
+                c = dict.getChar(pos);
+                pos += 2;
+            }
+            if (c != word.charAt(i)) return c < word.charAt(i) ? -1 : 1;
+        }
+        return storedLength - length;
+    }
+
+    @Override
+    public boolean isValidWord(CharSequence word) {
+        if (word == null) return false;
+        final String lower = word.toString().toLowerCase();
+        final int length = lower.length();
+        // Nothing longer fits the stack, and it could never be suggested either
+        if (length == 0 || length >= MAX_WORD_LENGTH) return false;
+        if (!mFilter.mightContain(lower)) return false;
+
+        // Two instances of a character, upper and lower case, may lead on, so a failed branch
+        // backs up to its siblings.
+        int depth = 0;
+        mLeft[0] = readCount(mRoot);
+        mPos[0] = mFirstChild;
+        while (depth >= 0) {
+            if (mLeft[depth] == 0) {
+                depth--;
+                continue;
+            }
+            mLeft[depth]--;
+            mPos[depth] = readChild(mPos[depth]);
+            if (mChildChar != lower.charAt(depth)) continue;
+            if (depth == length - 1) {
+                if (mChildTerminal) return true;
+            } else if (mChildAddress != 0) {
+                depth++;
+                mLeft[depth] = readCount(mChildAddress);
+                mPos[depth] = mFirstChild;
+            }
+        }
+        return false;
+    }
+}
@@ -72,6 +72,8 @@ public class LatinInputMethod extends InputMethod {
     private long mLastKeyTime;
 
     private boolean mPredicting;
+    // Whether the strip holds the words predicted to follow the last one
+    private boolean mShowingPredictions;
 
     private Dictionary mBinaryDictionary;
     private ExpandableDictionary mUserDictionary;
@@ -237,6 +239,7 @@ public class LatinInputMethod extends InputMethod {
         if (getSuggest() == null || !isPredictionOn()) {
             return;
         }
+        mShowingPredictions = false;
         
         if (!isPredicting()) {
             mService.setSuggestions(null, false, false, false);
@@ -270,6 +273,26 @@ public class LatinInputMethod extends InputMethod {
                                         mService.getCompletionOn());
     }
 
+    // Offers the words that usually follow the one just committed before anything is typed
+    private void showPredictions(CharSequence previousWord) {
+        if (getSuggest() == null || !isCandidateStripVisible() || mService.getCompletionOn()) {
+            return;
+        }
+        List<CharSequence> stringList = getSuggest().getNextWordSuggestions(previousWord);
+        if (stringList.isEmpty()) return;
+        setBestWord(null);
+        mService.setSuggestions(stringList, false, false, false);
+        mService.setCandidatesViewShown(true);
+        mShowingPredictions = true;
+    }
+
+    private void clearPredictions() {
+        if (mShowingPredictions) {
+            mService.setSuggestions(null, false, false, false);
+            mShowingPredictions = false;
+        }
+    }
+
     private void postUpdateShiftKeyState() {
         mHandler.removeMessages(MSG_UPDATE_SHIFT_STATE);
         mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_UPDATE_SHIFT_STATE), 300);
@@ -281,6 +304,11 @@ public class LatinInputMethod extends InputMethod {
     }
 
     public void pickSuggestionManually(int index, CharSequence suggestion) {
+        if (mShowingPredictions) {
+            // A predicted word was not typed, so the last word's spelling and caps don't apply
+            getComposing().setLength(0);
+            getWord().reset();
+        }
         pickSuggestion(suggestion);
         TextEntryState.acceptedSuggestion(getComposing().toString(),
                                           suggestion);
@@ -289,6 +317,7 @@ public class LatinInputMethod extends InputMethod {
             mService.sendSpace();
             // Fool the state watcher so that a subsequent backspace will not do a revert
             TextEntryState.typedCharacter((char) AwesomeIME.KEYCODE_SPACE, true);
+            showPredictions(suggestion);
         }
     }
 
@@ -312,6 +341,7 @@ public class LatinInputMethod extends InputMethod {
         setPredicting(false);
         mService.setCommittedLength(suggestion.length());
         mService.setSuggestions(null, false, false, false);
+        mShowingPredictions = false;
         updateShiftKeyState(mService.getCurrentInputEditorInfo());
     }
 
@@ -335,6 +365,8 @@ public class LatinInputMethod extends InputMethod {
             }
         } else {
             deleteChar = true;
+            // They followed the text being deleted
+            clearPredictions();
         }
         postUpdateShiftKeyState();
         TextEntryState.backspace();
@@ -380,6 +412,7 @@ public class LatinInputMethod extends InputMethod {
 
     private void handleSeparator(int primaryCode) {
         boolean pickedDefault = false;
+        CharSequence committed = null;
         // Handle separator
         InputConnection ic = mService.getCurrentInputConnection();
         if (ic != null) {
@@ -396,7 +429,9 @@ public class LatinInputMethod extends InputMethod {
                  || getJustRevertedSeparator().charAt(0) != primaryCode)) {
                 pickDefaultSuggestion();
                 pickedDefault = true;
+                committed = getBestWord();
             } else {
+                committed = getComposing().toString();
                 commitTyped(ic);
             }
         }
@@ -414,6 +449,11 @@ public class LatinInputMethod extends InputMethod {
                                            getBestWord());
         }
         updateShiftKeyState(mService.getCurrentInputEditorInfo());
+        if (primaryCode == ' ' && !TextUtils.isEmpty(committed)) {
+            showPredictions(committed);
+        } else {
+            clearPredictions();
+        }
         if (ic != null) {
             ic.endBatchEdit();
         }
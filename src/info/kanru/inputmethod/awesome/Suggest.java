@@ -47,6 +47,9 @@ public class Suggest implements Dictionary.WordCallback {
     private ArrayList<CharSequence> mStringPool = new ArrayList<CharSequence>();
     private Context mContext;
     private boolean mHaveCorrection;
+    private boolean mHaveMoreSuggestions;
+    // Whether the words come in decreasing frequency, so a full list can stop the lookup
+    private boolean mWordsInOrder;
     private CharSequence mOriginalWord;
     private String mLowerOriginalWord;
 
@@ -92,6 +95,11 @@ public class Suggest implements Dictionary.WordCallback {
         }
     }
 
+    /** Number of suggestions generated from the input key sequence. */
+    public int getMaxSuggestions() {
+        return mPrefMaxSuggestions;
+    }
+
     private boolean haveSufficientCommonality(String original, CharSequence suggestion) {
         final int originalLength = original.length();
         final int suggestionLength = suggestion.length();
@@ -131,6 +139,7 @@ public class Suggest implements Dictionary.WordCallback {
     public List<CharSequence> getSuggestions(View view, WordComposer wordComposer, 
                                              boolean includeTypedWordIfValid) {
         mHaveCorrection = false;
+        mWordsInOrder = false;
         collectGarbage();
         Arrays.fill(mPriorities, 0);
         mIncludeTypedWordIfValid = includeTypedWordIfValid;
@@ -189,7 +198,23 @@ public class Suggest implements Dictionary.WordCallback {
     }
 
     public List<CharSequence> getCinSuggestions(View view, WordComposer wordComposer) {
+        return getCinSuggestions(view, wordComposer, 0);
+    }
+
+    /**
+     * Returns one page of CIN candidates for the typed keys. The page holds at most
+     * the maximum number of suggestions, starting at the given candidate index.
+     * Use {@link #hasMoreSuggestions()} to find out if a following page exists.
+     * @param view a view for retrieving the context
+     * @param wordComposer the typed keys
+     * @param start index of the first candidate of the page
+     * @return list of suggestions.
+     */
+    public List<CharSequence> getCinSuggestions(View view, WordComposer wordComposer,
+                                                int start) {
         mHaveCorrection = false;
+        mHaveMoreSuggestions = false;
+        mWordsInOrder = true;
         collectGarbage();
         Arrays.fill(mPriorities, 0);
         
@@ -201,8 +226,60 @@ public class Suggest implements Dictionary.WordCallback {
             mLowerOriginalWord = "";
         }
         for (Dictionary dict: mDictList) {
-            dict.getWords(wordComposer, this);
+            if (dict.getWords(wordComposer, this, start, mPrefMaxSuggestions)) {
+                mHaveMoreSuggestions = true;
+            }
+        }
+        return mSuggestions;
+    }
+
+    /**
+     * Returns the follow-up characters and phrases for a committed CIN candidate.
+     * @param associations the association table to look up
+     * @param committed the text that was just committed
+     * @return list of suggestions.
+     */
+    public List<CharSequence> getAssociations(CinAssociations associations,
+                                              CharSequence committed) {
+        mHaveCorrection = false;
+        mHaveMoreSuggestions = false;
+        mWordsInOrder = true;
+        collectGarbage();
+        Arrays.fill(mPriorities, 0);
+
+        mOriginalWord = null;
+        mLowerOriginalWord = "";
+        associations.getAssociations(committed, this);
+        return mSuggestions;
+    }
+
+    /**
+     * Returns the words that are likely to follow a word the user has just committed.
+     * @param previousWord the word that was just committed
+     * @return list of suggestions, empty if no dictionary knows what follows the word.
+     */
+    public List<CharSequence> getNextWordSuggestions(CharSequence previousWord) {
+        mHaveCorrection = false;
+        mHaveMoreSuggestions = false;
+        mWordsInOrder = true;
+        collectGarbage();
+        Arrays.fill(mPriorities, 0);
+
+        mOriginalWord = null;
+        mLowerOriginalWord = "";
+        for (Dictionary dict: mDictList) {
+            dict.getBigrams(previousWord, this);
         }
+        // A capitalized word at the start of a sentence predicts what the plain one does
+        if (mSuggestions.isEmpty()) {
+            final String lower = previousWord.toString().toLowerCase();
+            if (!lower.contentEquals(previousWord)) {
+                for (Dictionary dict: mDictList) {
+                    dict.getBigrams(lower, this);
+                }
+            }
+        }
+        removeDupes();
         return mSuggestions;
     }
 
@@ -237,6 +314,14 @@ public class Suggest implements Dictionary.WordCallback {
         return mHaveCorrection;
     }
 
+    /**
+     * Whether the last call to {@link #getCinSuggestions(View, WordComposer, int)} left
+     * candidates for a following page.
+     */
+    public boolean hasMoreSuggestions() {
+        return mHaveMoreSuggestions;
+    }
+
     private boolean compareCaseInsensitive(final String mLowerOriginalWord, 
             final char[] word, final int offset, final int length) {
         final int originalLength = mLowerOriginalWord.length();
@@ -259,8 +344,9 @@ public class Suggest implements Dictionary.WordCallback {
         if (compareCaseInsensitive(mLowerOriginalWord, word, offset, length)) {
             pos = 0;
         } else {
-            // Check the last one's priority and bail
-            if (priorities[prefMaxSuggestions - 1] >= freq) return true;
+            // Check the last one's priority and bail. Words that come in order can't do
+            // any better after this one, so the dictionary may stop looking.
+            if (priorities[prefMaxSuggestions - 1] >= freq) return !mWordsInOrder;
             while (pos < prefMaxSuggestions) {
                 if (priorities[pos] < freq
                         || (priorities[pos] == freq && length < mSuggestions
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2010 Kan-Ru Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package info.kanru.inputmethod.awesome;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * The CRC32 that the binary dictionary, CIN table and association table
+ * headers keep over the rest of the file, to tell a damaged file from one
+ * that can be mapped.
+ */
+final class TableChecksum {
+
+    private TableChecksum() {
+    }
+
+    /**
+     * Returns the CRC32 of the bytes in [start, end) of a mapped table. The
+     * position of the table is left alone, so it can be shared.
+     */
+    static int crc32(ByteBuffer table, int start, int end) {
+        final ByteBuffer body = table.duplicate();
+        body.limit(end);
+        body.position(start);
+        final byte[] chunk = new byte[8192];
+        final CRC32 crc = new CRC32();
+        while (body.hasRemaining()) {
+            final int n = Math.min(chunk.length, body.remaining());
+            body.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2010 Kan-Ru Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package info.kanru.inputmethod.awesome;
+
+/**
+ * A Bloom filter over the words of a dictionary, so that looking up a word that is not there
+ * can mostly be answered without walking the trie. It never turns down a word that was added;
+ * of the words that were not, about one in a hundred gets through while the filter holds no
+ * more than its capacity.
+ *
+ * The native dictionary fills the bits of a filter for BinaryDictionary, so the hash here must
+ * stay the same as in jni/dictionary.cpp.
+ */
+final class WordFilter {
+
+    // About 0.8% false positives at capacity
+    private static final int BITS_PER_WORD = 10;
+    static final int HASHES = 7;
+
+    private final long[] mBits;
+    private final int mBitCount;
+    private final int mCapacity;
+
+    /**
+     * Creates an empty filter.
+     * @param capacity how many words it should hold before false positives get more frequent
+     */
+    WordFilter(int capacity) {
+        mCapacity = Math.max(capacity, 1);
+        final long bits = (long) mCapacity * BITS_PER_WORD;
+        mBits = new long[(int) Math.min((bits + 63) / 64, Integer.MAX_VALUE / 64)];
+        mBitCount = mBits.length * 64;
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    /** Returns the bits, for the native dictionary to fill. */
+    long[] getBits() {
+        return mBits;
+    }
+
+    void add(CharSequence word) {
+        final long hash = hash(word);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32) | 1;
+        final long[] bits = mBits;
+        for (int i = 0; i < HASHES; i++) {
+            final int bit = (int) (((h1 + i * h2) & 0xFFFFFFFFL) % mBitCount);
+            bits[bit >>> 6] |= 1L << (bit & 63);
+        }
+    }
+
+    /**
+     * Returns false if the word was certainly not added, true if it may have been.
+     */
+    boolean mightContain(CharSequence word) {
+        final long hash = hash(word);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32) | 1;
+        final long[] bits = mBits;
+        for (int i = 0; i < HASHES; i++) {
+            final int bit = (int) (((h1 + i * h2) & 0xFFFFFFFFL) % mBitCount);
+            if ((bits[bit >>> 6] & (1L << (bit & 63))) == 0) return false;
+        }
+        return true;
+    }
+
+    // 64-bit FNV-1a over the UTF-16 units; its halves drive the probes
+    private static long hash(CharSequence word) {
+        long hash = 0xcbf29ce484222325L;
+        final int length = word.length();
+        for (int i = 0; i < length; i++) {
+            hash ^= word.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
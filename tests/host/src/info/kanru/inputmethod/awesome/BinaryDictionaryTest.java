@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2010 Kan-Ru Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package info.kanru.inputmethod.awesome;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Checks that a dictionary compiled by makedict from the TestData word lists holds exactly
+ * the words and bigrams it was given, as JavaBinaryDictionary reads them back.
+ */
+public class BinaryDictionaryTest {
+
+    static void check(boolean ok, String message) {
+        if (!ok) throw new AssertionError(message);
+    }
+
+    public static void main(String[] args) throws IOException {
+        final String dir = args[0];
+        final File file = new File(dir, "words.dict");
+        final JavaBinaryDictionary dictionary =
+                new JavaBinaryDictionary(file.getPath(), 0, file.length());
+
+        // isValidWord looks words up in lower case, so only those can be found
+        final LinkedHashMap<String, Integer> words = TestData.readWords(dir);
+        int found = 0;
+        for (String word : words.keySet()) {
+            final boolean stored = word.length() < JavaBinaryDictionary.MAX_WORD_LENGTH;
+            if (!word.equals(word.toLowerCase())) continue;
+            check(dictionary.isValidWord(word) == stored, word + " should "
+                    + (stored ? "" : "not ") + "be a word");
+            if (stored) found++;
+        }
+        check(!dictionary.isValidWord(""), "the empty word");
+        check(!dictionary.isValidWord("qqqqq"), "a word that is not there");
+
+        // The successors of a word come ranked by count, with their share quantized
+        final LinkedHashMap<String, LinkedHashMap<String, Integer>> pairs = readPairs(dir);
+        final ArrayList<String> next = new ArrayList<String>();
+        final ArrayList<Integer> frequencies = new ArrayList<Integer>();
+        final Dictionary.WordCallback collect = new Dictionary.WordCallback() {
+            public boolean addWord(char[] word, int offset, int length, int frequency) {
+                next.add(new String(word, offset, length));
+                frequencies.add(frequency);
+                return true;
+            }
+        };
+        for (Map.Entry<String, LinkedHashMap<String, Integer>> pair : pairs.entrySet()) {
+            final LinkedHashMap<String, Integer> counts = pair.getValue();
+            final ArrayList<Map.Entry<String, Integer>> ranked =
+                    new ArrayList<Map.Entry<String, Integer>>(counts.entrySet());
+            Collections.sort(ranked, new Comparator<Map.Entry<String, Integer>>() {
+                public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+                    return b.getValue().compareTo(a.getValue());
+                }
+            });
+            int total = 0;
+            for (int count : counts.values()) {
+                total += count;
+            }
+            next.clear();
+            frequencies.clear();
+            dictionary.getBigrams(pair.getKey(), collect);
+            check(next.size() == ranked.size(), pair.getKey() + ": " + next.size()
+                    + " successors instead of " + ranked.size());
+            for (int i = 0; i < ranked.size(); i++) {
+                final Map.Entry<String, Integer> expected = ranked.get(i);
+                final double q = 255 + 16 * Math.log((double) expected.getValue() / total)
+                        / Math.log(2);
+                final int frequency = Math.max(1, Math.min(255, (int) Math.round(q)));
+                check(next.get(i).equals(expected.getKey())
+                        && frequencies.get(i) == frequency, pair.getKey() + ": got "
+                        + next.get(i) + "/" + frequencies.get(i) + " for "
+                        + expected.getKey() + "/" + frequency);
+            }
+        }
+        next.clear();
+        dictionary.getBigrams("qqqqq", collect);
+        check(next.isEmpty(), "bigrams of a word that has none");
+
+        System.out.println("BinaryDictionaryTest: " + found + " words, " + pairs.size()
+                + " words with bigrams");
+    }
+
+    private static LinkedHashMap<String, LinkedHashMap<String, Integer>> readPairs(String dir)
+            throws IOException {
+        final LinkedHashMap<String, LinkedHashMap<String, Integer>> pairs =
+                new LinkedHashMap<String, LinkedHashMap<String, Integer>>();
+        final BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(dir + "/pairs.txt"), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                final String[] fields = line.split(" ");
+                LinkedHashMap<String, Integer> counts = pairs.get(fields[0]);
+                if (counts == null) {
+                    counts = new LinkedHashMap<String, Integer>();
+                    pairs.put(fields[0], counts);
+                }
+                final Integer previous = counts.get(fields[1]);
+                final int count = Integer.parseInt(fields[2]);
+                counts.put(fields[1], previous == null ? count : previous + count);
+            }
+        } finally {
+            in.close();
+        }
+        return pairs;
+    }
+}
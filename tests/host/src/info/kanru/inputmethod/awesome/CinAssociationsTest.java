@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2010 Kan-Ru Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package info.kanru.inputmethod.awesome;
+
+import info.kanru.inputmethod.awesome.tools.MakeAssocTable;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Compiles a generated phrase list with makeassoc and checks that
+ * CinAssociations gives the follow-ups of the last character of the text,
+ * by decreasing frequency and then in source order, stops when the callback
+ * declines one, and refuses tables that are cut short or not tables at all.
+ */
+public class CinAssociationsTest {
+
+    private static final int PHRASES = 3000;
+    private static final int LEADS = 300;
+    // As in CinAssociations
+    private static final int HEADER_SIZE = 32;
+    private static final int LEAD_SIZE = 12;
+
+    /** One follow-up of the source. */
+    static final class Phrase {
+        final String rest;
+        int frequency;
+        final int order;
+
+        Phrase(String rest, int frequency, int order) {
+            this.rest = rest;
+            this.frequency = frequency;
+            this.order = order;
+        }
+    }
+
+    // The follow-ups of every lead character, by code point
+    private final TreeMap<Integer, List<Phrase>> mLeads = new TreeMap<Integer, List<Phrase>>();
+
+    static void check(boolean ok, String message) {
+        BinaryDictionaryTest.check(ok, message);
+    }
+
+    public static void main(String[] args) throws IOException {
+        final CinAssociationsTest test = new CinAssociationsTest();
+        final String dir = args[0];
+        test.writeSource(dir + "/phrases.txt");
+        MakeAssocTable.main(new String[] { dir + "/phrases.txt", dir + "/test.assoc" });
+
+        final CinAssociations associations = new CinAssociations(dir + "/test.assoc");
+        test.checkLookups(associations);
+        test.checkLimits(associations);
+        checkMissing(associations);
+        checkCorruption(dir + "/test.assoc", dir + "/corrupt.assoc");
+        System.out.println("CinAssociationsTest: " + test.mLeads.size() + " characters");
+    }
+
+    private static int lead(Random random) {
+        // A few outside the Basic Multilingual Plane
+        return random.nextInt(30) == 0 ? 0x20000 + random.nextInt(LEADS / 10)
+                : 0x4E00 + random.nextInt(LEADS);
+    }
+
+    /**
+     * Writes phrases of a few characters with and without a frequency. Some
+     * are listed twice, some are a single character and follow nothing, and
+     * a few lines are comments.
+     */
+    void writeSource(String filename) throws IOException {
+        final Random random = new Random(20101016);
+        final HashMap<String, Phrase> seen = new HashMap<String, Phrase>();
+        int order = 0;
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(filename), "UTF-8"));
+        out.println("# Generated by CinAssociationsTest");
+        for (int i = 0; i < PHRASES; i++) {
+            final StringBuilder phrase = new StringBuilder();
+            for (int n = 1 + random.nextInt(4); n > 0; n--) {
+                phrase.appendCodePoint(lead(random));
+            }
+            final boolean weighted = random.nextInt(3) != 0;
+            final int frequency = weighted ? random.nextInt(70000) : 0;
+            out.println(phrase + (weighted ? "\t" + frequency : ""));
+            if (random.nextInt(40) == 0) out.println("# " + phrase);
+
+            final int lead = phrase.codePointAt(0);
+            final String rest = phrase.substring(Character.charCount(lead));
+            if (rest.length() == 0) continue;
+            final Phrase old = seen.get(phrase.toString());
+            if (old != null) {
+                old.frequency = Math.max(old.frequency, Math.min(frequency, 0xFFFF));
+                continue;
+            }
+            final Phrase added = new Phrase(rest, Math.min(frequency, 0xFFFF), order++);
+            seen.put(phrase.toString(), added);
+            List<Phrase> phrases = mLeads.get(lead);
+            if (phrases == null) {
+                phrases = new ArrayList<Phrase>();
+                mLeads.put(lead, phrases);
+            }
+            phrases.add(added);
+        }
+        out.close();
+    }
+
+    // The follow-ups of lead, most likely first
+    private List<String> expected(int lead) {
+        final List<Phrase> phrases = mLeads.get(lead);
+        final ArrayList<Phrase> sorted = new ArrayList<Phrase>(phrases);
+        Collections.sort(sorted, new Comparator<Phrase>() {
+            public int compare(Phrase a, Phrase b) {
+                if (a.frequency != b.frequency) return b.frequency - a.frequency;
+                return a.order - b.order;
+            }
+        });
+        final ArrayList<String> values = new ArrayList<String>();
+        for (Phrase phrase : sorted) {
+            values.add(phrase.rest);
+        }
+        return values;
+    }
+
+    private static List<String> lookup(CinAssociations associations, CharSequence text,
+            final int max, final boolean[] found) {
+        final ArrayList<String> values = new ArrayList<String>();
+        final int[] lastScore = { Integer.MAX_VALUE };
+        found[0] = associations.getAssociations(text, new Dictionary.WordCallback() {
+            public boolean addWord(char[] word, int offset, int length, int frequency) {
+                check(frequency < lastScore[0], "follow-ups scored by rank");
+                lastScore[0] = frequency;
+                values.add(new String(word, offset, length));
+                return values.size() < max;
+            }
+        });
+        return values;
+    }
+
+    // Looked up by the last character, whatever comes before it
+    void checkLookups(CinAssociations associations) {
+        final boolean[] found = new boolean[1];
+        for (Map.Entry<Integer, List<Phrase>> entry : mLeads.entrySet()) {
+            final int lead = entry.getKey();
+            final String text = new StringBuilder("\u4e00\ud840\udc00").appendCodePoint(lead)
+                    .toString();
+            check(lookup(associations, text, Integer.MAX_VALUE, found).equals(expected(lead)),
+                    "follow-ups of U+" + Integer.toHexString(lead));
+            check(found[0], "U+" + Integer.toHexString(lead) + " has follow-ups");
+        }
+    }
+
+    // The callback stops the list wherever it wants
+    void checkLimits(CinAssociations associations) {
+        final boolean[] found = new boolean[1];
+        int longest = mLeads.firstKey();
+        for (int lead : mLeads.keySet()) {
+            if (mLeads.get(lead).size() > mLeads.get(longest).size()) longest = lead;
+        }
+        final List<String> all = expected(longest);
+        check(all.size() > 3, "a character with several follow-ups");
+        final String text = new String(Character.toChars(longest));
+        for (int max = 1; max <= all.size(); max++) {
+            check(lookup(associations, text, max, found).equals(all.subList(0, max)),
+                    "first " + max + " follow-ups");
+            check(found[0], "follow-ups found when stopped after " + max);
+        }
+    }
+
+    // A character nothing follows, and no text at all
+    static void checkMissing(CinAssociations associations) {
+        final boolean[] found = new boolean[1];
+        for (String text : new String[] { "a", "\u4e00\u9fa5", "\ud841\udc00", "" }) {
+            check(lookup(associations, text, Integer.MAX_VALUE, found).isEmpty() && !found[0],
+                    "no follow-ups of " + text);
+        }
+        check(!associations.getAssociations(null, null), "no follow-ups without text");
+    }
+
+    /**
+     * Refuses a table cut short, one with a bad magic, one whose body does
+     * not match its checksum, and two whose checksum matches but where a
+     * character points its follow-ups outside the table.
+     */
+    static void checkCorruption(String filename, String corrupt) throws IOException {
+        final byte[] bytes = CinTableTest.read(filename);
+        final int leads = ByteBuffer.wrap(bytes).getInt(12);
+        checkRefused(copyOf(bytes, bytes.length / 2), corrupt, "a truncated association table");
+        checkRefused(copyOf(bytes, HEADER_SIZE - 1), corrupt, "a header cut short");
+
+        byte[] bad = copyOf(bytes, bytes.length);
+        bad[0] ^= 1;
+        checkRefused(bad, corrupt, "an association table with a bad magic");
+
+        bad = copyOf(bytes, bytes.length);
+        bad[bad.length - 1] ^= 1;
+        checkRefused(bad, corrupt, "an association table with a bad checksum");
+
+        bad = copyOf(bytes, bytes.length);
+        ByteBuffer.wrap(bad).putInt(leads + 4, bad.length);
+        checkRefused(withChecksum(bad), corrupt, "follow-ups outside the association table");
+
+        bad = copyOf(bytes, bytes.length);
+        ByteBuffer.wrap(bad).putInt(leads + LEAD_SIZE + 8, -1);
+        checkRefused(withChecksum(bad), corrupt, "a negative follow-up count");
+    }
+
+    private static byte[] withChecksum(byte[] bytes) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE);
+        ByteBuffer.wrap(bytes).putInt(28, (int) crc.getValue());
+        return bytes;
+    }
+
+    private static void checkRefused(byte[] bytes, String filename, String what)
+            throws IOException {
+        CinTableTest.write(bytes, filename);
+        try {
+            new CinAssociations(filename);
+        } catch (IOException e) {
+            return;
+        }
+        check(false, what + " was opened");
+    }
+
+    private static byte[] copyOf(byte[] bytes, int length) {
+        final byte[] copy = new byte[length];
+        System.arraycopy(bytes, 0, copy, 0, length);
+        return copy;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2010 Kan-Ru Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package info.kanru.inputmethod.awesome;
+
+import info.kanru.inputmethod.awesome.tools.MakeCinTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Merges two tables of version 2 and one of version 1, built from different
+ * sources that share many candidates, and checks CinMultiDictionary against
+ * a plain merge of them: frequencies against weights falling with the rank,
+ * each table in its own order, earlier tables winning ties and duplicates
+ * dropped.
+ */
+public class CinMultiDictionaryTest {
+
+    // As in CinMultiDictionary
+    private static final int MAX_FREQUENCY = 0xFFFF;
+
+    private final CinTableTest mFirst = new CinTableTest(1);
+    private final CinTableTest mSecond = new CinTableTest(2);
+    private final CinTableTest mThird = new CinTableTest(3);
+    // Whether each table, in the order they are added, has frequencies
+    private final CinTableTest[] mTables = { mFirst, mSecond, mThird };
+    private final boolean[] mFrequencies = { true, false, true };
+    private final TreeSet<String> mPrefixes = new TreeSet<String>();
+
+    static void check(boolean ok, String message) {
+        BinaryDictionaryTest.check(ok, message);
+    }
+
+    public static void main(String[] args) throws IOException {
+        final CinMultiDictionaryTest test = new CinMultiDictionaryTest();
+        final String dir = args[0];
+        test.mFirst.writeSource(dir + "/first.cin");
+        MakeCinTable.main(new String[] { dir + "/first.cin", dir + "/first.tbl" });
+        test.mSecond.writeSource(dir + "/second.cin");
+        test.mSecond.writeV1(dir + "/second.tbl");
+        test.mThird.writeSource(dir + "/third.cin");
+        MakeCinTable.main(new String[] { dir + "/third.cin", dir + "/third.tbl" });
+        for (CinTableTest table : test.mTables) {
+            test.mPrefixes.addAll(table.prefixes());
+        }
+
+        final CinMultiDictionary dictionary = new CinMultiDictionary();
+        dictionary.addTable("first.tbl", new CinDictionary(dir + "/first.tbl"));
+        dictionary.addTable("second.tbl", new CinDictionary(dir + "/second.tbl"));
+        dictionary.addTable("third.tbl", new CinDictionary(dir + "/third.tbl"));
+        test.checkMerge(dictionary);
+        test.checkPages(dictionary);
+        test.checkPicks(dictionary, new File(dir, "merged-picks.log"));
+        test.checkEnabled(dictionary);
+        dictionary.close();
+        System.out.println("CinMultiDictionaryTest: " + test.mPrefixes.size() + " prefixes");
+    }
+
+    private List<String> expected(String prefix) {
+        final int n = mTables.length;
+        final ArrayList<List<CinTableTest.Item>> items = new ArrayList<List<CinTableTest.Item>>();
+        for (CinTableTest table : mTables) {
+            items.add(table.items(prefix));
+        }
+        final int[] next = new int[n];
+        final ArrayList<String> merged = new ArrayList<String>();
+        final HashSet<String> seen = new HashSet<String>();
+        while (true) {
+            int best = -1;
+            int bestScore = -1;
+            for (int t = 0; t < n; t++) {
+                if (next[t] == items.get(t).size()) continue;
+                final int score = mFrequencies[t] ? items.get(t).get(next[t]).frequency
+                        : MAX_FREQUENCY / (next[t] + 1);
+                if (score > bestScore) {
+                    best = t;
+                    bestScore = score;
+                }
+            }
+            if (best < 0) return merged;
+            final String value = items.get(best).get(next[best]++).value;
+            if (seen.add(value)) merged.add(value);
+        }
+    }
+
+    void checkMerge(CinMultiDictionary dictionary) {
+        int duplicates = 0;
+        for (String prefix : mPrefixes) {
+            final List<String> expected = expected(prefix);
+            check(CinTableTest.getWords(dictionary, prefix, 0, Integer.MAX_VALUE)
+                    .equals(expected), "merged candidates of " + prefix);
+            duplicates -= expected.size();
+            for (CinTableTest table : mTables) {
+                duplicates += table.items(prefix).size();
+            }
+        }
+        check(duplicates > 0, "no candidate in both tables");
+    }
+
+    // Pages put together give the whole list, and say whether more follow
+    void checkPages(CinMultiDictionary dictionary) {
+        for (String prefix : new String[] { "a", "b", "q", "'", "ab" }) {
+            final List<String> expected = expected(prefix);
+            for (int size = 1; size <= 40; size += 13) {
+                final ArrayList<String> pages = new ArrayList<String>();
+                for (int start = 0; start < expected.size(); start += size) {
+                    final boolean more = dictionary.getWords(CinTableTest.compose(prefix),
+                            collect(pages), start, size);
+                    check(more == start + size < expected.size(),
+                            "more candidates after " + start + " of " + prefix);
+                }
+                check(pages.equals(expected), "pages of " + size + " for " + prefix);
+            }
+            // Going back to the first page after the last one
+            check(CinTableTest.getWords(dictionary, prefix, 0, 10)
+                    .equals(expected.subList(0, Math.min(10, expected.size()))),
+                    "first page of " + prefix + " again");
+        }
+    }
+
+    // Candidates picked from either table come first, once
+    void checkPicks(CinMultiDictionary dictionary, File log) {
+        log.delete();
+        final CinFrequencyStore store = new CinFrequencyStore(log);
+        dictionary.setFrequencyStore(store);
+        final String prefix = "b";
+        final List<String> merged = expected(prefix);
+        final ArrayList<String> picked = new ArrayList<String>();
+        final List<CinTableTest.Item> second = mSecond.items(prefix);
+        final List<CinTableTest.Item> first = mFirst.items(prefix);
+        picked.add(second.get(second.size() - 1).value);
+        final String fromFirst = first.get(first.size() - 1).value;
+        if (!picked.contains(fromFirst)) picked.add(fromFirst);
+        for (int i = 0; i < picked.size(); i++) {
+            for (int n = picked.size() - i; n > 0; n--) {
+                store.addSelection(prefix, picked.get(i));
+            }
+        }
+        final ArrayList<String> expected = new ArrayList<String>(picked);
+        for (String value : merged) {
+            if (!picked.contains(value)) expected.add(value);
+        }
+        check(CinTableTest.getWords(dictionary, prefix, 0, Integer.MAX_VALUE).equals(expected),
+                "picked candidates of " + prefix + " first");
+        dictionary.setFrequencyStore(null);
+        store.close();
+    }
+
+    // Disabled tables drop out, and a table left alone is reported as is
+    void checkEnabled(CinMultiDictionary dictionary) {
+        dictionary.setEnabled(1, false);
+        dictionary.setEnabled(2, false);
+        for (String prefix : new String[] { "a", "b", "zz" }) {
+            final ArrayList<String> expected = new ArrayList<String>();
+            for (CinTableTest.Item item : mFirst.items(prefix)) {
+                expected.add(item.value);
+            }
+            check(CinTableTest.getWords(dictionary, prefix, 0, Integer.MAX_VALUE)
+                    .equals(expected), "candidates of " + prefix + " from the first table");
+        }
+        dictionary.setEnabled(1, true);
+        dictionary.setEnabled(2, true);
+        check(CinTableTest.getWords(dictionary, "a", 0, Integer.MAX_VALUE).equals(expected("a")),
+                "merged candidates of a after enabling the table again");
+    }
+
+    private static Dictionary.WordCallback collect(final List<String> words) {
+        return new Dictionary.WordCallback() {
+            public boolean addWord(char[] word, int offset, int length, int frequency) {
+                words.add(new String(word, offset, length));
+                return true;
+            }
+        };
+    }
+}
@@ -0,0 +1,523 @@
+/*
+ * Copyright (C) 2010 Kan-Ru Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package info.kanru.inputmethod.awesome;
+
+import info.kanru.inputmethod.awesome.tools.MakeCinTable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Compiles a generated .cin with makecin and writes the same items as a table
+ * of the original format, then checks that CinDictionary reads both back as
+ * the source says: candidates in key order, those of one key by decreasing
+ * frequency and then in source order, and the frequencies of version 2.
+ */
+public class CinTableTest {
+
+    private static final String KEY_CHARS = "abcdefghijklmnopqrstuvwxyz,.;'";
+    private static final int KEYS = 1500;
+    private static final int V1_KEY_SIZE = 5;
+    // As in CinDictionary
+    private static final int MAX_WILDCARD_MATCHES = 256;
+
+    /** One candidate of the source. */
+    static final class Item {
+        final String key;
+        final String value;
+        int frequency;
+        final int order;
+
+        Item(String key, String value, int frequency, int order) {
+            this.key = key;
+            this.value = value;
+            this.frequency = frequency;
+            this.order = order;
+        }
+    }
+
+    static final Comparator<Item> TABLE_ORDER = new Comparator<Item>() {
+        public int compare(Item a, Item b) {
+            final int keyOrder = a.key.compareTo(b.key);
+            if (keyOrder != 0) return keyOrder;
+            if (a.frequency != b.frequency) return b.frequency - a.frequency;
+            return a.order - b.order;
+        }
+    };
+
+    private final long mSeed;
+    private final ArrayList<Item> mItems = new ArrayList<Item>();
+    private final TreeSet<String> mPrefixes = new TreeSet<String>();
+
+    CinTableTest(long seed) {
+        mSeed = seed;
+    }
+
+    static void check(boolean ok, String message) {
+        BinaryDictionaryTest.check(ok, message);
+    }
+
+    public static void main(String[] args) throws IOException {
+        final CinTableTest test = new CinTableTest(20101016);
+        final String dir = args[0];
+        test.writeSource(dir + "/test.cin");
+        MakeCinTable.main(new String[] { dir + "/test.cin", dir + "/test.tbl" });
+        test.writeV1(dir + "/test-v1.tbl");
+
+        final CinDictionary v2 = new CinDictionary(dir + "/test.tbl");
+        final CinDictionary v1 = new CinDictionary(dir + "/test-v1.tbl");
+        test.checkWords(v2, v1);
+        test.checkPages(v2);
+        test.checkWildcards(v2, v1);
+        test.checkThreads(v2);
+        test.checkPicks(v2, new File(dir, "picks.log"));
+        test.checkCursor(v2, true);
+        test.checkCursor(v1, false);
+        checkCorruption(dir + "/test.tbl", dir + "/corrupt.tbl");
+        checkBadOffsets(dir + "/test.tbl", dir + "/test-v1.tbl", dir + "/corrupt.tbl");
+        v1.close();
+        v2.close();
+        System.out.println("CinTableTest: " + test.mItems.size() + " items, "
+                + test.mPrefixes.size() + " prefixes");
+    }
+
+    /**
+     * Writes a .cin of random keys with a few candidates each. Some lines
+     * have no frequency, some candidates are listed twice, and some are
+     * outside the Basic Multilingual Plane.
+     */
+    void writeSource(String filename) throws IOException {
+        final Random random = new Random(mSeed);
+        final HashMap<String, Item> seen = new HashMap<String, Item>();
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(filename), "UTF-8"));
+        out.println("# Generated by CinTableTest");
+        out.println("%ename test");
+        out.println("%chardef begin");
+        for (int k = 0; k < KEYS; k++) {
+            final StringBuilder key = new StringBuilder();
+            for (int n = 1 + random.nextInt(V1_KEY_SIZE); n > 0; n--) {
+                key.append(KEY_CHARS.charAt(random.nextInt(KEY_CHARS.length())));
+            }
+            for (int n = 1 + random.nextInt(6); n > 0; n--) {
+                final int c = random.nextInt(50) == 0 ? 0x20000 + random.nextInt(100)
+                        : 0x4E00 + random.nextInt(400);
+                final String value = new String(Character.toChars(c));
+                final boolean weighted = random.nextInt(4) != 0;
+                final int frequency = weighted ? random.nextInt(70000) : 0;
+                // Upper case keys are read in lower case
+                final String typed = random.nextInt(20) == 0 ? key.toString().toUpperCase()
+                        : key.toString();
+                out.println(typed + " " + value + (weighted ? " " + frequency : ""));
+                add(seen, key.toString(), value, Math.min(frequency, 0xFFFF));
+                if (random.nextInt(30) == 0) {
+                    final int again = random.nextInt(70000);
+                    out.println(key + "\t" + value + " " + again);
+                    add(seen, key.toString(), value, Math.min(again, 0xFFFF));
+                }
+            }
+        }
+        out.println("%chardef end");
+        out.close();
+        Collections.sort(mItems, TABLE_ORDER);
+        for (Item item : mItems) {
+            for (int i = 1; i <= item.key.length(); i++) {
+                mPrefixes.add(item.key.substring(0, i));
+            }
+        }
+    }
+
+    // A candidate listed twice keeps its first position and highest frequency
+    private void add(HashMap<String, Item> seen, String key, String value, int frequency) {
+        final Item item = seen.get(key + ' ' + value);
+        if (item != null) {
+            item.frequency = Math.max(item.frequency, frequency);
+            return;
+        }
+        final Item added = new Item(key, value, frequency, mItems.size());
+        mItems.add(added);
+        seen.put(key + ' ' + value, added);
+    }
+
+    /**
+     * Writes the items in the original format: a count, then 5-byte keys
+     * padded with spaces and the offsets of their lines, then the lines.
+     */
+    void writeV1(String filename) throws IOException {
+        final ByteArrayOutputStream values = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(filename));
+        try {
+            out.writeInt(mItems.size());
+            for (Item item : mItems) {
+                for (int i = 0; i < V1_KEY_SIZE; i++) {
+                    out.writeByte(i < item.key.length() ? item.key.charAt(i) : ' ');
+                }
+                out.writeInt(values.size());
+                values.write(item.value.getBytes("UTF-8"));
+                values.write('\n');
+            }
+            values.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    static WordComposer compose(String keys) {
+        final WordComposer composer = new WordComposer();
+        for (int i = 0; i < keys.length(); i++) {
+            composer.add(keys.charAt(i), new int[] { keys.charAt(i) });
+        }
+        return composer;
+    }
+
+    static List<String> getWords(Dictionary dictionary, String keys, int start, int count) {
+        final ArrayList<String> words = new ArrayList<String>();
+        dictionary.getWords(compose(keys), new Dictionary.WordCallback() {
+            public boolean addWord(char[] word, int offset, int length, int frequency) {
+                words.add(new String(word, offset, length));
+                return true;
+            }
+        }, start, count);
+        return words;
+    }
+
+    /** The items whose key starts with prefix, in table order. */
+    List<Item> items(String prefix) {
+        final ArrayList<Item> items = new ArrayList<Item>();
+        for (Item item : mItems) {
+            if (item.key.startsWith(prefix)) items.add(item);
+        }
+        return items;
+    }
+
+    TreeSet<String> prefixes() {
+        return mPrefixes;
+    }
+
+    private List<String> expected(String prefix) {
+        final ArrayList<String> words = new ArrayList<String>();
+        for (Item item : mItems) {
+            if (item.key.startsWith(prefix)) words.add(item.value);
+        }
+        return words;
+    }
+
+    // Every prefix, typed in both directions so the ranges are narrowed and popped
+    void checkWords(CinDictionary v2, CinDictionary v1) {
+        final ArrayList<String> prefixes = new ArrayList<String>(mPrefixes);
+        for (int pass = 0; pass < 2; pass++) {
+            for (String prefix : prefixes) {
+                final List<String> expected = expected(prefix);
+                check(getWords(v2, prefix, 0, Integer.MAX_VALUE).equals(expected),
+                        "version 2 candidates of " + prefix);
+                check(getWords(v1, prefix, 0, Integer.MAX_VALUE).equals(expected),
+                        "version 1 candidates of " + prefix);
+                check(getWords(v2, prefix.toUpperCase(), 0, Integer.MAX_VALUE)
+                        .equals(expected), "upper case candidates of " + prefix);
+            }
+            Collections.reverse(prefixes);
+        }
+        check(getWords(v2, "abcdefghi", 0, Integer.MAX_VALUE).isEmpty(), "a key too long");
+        check(getWords(v1, "abcdef", 0, Integer.MAX_VALUE).isEmpty(), "a key too long");
+    }
+
+    // Pages of every size put together give all the candidates
+    void checkPages(CinDictionary dictionary) {
+        for (String prefix : new String[] { "a", "b", "q", "'" }) {
+            final List<String> expected = expected(prefix);
+            for (int size = 1; size <= 40; size += 13) {
+                final ArrayList<String> pages = new ArrayList<String>();
+                for (int start = 0; start < expected.size(); start += size) {
+                    pages.addAll(getWords(dictionary, prefix, start, size));
+                }
+                check(pages.equals(expected), "pages of " + size + " for " + prefix);
+            }
+        }
+    }
+
+    /**
+     * Matches wildcard patterns made from the keys against both tables. '?'
+     * stands for one key and '*' for any number of them, so neither may
+     * match the spaces a version 1 key is padded with.
+     */
+    void checkWildcards(CinDictionary v2, CinDictionary v1) {
+        final ArrayList<String> patterns = new ArrayList<String>();
+        final String[] fixed = { "?", "*", "??", "?????", "??????", "a*", "*a", "*a*b",
+                "a?", "a??", "?a*", "a*?", "**a" };
+        Collections.addAll(patterns, fixed);
+        final Random random = new Random(1);
+        final ArrayList<String> prefixes = new ArrayList<String>(mPrefixes);
+        for (int i = 0; i < 400; i++) {
+            final StringBuilder pattern = new StringBuilder(
+                    prefixes.get(random.nextInt(prefixes.size())));
+            final int at = random.nextInt(pattern.length() + 1);
+            if (random.nextBoolean()) {
+                pattern.insert(at, '*');
+            } else if (at < pattern.length()) {
+                pattern.setCharAt(at, '?');
+            } else {
+                pattern.append('?');
+            }
+            patterns.add(pattern.toString());
+        }
+        for (String pattern : patterns) {
+            final StringBuilder regex = new StringBuilder();
+            for (int i = 0; i < pattern.length(); i++) {
+                final char c = pattern.charAt(i);
+                regex.append(c == '?' ? "." : c == '*' ? ".*" : Pattern.quote("" + c));
+            }
+            final Pattern glob = Pattern.compile(regex.toString());
+            final ArrayList<String> expected = new ArrayList<String>();
+            for (Item item : mItems) {
+                if (expected.size() < MAX_WILDCARD_MATCHES
+                        && glob.matcher(item.key).lookingAt()) {
+                    expected.add(item.value);
+                }
+            }
+            check(getWords(v2, pattern, 0, Integer.MAX_VALUE).equals(expected),
+                    "version 2 candidates of " + pattern);
+            check(getWords(v1, pattern, 0, Integer.MAX_VALUE).equals(expected),
+                    "version 1 candidates of " + pattern);
+        }
+    }
+
+    /**
+     * Types every prefix and a few wildcard patterns from several threads at
+     * once against one dictionary, each thread in its own order.
+     */
+    void checkThreads(final CinDictionary dictionary) {
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long seed = t;
+            threads[t] = new Thread() {
+                @Override public void run() {
+                    final ArrayList<String> prefixes = new ArrayList<String>(mPrefixes);
+                    Collections.shuffle(prefixes, new Random(seed));
+                    for (String prefix : prefixes) {
+                        final String query = prefix.length() > 1 && prefix.hashCode() % 4 == 0
+                                ? "?" + prefix.substring(1) : prefix;
+                        final ArrayList<String> expected = new ArrayList<String>();
+                        for (Item item : mItems) {
+                            if (item.key.length() >= query.length()
+                                    && item.key.startsWith(query.substring(1), 1)
+                                    && (query.charAt(0) == '?'
+                                            || item.key.charAt(0) == query.charAt(0))) {
+                                expected.add(item.value);
+                            }
+                        }
+                        if (expected.size() > MAX_WILDCARD_MATCHES) continue;
+                        if (!getWords(dictionary, query, 0, Integer.MAX_VALUE)
+                                .equals(expected)) {
+                            failure.compareAndSet(null, "candidates of " + query
+                                    + " from several threads");
+                            return;
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+        check(failure.get() == null, failure.get());
+    }
+
+    /**
+     * Picks candidates of a short prefix, mostly from longer keys, and
+     * checks that the most picked ones come first. Once every slot of the
+     * key is taken, a new candidate keeps counting until it ties with the
+     * rarest one kept.
+     */
+    void checkPicks(CinDictionary dictionary, File log) {
+        log.delete();
+        final CinFrequencyStore store = new CinFrequencyStore(log);
+        dictionary.setFrequencyStore(store);
+        final String prefix = "a";
+        final ArrayList<String> values = new ArrayList<String>();
+        for (String value : expected(prefix)) {
+            if (!values.contains(value)) values.add(value);
+        }
+        check(values.size() > CinFrequencyStore.MAX_WORDS_PER_KEY + 1, "candidates of " + prefix);
+
+        final ArrayList<String> picked = new ArrayList<String>();
+        for (int i = 1; i <= CinFrequencyStore.MAX_WORDS_PER_KEY; i++) {
+            pick(store, prefix, values.get(i), 2);
+            picked.add(values.get(i));
+        }
+        checkPicked(dictionary, prefix, picked);
+        final String late = values.get(CinFrequencyStore.MAX_WORDS_PER_KEY + 1);
+        pick(store, prefix, late, 1);
+        checkPicked(dictionary, prefix, picked);
+        pick(store, prefix, late, 1);
+        picked.set(CinFrequencyStore.MAX_WORDS_PER_KEY - 1, late);
+        checkPicked(dictionary, prefix, picked);
+        // The candidate that fell out still has two picks
+        final String dropped = values.get(CinFrequencyStore.MAX_WORDS_PER_KEY);
+        pick(store, prefix, dropped, 1);
+        picked.remove(late);
+        picked.add(0, dropped);
+        checkPicked(dictionary, prefix, picked);
+
+        // Keys typed in upper case count whatever the locale, even under a Turkish one
+        final Locale locale = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            final String capital = "i";
+            final String value = expected(capital).get(1);
+            pick(store, capital.toUpperCase(Locale.ENGLISH), value, 1);
+            checkPicked(dictionary, capital, Collections.singletonList(value));
+        } finally {
+            Locale.setDefault(locale);
+        }
+
+        dictionary.setFrequencyStore(null);
+        store.close();
+    }
+
+    private static void pick(CinFrequencyStore store, String keys, String value, int times) {
+        for (int i = 0; i < times; i++) {
+            store.addSelection(keys, value);
+        }
+    }
+
+    // The picked candidates first, then the others in table order
+    private void checkPicked(CinDictionary dictionary, String prefix, List<String> picked) {
+        final ArrayList<String> expected = new ArrayList<String>(picked);
+        final ArrayList<String> rest = new ArrayList<String>(expected(prefix));
+        for (String value : picked) {
+            rest.remove(value);
+        }
+        expected.addAll(rest);
+        check(getWords(dictionary, prefix, 0, Integer.MAX_VALUE).equals(expected),
+                "picked candidates of " + prefix + " first");
+        check(getWords(dictionary, prefix, 5, 7).equals(expected.subList(5, 12)),
+                "a page of the picked candidates of " + prefix);
+    }
+
+    void checkCursor(CinDictionary dictionary, boolean frequencies) {
+        final CinDictionary.Cursor cursor = dictionary.newCursor();
+        for (String prefix : mPrefixes) {
+            final int count = cursor.open(prefix);
+            check(cursor.hasFrequencies() == frequencies, "frequencies of " + prefix);
+            int rank = 0;
+            for (Item item : mItems) {
+                if (!item.key.startsWith(prefix)) continue;
+                check(rank < count, "cursor of " + prefix + " ends early");
+                final int length = cursor.read(rank);
+                check(new String(cursor.getWord(), 0, length).equals(item.value),
+                        "cursor candidate " + rank + " of " + prefix);
+                check(cursor.getFrequency(rank) == (frequencies ? item.frequency : 0),
+                        "frequency of " + item.value + " for " + prefix);
+                rank++;
+            }
+            check(rank == count, "cursor of " + prefix + " has " + count + " candidates");
+        }
+        check(cursor.open("abcdefghi") == 0, "cursor of a key too long");
+    }
+
+    // A table whose body does not match its checksum is refused
+    static void checkCorruption(String filename, String corrupt) throws IOException {
+        final byte[] bytes = read(filename);
+        bytes[bytes.length - 2] ^= 1;
+        checkRefused(bytes, corrupt, "a corrupt table");
+    }
+
+    /**
+     * Points the last item of either version past the candidate lines, with
+     * a checksum that still matches, and cuts a table down to less than its
+     * first field. Each is refused when it is opened.
+     */
+    static void checkBadOffsets(String v2, String v1, String corrupt) throws IOException {
+        byte[] bytes = read(v2);
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        final int n = buffer.getInt(8);
+        final int valuesSize = bytes.length - buffer.getInt(24);
+        int pos = buffer.getInt(20);
+        for (int i = 0; i < n - 1; i++) {
+            pos += 1 + (bytes[pos] & 0xFF) + 2 + 4;
+        }
+        pos += 1 + (bytes[pos] & 0xFF) + 2;
+        buffer.putInt(pos, valuesSize);
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 32, bytes.length - 32);
+        buffer.putInt(28, (int) crc.getValue());
+        checkRefused(bytes, corrupt, "an offset past the candidates of version 2");
+
+        bytes = read(v1);
+        final int items = ByteBuffer.wrap(bytes).getInt(0);
+        ByteBuffer.wrap(bytes).putInt(4 + items * (V1_KEY_SIZE + 4) - 4, -1);
+        checkRefused(bytes, corrupt, "a negative offset of version 1");
+
+        checkRefused(new byte[] { 0, 0 }, corrupt, "a table of two bytes");
+    }
+
+    static byte[] read(String filename) throws IOException {
+        final File file = new File(filename);
+        final byte[] bytes = new byte[(int) file.length()];
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    static void write(byte[] bytes, String filename) throws IOException {
+        final FileOutputStream out = new FileOutputStream(filename);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void checkRefused(byte[] bytes, String filename, String what)
+            throws IOException {
+        write(bytes, filename);
+        try {
+            new CinDictionary(filename);
+        } catch (IOException e) {
+            return;
+        }
+        check(false, what + " was opened");
+    }
+}
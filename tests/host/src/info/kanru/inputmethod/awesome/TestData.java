@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2010 Kan-Ru Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package info.kanru.inputmethod.awesome;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Writes the word lists the host tests compile and replay, from a fixed seed so every run
+ * sees the same data:
+ * <pre>
+ * words.xml     the word list for makedict
+ * words.txt     the same words as "word frequency" lines, in UTF-8
+ * pairs.txt     "word next count" lines for the bigram section
+ * queries.txt   typed words, prefixes and typos, in ISO-8859-1 as dictbench reads them
+ * stored.txt    every stored word dictbench can type, to be looked up as a word
+ * </pre>
+ * Most words are made of syllables, so the trie shares prefixes and endings the way a real
+ * word list does. Some are capitalized, hold an apostrophe, or characters beyond Latin-1
+ * that the format has to escape; a few are too long to be stored; and a block of words
+ * starting with Cyrillic letters gives the root more children than a one byte count holds.
+ */
+public class TestData {
+
+    private static final String[] ONSETS = {
+        "", "", "b", "c", "d", "f", "g", "h", "j", "k", "l", "m", "n", "p", "qu", "r", "s",
+        "t", "v", "w", "x", "y", "z", "st", "tr", "ch", "sh", "th", "pl", "gr"
+    };
+    private static final String[] VOWELS = { "a", "e", "i", "o", "u", "ou", "ea", "y" };
+    private static final String[] CODAS = { "", "", "", "n", "r", "s", "t", "l", "ng", "ck" };
+    private static final String ACCENTED = "\u00e9\u00fc\u00e0\u00f6\u00e7";
+    private static final String BEYOND_LATIN1 = "\u0142\u0151\u0107";
+    private static final String[] KEYBOARD_ROWS = { "qwertyuiop", "asdfghjkl", "zxcvbnm" };
+
+    static final int WORDS = 12000;
+    static final int QUERIES = 3000;
+    static final int BIGRAM_WORDS = 800;
+
+    private final Random mRandom = new Random(20101016);
+    private final LinkedHashMap<String, Integer> mWords = new LinkedHashMap<String, Integer>();
+    private final ArrayList<String> mPlain = new ArrayList<String>();
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: TestData <output directory>");
+            System.exit(2);
+        }
+        final TestData data = new TestData();
+        data.generate();
+        data.write(args[0]);
+    }
+
+    /** Reads words.txt back, in the order it was written. */
+    static LinkedHashMap<String, Integer> readWords(String dir) throws IOException {
+        final LinkedHashMap<String, Integer> words = new LinkedHashMap<String, Integer>();
+        final BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(dir + "/words.txt"), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                final int space = line.lastIndexOf(' ');
+                words.put(line.substring(0, space), Integer.parseInt(line.substring(space + 1)));
+            }
+        } finally {
+            in.close();
+        }
+        return words;
+    }
+
+    private String pick(String[] parts) {
+        return parts[mRandom.nextInt(parts.length)];
+    }
+
+    private String syllables(int count) {
+        final StringBuilder word = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            word.append(pick(ONSETS)).append(pick(VOWELS)).append(pick(CODAS));
+        }
+        return word.toString();
+    }
+
+    // Frequent words are few, as in a real list
+    private int frequency() {
+        final double r = mRandom.nextDouble();
+        return (int) (255 * r * r * r);
+    }
+
+    private void add(String word) {
+        if (word.length() == 0 || mWords.containsKey(word)) return;
+        mWords.put(word, frequency());
+        if (word.length() < JavaBinaryDictionary.MAX_WORD_LENGTH) {
+            boolean plain = true;
+            for (int i = 0; i < word.length(); i++) {
+                plain &= word.charAt(i) >= 'a' && word.charAt(i) <= 'z';
+            }
+            if (plain) mPlain.add(word);
+        }
+    }
+
+    void generate() {
+        while (mWords.size() < WORDS) {
+            String word = syllables(1 + mRandom.nextInt(4));
+            final int kind = mRandom.nextInt(100);
+            if (kind < 3) {
+                word = Character.toUpperCase(word.charAt(0)) + word.substring(1);
+            } else if (kind < 5) {
+                word = word + "'s";
+            } else if (kind < 8) {
+                final int i = mRandom.nextInt(word.length());
+                word = word.substring(0, i) + ACCENTED.charAt(mRandom.nextInt(ACCENTED.length()))
+                        + word.substring(i + 1);
+            } else if (kind < 9) {
+                final int i = mRandom.nextInt(word.length());
+                word = word.substring(0, i)
+                        + BEYOND_LATIN1.charAt(mRandom.nextInt(BEYOND_LATIN1.length()))
+                        + word.substring(i + 1);
+            }
+            add(word);
+        }
+        for (int i = 0; i < 200; i++) {
+            add((char) (0x0410 + i) + syllables(1));
+        }
+        for (int i = 0; i < 3; i++) {
+            add(syllables(20));
+        }
+    }
+
+    private char neighbour(char c) {
+        for (String row : KEYBOARD_ROWS) {
+            final int i = row.indexOf(c);
+            if (i < 0) continue;
+            return row.charAt(i > 0 ? i - 1 : i + 1);
+        }
+        return c;
+    }
+
+    // A typed word, a prefix of one, a word with one typo, or letters at random
+    private String query() {
+        final String word = mPlain.get(mRandom.nextInt(mPlain.size()));
+        final int length = word.length();
+        final int i = mRandom.nextInt(length);
+        switch (mRandom.nextInt(7)) {
+        case 0:
+            return word;
+        case 1:
+            return word.substring(0, 1 + mRandom.nextInt(length));
+        case 2:
+            return word.substring(0, i) + neighbour(word.charAt(i)) + word.substring(i + 1);
+        case 3:
+            return length > 1 ? word.substring(0, i) + word.substring(i + 1) : word;
+        case 4:
+            return word.substring(0, i) + (char) ('a' + mRandom.nextInt(26)) + word.substring(i);
+        case 5:
+            return i + 1 < length ? word.substring(0, i) + word.charAt(i + 1) + word.charAt(i)
+                    + word.substring(i + 2) : word;
+        default:
+            final StringBuilder letters = new StringBuilder();
+            for (int n = 2 + mRandom.nextInt(7); n > 0; n--) {
+                letters.append((char) ('a' + mRandom.nextInt(26)));
+            }
+            return letters.toString();
+        }
+    }
+
+    void write(String dir) throws IOException {
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(dir + "/words.xml"), "UTF-8"));
+        out.println("<wordlist>");
+        for (Map.Entry<String, Integer> word : mWords.entrySet()) {
+            out.println("  <w f=\"" + word.getValue() + "\">" + word.getKey() + "</w>");
+        }
+        out.println("</wordlist>");
+        out.close();
+
+        out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(dir + "/words.txt"), "UTF-8"));
+        for (Map.Entry<String, Integer> word : mWords.entrySet()) {
+            out.println(word.getKey() + " " + word.getValue());
+        }
+        out.close();
+
+        out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(dir + "/pairs.txt"), "UTF-8"));
+        for (int i = 0; i < BIGRAM_WORDS; i++) {
+            final String word = mPlain.get(i);
+            for (int n = 1 + mRandom.nextInt(12); n > 0; n--) {
+                out.println(word + " " + mPlain.get(mRandom.nextInt(mPlain.size())) + " "
+                        + (1 + mRandom.nextInt(1000)));
+            }
+        }
+        out.close();
+
+        // The words with bigrams come first, so -b predicts something for them
+        out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(dir + "/queries.txt"), "ISO-8859-1"));
+        for (int i = 0; i < QUERIES; i++) {
+            out.println(i < BIGRAM_WORDS / 4 ? mPlain.get(i * 4) : query());
+        }
+        out.close();
+
+        // Words are looked up in lower case, and dictbench types single bytes
+        out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(dir + "/stored.txt"), "ISO-8859-1"));
+        for (String word : mWords.keySet()) {
+            if (word.length() >= JavaBinaryDictionary.MAX_WORD_LENGTH
+                    || !word.equals(word.toLowerCase())) {
+                continue;
+            }
+            boolean latin1 = true;
+            for (int i = 0; i < word.length(); i++) {
+                latin1 &= word.charAt(i) <= 0xFF;
+            }
+            if (latin1) out.println(word);
+        }
+        out.close();
+    }
+}
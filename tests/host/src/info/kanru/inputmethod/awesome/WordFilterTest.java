@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2010 Kan-Ru Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package info.kanru.inputmethod.awesome;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks that a WordFilter never turns down a word it holds, and lets few others through
+ * while it is filled to capacity. That the native dictionary fills it the same way is
+ * checked by comparing dictbench and dictbench.jar on every stored word.
+ */
+public class WordFilterTest {
+
+    public static void main(String[] args) throws IOException {
+        final Set<String> words = TestData.readWords(args[0]).keySet();
+        final WordFilter filter = new WordFilter(words.size());
+        for (String word : words) {
+            filter.add(word);
+        }
+        for (String word : words) {
+            BinaryDictionaryTest.check(filter.mightContain(word), word + " turned down");
+        }
+
+        // About one in a hundred at capacity; twice that would mean a broken hash
+        final Random random = new Random(1);
+        final StringBuilder word = new StringBuilder();
+        int tried = 0;
+        int passed = 0;
+        while (tried < 100000) {
+            word.setLength(0);
+            for (int n = 3 + random.nextInt(8); n > 0; n--) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            if (words.contains(word.toString())) continue;
+            tried++;
+            if (filter.mightContain(word)) passed++;
+        }
+        BinaryDictionaryTest.check(passed < tried / 50, passed + " of " + tried
+                + " unknown words got through");
+
+        // A dictionary without words still gets a working filter
+        final WordFilter empty = new WordFilter(0);
+        BinaryDictionaryTest.check(empty.getCapacity() == 1 && !empty.mightContain("a"),
+                "an empty filter");
+
+        System.out.println("WordFilterTest: " + words.size() + " words, " + passed + " of "
+                + tried + " unknown words got through");
+    }
+}
@@ -0,0 +1,26 @@
+LOCAL_PATH := $(call my-dir)
+include $(CLEAR_VARS)
+
+LOCAL_SRC_FILES := \
+	../../jni/dictionary.cpp \
+	src/dictbench.cpp
+LOCAL_C_INCLUDES := $(LOCAL_PATH)/../../jni
+LOCAL_LDLIBS := -lz -lpthread
+LOCAL_MODULE := dictbench
+
+include $(BUILD_HOST_EXECUTABLE)
+
+include $(CLEAR_VARS)
+
+LOCAL_SRC_FILES := \
+	$(call all-java-files-under,src) \
+	../../src/info/kanru/inputmethod/awesome/BaseChars.java \
+	../../src/info/kanru/inputmethod/awesome/Dictionary.java \
+	../../src/info/kanru/inputmethod/awesome/JavaBinaryDictionary.java \
+	../../src/info/kanru/inputmethod/awesome/TableChecksum.java \
+	../../src/info/kanru/inputmethod/awesome/WordComposer.java \
+	../../src/info/kanru/inputmethod/awesome/WordFilter.java
+LOCAL_JAR_MANIFEST := etc/manifest.txt
+LOCAL_MODULE := dictbench-java
+
+include $(BUILD_HOST_JAVA_LIBRARY)
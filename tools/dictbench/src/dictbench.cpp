@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2010 Kan-Ru Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+/*
+ * Replays a word list against Dictionary::getSuggestions on the host and
+ * reports per-query latency percentiles and the trie nodes visited, so the
+ * suggestion engine can be profiled with perf or run under sanitizers without
+ * a device. Each line of the word list is typed as one query; anything after
+ * the first blank on a line is ignored. With -j, threads then replay the list
+ * at once against the same Dictionary, each with its own SearchContext, and
+ * every result is checked against the single threaded one; build with
+ * SANITIZE=thread to have the sharing checked too. With -b, the words the
+ * dictionary predicts to follow each word of the list are looked up and timed
+ * as well. With -v, every query is also looked up as a word, through a Bloom
+ * filter filled the way BinaryDictionary fills its WordFilter.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <time.h>
+#include <unistd.h>
+#include <pthread.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+
+#include <algorithm>
+#include <string>
+#include <vector>
+
+#include "dictionary.h"
+
+using namespace awesomeime;
+
+// The same limits and multipliers as BinaryDictionary and Suggest
+#define MAX_WORD_LENGTH 48
+#define MAX_ALTERNATIVES 16
+#define MAX_WORDS 16
+#define TYPED_LETTER_MULTIPLIER 2
+#define FULL_WORD_FREQ_MULTIPLIER 2
+#define MIN_SUGGESTIONS 5
+// The same as WordFilter
+#define WORD_FILTER_HASHES 7
+#define WORD_FILTER_BITS_PER_WORD 10
+
+static const char *KEYBOARD_ROWS[] = { "qwertyuiop", "asdfghjkl", "zxcvbnm" };
+
+static void
+usage(const char *name)
+{
+    fprintf(stderr,
+            "usage: %s [-n rounds] [-j threads] [-b] [-k] [-s] [-v] dictionary wordlist\n"
+            "  -n rounds  replay the word list this many times (default 10)\n"
+            "  -j threads then replay it from this many threads at once\n"
+            "  -b         also look up the words predicted to follow every word\n"
+            "  -k         offer the neighbouring keys as alternatives, like touch input\n"
+            "  -s         do not look for words with a missed, extra or swapped character\n"
+            "  -v         print the suggestions of every query once, and if it is a word\n", name);
+    exit(2);
+}
+
+static long long
+now()
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+// Fills the alternatives of one typed character, terminated like BinaryDictionary does
+static void
+fillCodes(int *codes, unsigned char c, bool neighbours)
+{
+    int n = 0;
+    codes[n++] = c;
+    if (neighbours) {
+        for (int r = 0; r < 3; r++) {
+            const char *p = strchr(KEYBOARD_ROWS[r], c);
+            if (p == NULL) continue;
+            int i = p - KEYBOARD_ROWS[r];
+            if (i > 0) codes[n++] = KEYBOARD_ROWS[r][i - 1];
+            if (KEYBOARD_ROWS[r][i + 1]) codes[n++] = KEYBOARD_ROWS[r][i + 1];
+        }
+    }
+    codes[n] = -1;
+}
+
+static void
+fillQuery(int *codes, const std::string &query, bool neighbours)
+{
+    for (size_t i = 0; i < query.size(); i++) {
+        fillCodes(codes + i * MAX_ALTERNATIVES, query[i], neighbours);
+    }
+}
+
+static void
+putUtf8(unsigned short c)
+{
+    if (c < 0x80) {
+        putchar(c);
+    } else if (c < 0x800) {
+        putchar(0xC0 | (c >> 6));
+        putchar(0x80 | (c & 0x3F));
+    } else {
+        putchar(0xE0 | (c >> 12));
+        putchar(0x80 | ((c >> 6) & 0x3F));
+        putchar(0x80 | (c & 0x3F));
+    }
+}
+
+// Prints a query, whose bytes were typed as characters, as UTF-8
+static void
+printQuery(const std::string &query, const char *mark)
+{
+    for (size_t i = 0; i < query.size(); i++) {
+        putUtf8((unsigned char) query[i]);
+    }
+    printf("%s", mark);
+}
+
+// Prints the words of one result after the query, as UTF-8
+static void
+printWords(const std::string &query, const char *mark, const unsigned short *outputChars,
+        const int *frequencies, int count)
+{
+    printQuery(query, mark);
+    for (int j = 0; j < count; j++) {
+        printf(" ");
+        for (const unsigned short *p = outputChars + j * MAX_WORD_LENGTH; *p; p++) {
+            putUtf8(*p);
+        }
+        printf("/%d", frequencies[j]);
+    }
+    printf("\n");
+}
+
+// Checks a word against a filter from Dictionary::fillWordFilter, as WordFilter.mightContain does
+static bool
+mightContain(const unsigned long long *bits, int bitCount, const unsigned short *word,
+        int length)
+{
+    unsigned long long hash = 0xcbf29ce484222325ULL;
+    for (int i = 0; i < length; i++) {
+        hash ^= word[i];
+        hash *= 0x100000001b3ULL;
+    }
+    unsigned int h1 = (unsigned int) hash;
+    unsigned int h2 = (unsigned int) (hash >> 32) | 1;
+    for (int i = 0; i < WORD_FILTER_HASHES; i++) {
+        unsigned int bit = (h1 + i * h2) % (unsigned int) bitCount;
+        if (!(bits[bit >> 6] & (1ULL << (bit & 63)))) return false;
+    }
+    return true;
+}
+
+// The suggestions of one query as the single threaded replay found them
+struct Result {
+    std::vector<int> frequencies;
+    std::vector<std::basic_string<unsigned short> > words;
+};
+
+static void
+saveResult(Result *result, const unsigned short *outputChars, const int *frequencies, int count)
+{
+    result->frequencies.assign(frequencies, frequencies + count);
+    result->words.clear();
+    for (int j = 0; j < count; j++) {
+        result->words.push_back(outputChars + j * MAX_WORD_LENGTH);
+    }
+}
+
+static bool
+sameResult(const Result &result, const unsigned short *outputChars, const int *frequencies,
+        int count)
+{
+    if (count != (int) result.frequencies.size()) return false;
+    for (int j = 0; j < count; j++) {
+        if (frequencies[j] != result.frequencies[j]
+                || result.words[j] != outputChars + j * MAX_WORD_LENGTH) {
+            return false;
+        }
+    }
+    return true;
+}
+
+// One thread of -j. The dictionary and the queries are shared, everything a search writes is not.
+struct Worker {
+    pthread_t thread;
+    const Dictionary *dictionary;
+    const std::vector<std::string> *queries;
+    const std::vector<Result> *expected;
+    bool neighbours;
+    int minWords;
+    int rounds;
+    int mismatches;
+};
+
+static void *
+runWorker(void *arg)
+{
+    Worker *worker = (Worker*) arg;
+    SearchContext context;
+    int codes[MAX_WORD_LENGTH * MAX_ALTERNATIVES];
+    unsigned short outputChars[MAX_WORD_LENGTH * MAX_WORDS];
+    int frequencies[MAX_WORDS];
+    for (int round = 0; round < worker->rounds; round++) {
+        for (size_t q = 0; q < worker->queries->size(); q++) {
+            const std::string &query = (*worker->queries)[q];
+            fillQuery(codes, query, worker->neighbours);
+            int count = worker->dictionary->getSuggestions(&context, codes, query.size(),
+                    outputChars, frequencies, MAX_WORD_LENGTH, MAX_WORDS, MAX_ALTERNATIVES,
+                    worker->minWords);
+            if (!sameResult((*worker->expected)[q], outputChars, frequencies, count)) {
+                worker->mismatches++;
+            }
+        }
+    }
+    return NULL;
+}
+
+template <typename T> static T
+percentile(const std::vector<T> &sorted, int p)
+{
+    if (sorted.empty()) return 0;
+    size_t i = (sorted.size() * p + 99) / 100;
+    return sorted[i > 0 ? i - 1 : 0];
+}
+
+int
+main(int argc, char **argv)
+{
+    int rounds = 10;
+    int threads = 0;
+    bool bigrams = false;
+    bool neighbours = false;
+    bool verbose = false;
+    int minWords = MIN_SUGGESTIONS;
+    int opt;
+    while ((opt = getopt(argc, argv, "n:j:bksv")) != -1) {
+        switch (opt) {
+        case 'n': rounds = atoi(optarg); break;
+        case 'j': threads = atoi(optarg); break;
+        case 'b': bigrams = true; break;
+        case 'k': neighbours = true; break;
+        case 's': minWords = 0; break;
+        case 'v': verbose = true; break;
+        default: usage(argv[0]);
+        }
+    }
+    if (argc - optind != 2 || rounds < 1 || threads < 0) usage(argv[0]);
+
+    int fd = open(argv[optind], O_RDONLY);
+    if (fd < 0) {
+        fprintf(stderr, "Cannot open %s: %s\n", argv[optind], strerror(errno));
+        return 1;
+    }
+    struct stat st;
+    fstat(fd, &st);
+    void *dict = mmap(NULL, st.st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+    close(fd);
+    if (dict == MAP_FAILED) {
+        fprintf(stderr, "Cannot map %s: %s\n", argv[optind], strerror(errno));
+        return 1;
+    }
+    Dictionary dictionary(dict, st.st_size, TYPED_LETTER_MULTIPLIER, FULL_WORD_FREQ_MULTIPLIER);
+    if (!dictionary.isValid()) {
+        fprintf(stderr, "Not a usable dictionary: %s\n", argv[optind]);
+        return 1;
+    }
+
+    FILE *list = fopen(argv[optind + 1], "r");
+    if (list == NULL) {
+        fprintf(stderr, "Cannot open %s: %s\n", argv[optind + 1], strerror(errno));
+        return 1;
+    }
+    std::vector<std::string> queries;
+    char line[1024];
+    while (fgets(line, sizeof(line), list)) {
+        size_t n = strcspn(line, " \t\r\n");
+        if (n > 0 && n < MAX_WORD_LENGTH) queries.push_back(std::string(line, n));
+    }
+    fclose(list);
+    if (queries.empty()) {
+        fprintf(stderr, "No queries in %s\n", argv[optind + 1]);
+        return 1;
+    }
+
+    // Sized like the WordFilter of BinaryDictionary, from the number of words
+    int filterWords = dictionary.fillWordFilter(NULL, 0, WORD_FILTER_HASHES, MAX_WORD_LENGTH);
+    std::vector<unsigned long long> filter(
+            ((long long) std::max(filterWords, 1) * WORD_FILTER_BITS_PER_WORD + 63) / 64);
+    int filterBits = filter.size() * 64;
+    dictionary.fillWordFilter(&filter[0], filterBits, WORD_FILTER_HASHES, MAX_WORD_LENGTH);
+
+    SearchContext context;
+    std::vector<Result> expected(queries.size());
+    static int codes[MAX_WORD_LENGTH * MAX_ALTERNATIVES];
+    static unsigned short outputChars[MAX_WORD_LENGTH * MAX_WORDS];
+    static int frequencies[MAX_WORDS];
+    static unsigned short previousWord[MAX_WORD_LENGTH];
+    std::vector<long long> latencies;
+    std::vector<long long> bigramLatencies;
+    std::vector<int> nodes;
+    latencies.reserve(queries.size() * rounds);
+    nodes.reserve(queries.size() * rounds);
+    long long suggestions = 0;
+    long long predictions = 0;
+
+    // One untimed round warms the caches and prints the suggestions if asked
+    for (int round = -1; round < rounds; round++) {
+        for (size_t q = 0; q < queries.size(); q++) {
+            const std::string &query = queries[q];
+            fillQuery(codes, query, neighbours);
+            long long start = now();
+            int count = dictionary.getSuggestions(&context, codes, query.size(), outputChars,
+                    frequencies, MAX_WORD_LENGTH, MAX_WORDS, MAX_ALTERNATIVES, minWords);
+            long long elapsed = now() - start;
+            if (round < 0) {
+                saveResult(&expected[q], outputChars, frequencies, count);
+                if (verbose) {
+                    printWords(query, ":", outputChars, frequencies, count);
+                    for (size_t i = 0; i < query.size(); i++) {
+                        previousWord[i] = (unsigned char) query[i];
+                    }
+                    bool valid = mightContain(&filter[0], filterBits, previousWord, query.size())
+                            && dictionary.isValidWord(previousWord, query.size());
+                    printQuery(query, valid ? "? yes\n" : "? no\n");
+                }
+            } else {
+                latencies.push_back(elapsed);
+                nodes.push_back(context.getNodesVisited());
+                suggestions += count;
+            }
+            if (!bigrams) continue;
+
+            for (size_t i = 0; i < query.size(); i++) {
+                previousWord[i] = (unsigned char) query[i];
+            }
+            start = now();
+            count = dictionary.getBigrams(previousWord, query.size(), outputChars, frequencies,
+                    MAX_WORD_LENGTH, MAX_WORDS);
+            elapsed = now() - start;
+            if (round < 0) {
+                if (verbose) {
+                    printWords(query, ">", outputChars, frequencies, count);
+                }
+            } else {
+                bigramLatencies.push_back(elapsed);
+                predictions += count;
+            }
+        }
+    }
+
+    long long total = 0;
+    long long totalNodes = 0;
+    for (size_t i = 0; i < latencies.size(); i++) {
+        total += latencies[i];
+        totalNodes += nodes[i];
+    }
+    std::sort(latencies.begin(), latencies.end());
+    std::sort(nodes.begin(), nodes.end());
+    size_t n = latencies.size();
+
+    fprintf(stderr, "dictionary: %s, format %d, %d nodes, %ld bytes\n", argv[optind],
+            dictionary.getFormat(), dictionary.getNodeCount(), (long) st.st_size);
+    fprintf(stderr, "queries: %u x %d rounds, %.2f suggestions per query\n",
+            (unsigned) queries.size(), rounds, (double) suggestions / n);
+    fprintf(stderr, "latency us: mean %.1f  p50 %.1f  p90 %.1f  p99 %.1f  max %.1f\n",
+            total / 1000.0 / n, percentile(latencies, 50) / 1000.0,
+            percentile(latencies, 90) / 1000.0, percentile(latencies, 99) / 1000.0,
+            latencies[n - 1] / 1000.0);
+    fprintf(stderr, "nodes visited: mean %.0f  p50 %d  p90 %d  p99 %d  max %d\n",
+            (double) totalNodes / n, percentile(nodes, 50), percentile(nodes, 90),
+            percentile(nodes, 99), nodes[n - 1]);
+    if (bigrams) {
+        long long bigramTotal = 0;
+        for (size_t i = 0; i < n; i++) {
+            bigramTotal += bigramLatencies[i];
+        }
+        std::sort(bigramLatencies.begin(), bigramLatencies.end());
+        fprintf(stderr, "bigrams: %d words, %.2f predictions per word\n",
+                dictionary.getBigramCount(), (double) predictions / n);
+        fprintf(stderr, "bigram latency us: mean %.2f  p50 %.2f  p99 %.2f  max %.2f\n",
+                bigramTotal / 1000.0 / n, percentile(bigramLatencies, 50) / 1000.0,
+                percentile(bigramLatencies, 99) / 1000.0, bigramLatencies[n - 1] / 1000.0);
+    }
+
+    int mismatches = 0;
+    if (threads > 0) {
+        std::vector<Worker> workers(threads);
+        long long start = now();
+        for (int t = 0; t < threads; t++) {
+            Worker *worker = &workers[t];
+            worker->dictionary = &dictionary;
+            worker->queries = &queries;
+            worker->expected = &expected;
+            worker->neighbours = neighbours;
+            worker->minWords = minWords;
+            worker->rounds = rounds;
+            worker->mismatches = 0;
+            if (pthread_create(&worker->thread, NULL, runWorker, worker) != 0) {
+                fprintf(stderr, "Cannot start thread %d\n", t);
+                return 1;
+            }
+        }
+        for (int t = 0; t < threads; t++) {
+            pthread_join(workers[t].thread, NULL);
+            mismatches += workers[t].mismatches;
+        }
+        long long elapsed = now() - start;
+        fprintf(stderr, "%d threads: %.0f queries per second, %d results differ\n", threads,
+                (double) n * threads * 1e9 / elapsed, mismatches);
+    }
+
+    munmap(dict, st.st_size);
+    return mismatches > 0 ? 1 : 0;
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2010 Kan-Ru Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package info.kanru.inputmethod.awesome.tools;
+
+import info.kanru.inputmethod.awesome.Dictionary;
+import info.kanru.inputmethod.awesome.JavaBinaryDictionary;
+import info.kanru.inputmethod.awesome.WordComposer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The Java counterpart of dictbench: replays a word list against
+ * JavaBinaryDictionary and reports the same latency percentiles and nodes
+ * visited. With -v it prints the suggestions exactly as dictbench -v does, so
+ * the two engines can be checked against each other with diff, along with
+ * whether each query is a word. With -b it looks
+ * up and times the words predicted to follow each word of the list as well.
+ */
+public class DictBench {
+
+    private static final String[] KEYBOARD_ROWS = { "qwertyuiop", "asdfghjkl", "zxcvbnm" };
+
+    private static void usage() {
+        System.err.println(
+                "Usage: dictbench.jar [-n rounds] [-b] [-k] [-v] <dictionary> <wordlist>");
+        System.err.println("  -n rounds  replay the word list this many times (default 10)");
+        System.err.println("  -b         also look up the words predicted to follow every word");
+        System.err.println("  -k         offer the neighbouring keys as alternatives");
+        System.err.println(
+                "  -v         print the suggestions of every query once, and if it is a word");
+        System.exit(2);
+    }
+
+    // The typed character first, then its neighbours if asked, as dictbench offers them
+    private static int[] codes(char c, boolean neighbours) {
+        final int[] codes = new int[5];
+        int n = 0;
+        codes[n++] = c;
+        if (neighbours) {
+            for (String row : KEYBOARD_ROWS) {
+                final int i = row.indexOf(c);
+                if (i < 0) continue;
+                if (i > 0) codes[n++] = row.charAt(i - 1);
+                if (i + 1 < row.length()) codes[n++] = row.charAt(i + 1);
+            }
+        }
+        return Arrays.copyOf(codes, n);
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        final int i = (sorted.length * p + 99) / 100;
+        return sorted[i > 0 ? i - 1 : 0];
+    }
+
+    public static void main(String[] args) throws IOException {
+        int rounds = 10;
+        boolean bigrams = false;
+        boolean neighbours = false;
+        boolean verbose = false;
+        int arg = 0;
+        for (; arg < args.length && args[arg].startsWith("-"); arg++) {
+            if (args[arg].equals("-n") && arg + 1 < args.length) {
+                rounds = Integer.parseInt(args[++arg]);
+            } else if (args[arg].equals("-b")) {
+                bigrams = true;
+            } else if (args[arg].equals("-k")) {
+                neighbours = true;
+            } else if (args[arg].equals("-v")) {
+                verbose = true;
+            } else {
+                usage();
+            }
+        }
+        if (args.length - arg != 2 || rounds < 1) usage();
+
+        final File file = new File(args[arg]);
+        JavaBinaryDictionary dictionary = null;
+        try {
+            dictionary = new JavaBinaryDictionary(file.getPath(), 0, file.length());
+        } catch (IOException e) {
+            System.err.println("Not a usable dictionary: " + file + ": " + e.getMessage());
+            System.exit(1);
+        }
+
+        // Bytes are read as Latin-1 to type the same characters as dictbench
+        final ArrayList<WordComposer> queries = new ArrayList<WordComposer>();
+        final BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(args[arg + 1]), "ISO-8859-1"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int n = 0;
+                while (n < line.length() && " \t\r".indexOf(line.charAt(n)) < 0) n++;
+                if (n == 0 || n >= JavaBinaryDictionary.MAX_WORD_LENGTH) continue;
+                final WordComposer query = new WordComposer();
+                for (int i = 0; i < n; i++) {
+                    query.add(line.charAt(i), codes(line.charAt(i), neighbours));
+                }
+                queries.add(query);
+            }
+        } finally {
+            in.close();
+        }
+        if (queries.isEmpty()) {
+            System.err.println("No queries in " + args[arg + 1]);
+            System.exit(1);
+        }
+
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, "UTF-8"));
+        final int[] found = new int[1];
+        final Dictionary.WordCallback counter = new Dictionary.WordCallback() {
+            public boolean addWord(char[] word, int wordOffset, int wordLength, int frequency) {
+                found[0]++;
+                return true;
+            }
+        };
+        final Dictionary.WordCallback printer = new Dictionary.WordCallback() {
+            public boolean addWord(char[] word, int wordOffset, int wordLength, int frequency) {
+                out.print(' ');
+                out.write(word, wordOffset, wordLength);
+                out.print("/" + frequency);
+                return true;
+            }
+        };
+
+        final int total = queries.size() * rounds;
+        final long[] latencies = new long[total];
+        final long[] nodes = new long[total];
+        final long[] bigramLatencies = new long[total];
+        long suggestions = 0;
+        long predictions = 0;
+        // One untimed round warms up the JIT and prints the suggestions if asked
+        for (int round = -1; round < rounds; round++) {
+            for (int q = 0; q < queries.size(); q++) {
+                final WordComposer query = queries.get(q);
+                final CharSequence word = query.getTypedWord();
+                if (round < 0) {
+                    if (verbose) {
+                        out.print(word + ":");
+                        dictionary.getWords(query, printer);
+                        out.println();
+                        out.println(word + "? "
+                                + (dictionary.isValidWord(word) ? "yes" : "no"));
+                        if (bigrams) {
+                            out.print(word + ">");
+                            dictionary.getBigrams(word, printer);
+                            out.println();
+                        }
+                    } else {
+                        dictionary.getWords(query, counter);
+                        if (bigrams) dictionary.getBigrams(word, counter);
+                    }
+                    continue;
+                }
+                found[0] = 0;
+                long start = System.nanoTime();
+                dictionary.getWords(query, counter);
+                long elapsed = System.nanoTime() - start;
+                final int i = round * queries.size() + q;
+                latencies[i] = elapsed;
+                nodes[i] = dictionary.getNodesVisited();
+                suggestions += found[0];
+                if (!bigrams) continue;
+
+                found[0] = 0;
+                start = System.nanoTime();
+                dictionary.getBigrams(word, counter);
+                bigramLatencies[i] = System.nanoTime() - start;
+                predictions += found[0];
+            }
+        }
+        out.flush();
+
+        long totalTime = 0;
+        long totalNodes = 0;
+        for (int i = 0; i < total; i++) {
+            totalTime += latencies[i];
+            totalNodes += nodes[i];
+        }
+        Arrays.sort(latencies);
+        Arrays.sort(nodes);
+
+        System.err.printf("dictionary: %s, format %d, %d nodes, %d bytes\n", file,
+                dictionary.getFormat(), dictionary.getNodeCount(), file.length());
+        System.err.printf("queries: %d x %d rounds, %.2f suggestions per query\n",
+                queries.size(), rounds, (double) suggestions / total);
+        System.err.printf("latency us: mean %.1f  p50 %.1f  p90 %.1f  p99 %.1f  max %.1f\n",
+                totalTime / 1000.0 / total, percentile(latencies, 50) / 1000.0,
+                percentile(latencies, 90) / 1000.0, percentile(latencies, 99) / 1000.0,
+                latencies[total - 1] / 1000.0);
+        System.err.printf("nodes visited: mean %.0f  p50 %d  p90 %d  p99 %d  max %d\n",
+                (double) totalNodes / total, percentile(nodes, 50), percentile(nodes, 90),
+                percentile(nodes, 99), nodes[total - 1]);
+        if (bigrams) {
+            long bigramTime = 0;
+            for (int i = 0; i < total; i++) {
+                bigramTime += bigramLatencies[i];
+            }
+            Arrays.sort(bigramLatencies);
+            System.err.printf("bigrams: %d words, %.2f predictions per word\n",
+                    dictionary.getBigramCount(), (double) predictions / total);
+            System.err.printf("bigram latency us: mean %.2f  p50 %.2f  p99 %.2f  max %.2f\n",
+                    bigramTime / 1000.0 / total, percentile(bigramLatencies, 50) / 1000.0,
+                    percentile(bigramLatencies, 99) / 1000.0,
+                    bigramLatencies[total - 1] / 1000.0);
+        }
+        System.err.printf("throughput: %.0f queries per second\n", total * 1e9 / totalTime);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2010 Kan-Ru Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package info.kanru.inputmethod.awesome.tools;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Compiles a phrase list into the association table read by CinAssociations.
+ *
+ * Every non-empty line of the input is "phrase [frequency]", in UTF-8; lines
+ * starting with '#' are comments. A phrase of two or more characters makes
+ * the rest of the phrase a follow-up of its first character. The follow-ups
+ * of a character are ordered by decreasing frequency (0-65535, default 0)
+ * and then by their order in the input.
+ *
+ * All numbers in the output are big-endian:
+ * <pre>
+ * header    magic "AASC" (4), version = 1 (2), flags (2), lead count (4),
+ *           lead offset (4), phrase offset (4), longest follow-up in UTF-16
+ *           units (2), reserved (6), CRC32 of everything after the header (4)
+ * leads     sorted by code point: code point (4), offset of the first
+ *           follow-up relative to the phrase offset (4), follow-up count (4)
+ * phrases   the follow-ups of each lead in order: length in UTF-16 units (2),
+ *           UTF-16 units (2 each)
+ * </pre>
+ */
+public class MakeAssocTable {
+
+    private static final int MAGIC = 0x41415343; // "AASC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int MAX_FREQUENCY = 0xFFFF;
+    private static final int MAX_LENGTH = 0xFFFF;
+
+    static class Phrase {
+        int lead;
+        String rest;
+        int frequency;
+        int order;
+    }
+
+    private static final Comparator<Phrase> PHRASE_ORDER = new Comparator<Phrase>() {
+        public int compare(Phrase a, Phrase b) {
+            if (a.lead != b.lead) return a.lead < b.lead ? -1 : 1;
+            if (a.frequency != b.frequency) return b.frequency - a.frequency;
+            return a.order - b.order;
+        }
+    };
+
+    private final ArrayList<Phrase> mPhrases = new ArrayList<Phrase>();
+    private final HashMap<String, Phrase> mSeen = new HashMap<String, Phrase>();
+    private int mLeads;
+    private int mMaxLength;
+    private int mLine;
+    private String mFilename;
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            usage();
+        }
+        try {
+            final long start = System.currentTimeMillis();
+            MakeAssocTable table = new MakeAssocTable();
+            table.parse(args[0]);
+            final int size = table.write(args[1]);
+            System.out.println("Wrote " + table.mPhrases.size() + " phrases for "
+                    + table.mLeads + " characters in " + size + " bytes to " + args[1]
+                    + " in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: makeassoc <phrases.txt> <output.assoc>");
+        System.exit(-1);
+    }
+
+    private void parse(String filename) throws IOException {
+        mFilename = filename;
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(filename), "UTF-8"));
+        try {
+            String line;
+            mLine = 0;
+            while ((line = reader.readLine()) != null) {
+                mLine++;
+                line = line.trim();
+                if (line.length() == 0 || line.charAt(0) == '#') continue;
+                addPhrase(line.split("\\s+"));
+            }
+        } finally {
+            reader.close();
+        }
+        if (mPhrases.isEmpty()) {
+            throw new IOException(filename + ": no phrases found");
+        }
+    }
+
+    private void addPhrase(String[] fields) throws IOException {
+        if (fields.length > 2) {
+            throw error("expected \"phrase [frequency]\"");
+        }
+        final String phrase = fields[0];
+        final int lead = phrase.codePointAt(0);
+        final String rest = phrase.substring(Character.charCount(lead));
+        if (rest.length() == 0) return;
+        if (rest.length() > MAX_LENGTH) {
+            throw error("phrase is too long");
+        }
+        int frequency = 0;
+        if (fields.length == 2) {
+            try {
+                frequency = Integer.parseInt(fields[1]);
+            } catch (NumberFormatException e) {
+                throw error("bad frequency \"" + fields[1] + "\"");
+            }
+            frequency = Math.max(0, Math.min(MAX_FREQUENCY, frequency));
+        }
+
+        Phrase p = mSeen.get(phrase);
+        if (p != null) {
+            p.frequency = Math.max(p.frequency, frequency);
+            return;
+        }
+        p = new Phrase();
+        p.lead = lead;
+        p.rest = rest;
+        p.frequency = frequency;
+        p.order = mPhrases.size();
+        mPhrases.add(p);
+        mSeen.put(phrase, p);
+        mMaxLength = Math.max(mMaxLength, rest.length());
+    }
+
+    private IOException error(String message) {
+        return new IOException(mFilename + ":" + mLine + ": " + message);
+    }
+
+    private int write(String filename) throws IOException {
+        final Phrase[] phrases = mPhrases.toArray(new Phrase[mPhrases.size()]);
+        Arrays.sort(phrases, PHRASE_ORDER);
+
+        ByteArrayOutputStream leadBytes = new ByteArrayOutputStream();
+        DataOutputStream leadOut = new DataOutputStream(leadBytes);
+        ByteArrayOutputStream phraseBytes = new ByteArrayOutputStream();
+        DataOutputStream phraseOut = new DataOutputStream(phraseBytes);
+        mLeads = 0;
+        int i = 0;
+        while (i < phrases.length) {
+            final int lead = phrases[i].lead;
+            final int first = phraseOut.size();
+            int count = 0;
+            for (; i < phrases.length && phrases[i].lead == lead; i++, count++) {
+                phraseOut.writeShort(phrases[i].rest.length());
+                phraseOut.writeChars(phrases[i].rest);
+            }
+            leadOut.writeInt(lead);
+            leadOut.writeInt(first);
+            leadOut.writeInt(count);
+            mLeads++;
+        }
+
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+        leadOut.flush();
+        phraseOut.flush();
+        leadBytes.writeTo(bodyBytes);
+        phraseBytes.writeTo(bodyBytes);
+        final byte[] data = bodyBytes.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        final int leadsOffset = HEADER_SIZE;
+        final int phrasesOffset = leadsOffset + leadBytes.size();
+
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(filename));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(0);
+            out.writeInt(mLeads);
+            out.writeInt(leadsOffset);
+            out.writeInt(phrasesOffset);
+            out.writeShort(mMaxLength);
+            out.write(new byte[6]);
+            out.writeInt((int) crc.getValue());
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return HEADER_SIZE + data.length;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2010 Kan-Ru Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package info.kanru.inputmethod.awesome.tools;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Compiles a .cin input method table into the version 2 binary table read by
+ * CinDictionary.
+ *
+ * The input is the usual .cin text format. Only the %chardef section is
+ * compiled; every line in it is "key candidate [frequency]". Keys are
+ * case-insensitive printable ASCII of at most MAX_KEY_SIZE characters. The
+ * optional frequency (0-65535, default 0) orders the candidates of a key;
+ * candidates of equal frequency keep their order in the source file, so the
+ * output only depends on the input.
+ *
+ * All numbers in the output are big-endian:
+ * <pre>
+ * header    magic "ACIN" (4), version = 2 (2), flags (2), item count (4),
+ *           longest key (2), reserved (2), index offset (4), item offset (4),
+ *           value offset (4), CRC32 of everything after the header (4)
+ * index     257 item indices; entry b is the first item whose key starts
+ *           with a byte not less than b, entry 256 is the item count
+ * items     sorted by key, then by decreasing frequency: key length (1),
+ *           key bytes, frequency (2), offset of the candidate relative
+ *           to the value offset (4)
+ * values    the candidates as newline terminated UTF-8 lines, in item order
+ * </pre>
+ */
+public class MakeCinTable {
+
+    private static final int MAGIC = 0x4143494E; // "ACIN"
+    private static final int VERSION = 2;
+    private static final int FLAG_FREQUENCIES = 0x1;
+    private static final int HEADER_SIZE = 32;
+    private static final int INDEX_SIZE = 257;
+    private static final int MAX_KEY_SIZE = 8;
+    private static final int MAX_FREQUENCY = 0xFFFF;
+
+    static class Item {
+        byte[] key;
+        String value;
+        int frequency;
+        int order;
+    }
+
+    private static final Comparator<Item> ITEM_ORDER = new Comparator<Item>() {
+        public int compare(Item a, Item b) {
+            final int keyOrder = compareKeys(a.key, b.key);
+            if (keyOrder != 0) return keyOrder;
+            if (a.frequency != b.frequency) return b.frequency - a.frequency;
+            return a.order - b.order;
+        }
+    };
+
+    private final ArrayList<Item> mItems = new ArrayList<Item>();
+    private final HashMap<String, Item> mSeen = new HashMap<String, Item>();
+    private int mMaxKeySize;
+    private int mLine;
+    private String mFilename;
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            usage();
+        }
+        try {
+            final long start = System.currentTimeMillis();
+            MakeCinTable table = new MakeCinTable();
+            table.parse(args[0]);
+            final int size = table.write(args[1]);
+            System.out.println("Wrote " + table.mItems.size() + " items (longest key "
+                    + table.mMaxKeySize + ") in " + size + " bytes to " + args[1] + " in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: makecin <input.cin> <output.tbl>");
+        System.exit(-1);
+    }
+
+    static int compareKeys(byte[] a, byte[] b) {
+        final int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) return (a[i] & 0xFF) - (b[i] & 0xFF);
+        }
+        return a.length - b.length;
+    }
+
+    private void parse(String filename) throws IOException {
+        mFilename = filename;
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(filename), "UTF-8"));
+        try {
+            boolean inCharDef = false;
+            String line;
+            mLine = 0;
+            while ((line = reader.readLine()) != null) {
+                mLine++;
+                line = line.trim();
+                if (line.length() == 0 || line.charAt(0) == '#') continue;
+                if (line.charAt(0) == '%') {
+                    final String[] directive = line.split("\\s+");
+                    if (directive[0].equals("%chardef") && directive.length > 1) {
+                        inCharDef = directive[1].equals("begin");
+                    }
+                    continue;
+                }
+                if (inCharDef) {
+                    addItem(line.split("\\s+"));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (mItems.isEmpty()) {
+            throw new IOException(filename + ": no %chardef entries found");
+        }
+    }
+
+    private void addItem(String[] fields) throws IOException {
+        if (fields.length < 2 || fields.length > 3) {
+            throw error("expected \"key candidate [frequency]\"");
+        }
+        final String key = fields[0].toLowerCase();
+        if (key.length() > MAX_KEY_SIZE) {
+            throw error("key \"" + key + "\" is longer than " + MAX_KEY_SIZE);
+        }
+        final byte[] keyBytes = new byte[key.length()];
+        for (int i = 0; i < keyBytes.length; i++) {
+            final char c = key.charAt(i);
+            if (c <= ' ' || c >= 0x7F) {
+                throw error("key \"" + key + "\" is not printable ASCII");
+            }
+            keyBytes[i] = (byte) c;
+        }
+        int frequency = 0;
+        if (fields.length == 3) {
+            try {
+                frequency = Integer.parseInt(fields[2]);
+            } catch (NumberFormatException e) {
+                throw error("bad frequency \"" + fields[2] + "\"");
+            }
+            frequency = Math.max(0, Math.min(MAX_FREQUENCY, frequency));
+        }
+
+        // A candidate listed twice for a key keeps its first position and
+        // its highest frequency.
+        final String id = key + ' ' + fields[1];
+        Item item = mSeen.get(id);
+        if (item != null) {
+            item.frequency = Math.max(item.frequency, frequency);
+            return;
+        }
+        item = new Item();
+        item.key = keyBytes;
+        item.value = fields[1];
+        item.frequency = frequency;
+        item.order = mItems.size();
+        mItems.add(item);
+        mSeen.put(id, item);
+        mMaxKeySize = Math.max(mMaxKeySize, keyBytes.length);
+    }
+
+    private IOException error(String message) {
+        return new IOException(mFilename + ":" + mLine + ": " + message);
+    }
+
+    private int write(String filename) throws IOException {
+        final Item[] items = mItems.toArray(new Item[mItems.size()]);
+        Arrays.sort(items, ITEM_ORDER);
+
+        ByteArrayOutputStream values = new ByteArrayOutputStream();
+        ByteArrayOutputStream itemBytes = new ByteArrayOutputStream();
+        DataOutputStream itemOut = new DataOutputStream(itemBytes);
+        final int[] index = new int[INDEX_SIZE];
+        int nextIndex = 0;
+        for (int i = 0; i < items.length; i++) {
+            final Item item = items[i];
+            final int first = item.key[0] & 0xFF;
+            while (nextIndex <= first) {
+                index[nextIndex++] = i;
+            }
+            itemOut.writeByte(item.key.length);
+            itemOut.write(item.key);
+            itemOut.writeShort(item.frequency);
+            itemOut.writeInt(values.size());
+            values.write(item.value.getBytes("UTF-8"));
+            values.write('\n');
+        }
+        while (nextIndex < INDEX_SIZE) {
+            index[nextIndex++] = items.length;
+        }
+
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bodyBytes);
+        for (int i = 0; i < INDEX_SIZE; i++) {
+            body.writeInt(index[i]);
+        }
+        itemBytes.writeTo(body);
+        values.writeTo(body);
+        body.flush();
+        final byte[] data = bodyBytes.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        final int indexOffset = HEADER_SIZE;
+        final int itemsOffset = indexOffset + INDEX_SIZE * 4;
+        final int valuesOffset = itemsOffset + itemBytes.size();
+
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(filename));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(FLAG_FREQUENCIES);
+            out.writeInt(items.length);
+            out.writeShort(mMaxKeySize);
+            out.writeShort(0);
+            out.writeInt(indexOffset);
+            out.writeInt(itemsOffset);
+            out.writeInt(valuesOffset);
+            out.writeInt((int) crc.getValue());
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return HEADER_SIZE + data.length;
+    }
+}
@@ -0,0 +1,676 @@
+/*
+ * Copyright (C) 2010 Kan-Ru Chen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package info.kanru.inputmethod.awesome.tools;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Compiles an XML word list, as in dictionaries/sample.xml, into the version 2
+ * binary dictionary read by BinaryDictionary. The format is described in
+ * jni/dictionary.h.
+ *
+ * Every &lt;w f="frequency"&gt;word&lt;/w&gt; element is a word; frequencies
+ * are 0-255 and a word listed twice keeps the higher one. Words are added to
+ * the trie in sorted order and every finished node is looked up among the
+ * nodes already built, so identical subtrees, such as the endings of many
+ * words, are stored once. The full trie never exists: the words are kept
+ * packed in a few arrays, and only the path of the last word is open while
+ * everything before it is already shared. The children of a node are written
+ * highest subtree frequency first, and each carries that frequency so the
+ * search can skip what cannot make the list, and every child after it.
+ *
+ * With -b, the pairs file adds a bigram section for next-word prediction.
+ * Every non-empty line is "word next count", in UTF-8; lines starting with '#'
+ * are comments. The successors of a word are ranked by count and their share
+ * of the word's total is quantized to the format's log scale.
+ */
+public class MakeBinaryDictionary {
+
+    private static final int MAGIC = 0x9BC13AFE;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 24;
+    private static final int FLAG_EXTENSIONS = 0x1;
+    private static final int FLAG_SUBTREE_FREQUENCY = 0x2;
+    private static final int FLAG_BIGRAMS = 0x4;
+    private static final int FLAG_SORTED_CHILDREN = 0x8;
+    private static final int BIGRAM_OFFSET_SIZE = 4;
+
+    private static final int FLAG_TERMINAL = 0x80;
+    private static final int FLAG_ADDRESS_SHIFT = 5;
+    private static final int FLAG_EXTENSION = 0x10;
+    private static final int FLAG_WIDE_COUNT = 0x80;
+    private static final int MAX_CHILDREN = 0x7FFF;
+
+    private static final int MAX_FREQUENCY = 255;
+    // Longer words cannot be suggested; BinaryDictionary.MAX_WORD_LENGTH counts the NULL
+    private static final int MAX_WORD_LENGTH = 47;
+    private static final int MAX_SUCCESSORS = 255;
+    private static final int MAX_BIGRAM_OFFSET = 0xFFFFFF;
+
+    /** A trie node: its children's characters, frequencies (-1 if not a word) and nodes. */
+    static final class Node {
+        char[] chars = new char[2];
+        int[] frequencies = new int[2];
+        Node[] children = new Node[2];
+        int count;
+        // Highest frequency of the words below, once finished
+        int bound;
+        // Identity among finished nodes, which only point at finished nodes
+        int id = -1;
+        int hash;
+        int address;
+
+        void add(char c, int frequency) {
+            if (count == chars.length) {
+                chars = Arrays.copyOf(chars, count * 2);
+                frequencies = Arrays.copyOf(frequencies, count * 2);
+                children = Arrays.copyOf(children, count * 2);
+            }
+            chars[count] = c;
+            frequencies[count] = frequency;
+            count++;
+        }
+
+        int childBound(int i) {
+            return children[i] != null
+                    ? Math.max(frequencies[i], children[i].bound) : frequencies[i];
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Node)) return false;
+            final Node other = (Node) o;
+            if (count != other.count || hash != other.hash) return false;
+            for (int i = 0; i < count; i++) {
+                if (chars[i] != other.chars[i] || frequencies[i] != other.frequencies[i]
+                        || children[i] != other.children[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // The words, packed: word i is mChars[mStarts[i]] up to mChars[mStarts[i + 1]]
+    private char[] mChars = new char[1 << 16];
+    private int[] mStarts = new int[1 << 12];
+    private int[] mFrequencies = new int[1 << 12];
+    private int mWordCount;
+    private int mSkipped;
+
+    private final HashMap<Node, Node> mFinished = new HashMap<Node, Node>();
+    private Node mRoot;
+    private int mTrieChars;
+    private int mCharCount;
+
+    private final LinkedHashMap<String, LinkedHashMap<String, Integer>> mPairs =
+            new LinkedHashMap<String, LinkedHashMap<String, Integer>>();
+
+    public static void main(String[] args) {
+        String pairs = null;
+        int arg = 0;
+        if (args.length > 1 && args[0].equals("-b")) {
+            pairs = args[1];
+            arg = 2;
+        }
+        if (args.length - arg != 2) {
+            usage();
+        }
+        try {
+            final long start = System.currentTimeMillis();
+            MakeBinaryDictionary dictionary = new MakeBinaryDictionary();
+            dictionary.parse(args[arg]);
+            if (pairs != null) {
+                dictionary.parsePairs(pairs);
+            }
+            dictionary.build();
+            final int size = dictionary.write(args[arg + 1]);
+            System.out.println("Wrote " + dictionary.mWordCount + " words in "
+                    + dictionary.mCharCount + " characters, " + dictionary.mTrieChars
+                    + " before sharing ("
+                    + String.format("%.2f", (double) dictionary.mTrieChars
+                            / Math.max(1, dictionary.mCharCount))
+                    + "x), in " + size + " bytes to " + args[arg + 1] + " in "
+                    + (System.currentTimeMillis() - start) + " ms");
+            if (dictionary.mSkipped > 0) {
+                System.out.println("Skipped " + dictionary.mSkipped + " words longer than "
+                        + MAX_WORD_LENGTH + " characters");
+            }
+            if (!dictionary.mPairs.isEmpty()) {
+                System.out.println("Bigrams for " + dictionary.mPairs.size() + " words");
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: makedict [-b <pairs.txt>] <wordlist.xml> <output.dict>");
+        System.exit(-1);
+    }
+
+    private void parse(final String filename) throws IOException {
+        final DefaultHandler handler = new DefaultHandler() {
+            private final StringBuilder mWord = new StringBuilder();
+            private Locator mLocator;
+            private int mFrequency = -1;
+
+            @Override
+            public void setDocumentLocator(Locator locator) {
+                mLocator = locator;
+            }
+
+            @Override
+            public void startElement(String uri, String localName, String qName,
+                    Attributes attributes) throws SAXException {
+                if (!qName.equals("w")) return;
+                final String f = attributes.getValue("f");
+                try {
+                    mFrequency = Integer.parseInt(f);
+                } catch (NumberFormatException e) {
+                    throw error("bad frequency \"" + f + "\"");
+                }
+                mFrequency = Math.max(0, Math.min(MAX_FREQUENCY, mFrequency));
+                mWord.setLength(0);
+            }
+
+            @Override
+            public void characters(char[] ch, int start, int length) {
+                if (mFrequency >= 0) mWord.append(ch, start, length);
+            }
+
+            @Override
+            public void endElement(String uri, String localName, String qName)
+                    throws SAXException {
+                if (!qName.equals("w")) return;
+                final String word = mWord.toString().trim();
+                if (word.length() == 0 || word.indexOf('\0') >= 0) {
+                    throw error("bad word \"" + word + "\"");
+                }
+                addWord(word, mFrequency);
+                mFrequency = -1;
+            }
+
+            private SAXException error(String message) {
+                return new SAXException(filename + ":" + mLocator.getLineNumber() + ": "
+                        + message);
+            }
+        };
+        try {
+            SAXParserFactory.newInstance().newSAXParser().parse(new File(filename), handler);
+        } catch (SAXException e) {
+            throw new IOException(e.getMessage());
+        } catch (ParserConfigurationException e) {
+            throw new IOException(e.getMessage());
+        }
+        if (mWordCount == 0) {
+            throw new IOException(filename + ": no words found");
+        }
+    }
+
+    private void addWord(String word, int frequency) {
+        final int length = word.length();
+        if (length > MAX_WORD_LENGTH) {
+            mSkipped++;
+            return;
+        }
+        if (mWordCount + 2 > mStarts.length) {
+            mStarts = Arrays.copyOf(mStarts, mStarts.length * 2);
+            mFrequencies = Arrays.copyOf(mFrequencies, mFrequencies.length * 2);
+        }
+        final int start = mStarts[mWordCount];
+        if (start + length > mChars.length) {
+            mChars = Arrays.copyOf(mChars, Math.max(mChars.length * 2, start + length));
+        }
+        word.getChars(0, length, mChars, start);
+        mFrequencies[mWordCount] = frequency;
+        mStarts[++mWordCount] = start + length;
+    }
+
+    private void parsePairs(String filename) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(filename), "UTF-8"));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.length() == 0 || line.charAt(0) == '#') continue;
+                final String[] fields = line.split("\\s+");
+                int count = -1;
+                if (fields.length == 3) {
+                    try {
+                        count = Integer.parseInt(fields[2]);
+                    } catch (NumberFormatException e) {
+                        // Reported below
+                    }
+                }
+                if (count < 0) {
+                    throw new IOException(filename + ":" + lineNumber
+                            + ": expected \"word next count\"");
+                }
+                if (fields[0].length() > MAX_WORD_LENGTH || fields[1].length() > MAX_WORD_LENGTH
+                        || count == 0) {
+                    continue;
+                }
+                LinkedHashMap<String, Integer> successors = mPairs.get(fields[0]);
+                if (successors == null) {
+                    successors = new LinkedHashMap<String, Integer>();
+                    mPairs.put(fields[0], successors);
+                }
+                final Integer previous = successors.get(fields[1]);
+                successors.put(fields[1], previous == null ? count : previous + count);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private int compareWords(int a, int b) {
+        final char[] chars = mChars;
+        final int aEnd = mStarts[a + 1];
+        final int bEnd = mStarts[b + 1];
+        for (int i = mStarts[a], j = mStarts[b]; i < aEnd && j < bEnd; i++, j++) {
+            if (chars[i] != chars[j]) return chars[i] - chars[j];
+        }
+        return (aEnd - mStarts[a]) - (bEnd - mStarts[b]);
+    }
+
+    /**
+     * Builds the minimal trie from the sorted words. The nodes on the path of the last word
+     * are still open; when the next word leaves the path, the nodes below the fork are
+     * finished, deepest first, each replaced by an equal finished node if there is one.
+     */
+    private void build() {
+        final Integer[] order = new Integer[mWordCount];
+        for (int i = 0; i < mWordCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return compareWords(a, b);
+            }
+        });
+
+        final Node[] path = new Node[MAX_WORD_LENGTH + 1];
+        mRoot = new Node();
+        path[0] = mRoot;
+        int depth = 0;
+        int last = -1;
+        int words = 0;
+        for (int k = 0; k < order.length; k++) {
+            final int w = order[k];
+            final int start = mStarts[w];
+            final int length = mStarts[w + 1] - start;
+            if (last >= 0 && compareWords(last, w) == 0) {
+                // The same word again; the open path still ends in it
+                final Node node = path[length - 1];
+                node.frequencies[node.count - 1] =
+                        Math.max(node.frequencies[node.count - 1], mFrequencies[w]);
+                continue;
+            }
+            int prefix = 0;
+            if (last >= 0) {
+                final int lastStart = mStarts[last];
+                while (prefix < depth && prefix < length
+                        && mChars[lastStart + prefix] == mChars[start + prefix]) {
+                    prefix++;
+                }
+            }
+            finish(path, depth, prefix);
+
+            // The word so far ended at the fork, so its last child has no node below yet
+            if (path[prefix] == null) {
+                final Node parent = path[prefix - 1];
+                path[prefix] = new Node();
+                parent.children[parent.count - 1] = path[prefix];
+            }
+            for (int i = prefix; i < length; i++) {
+                final Node node = path[i];
+                node.add(mChars[start + i], i == length - 1 ? mFrequencies[w] : -1);
+                if (i < length - 1) {
+                    path[i + 1] = new Node();
+                    node.children[node.count - 1] = path[i + 1];
+                } else {
+                    path[i + 1] = null;
+                }
+            }
+            mTrieChars += length - prefix;
+            depth = length;
+            last = w;
+            words++;
+        }
+        finish(path, depth, 0);
+        sortChildren(mRoot);
+        mWordCount = words;
+        // The packed words are no longer needed
+        mChars = null;
+        mStarts = null;
+        mFrequencies = null;
+    }
+
+    // Finishes the open nodes below path[to]
+    private void finish(Node[] path, int depth, int to) {
+        for (int d = depth - 1; d >= to; d--) {
+            final Node child = path[d + 1];
+            if (child == null) continue;
+            final Node parent = path[d];
+            parent.children[parent.count - 1] = finish(child);
+            path[d + 1] = null;
+        }
+    }
+
+    private Node finish(Node node) {
+        sortChildren(node);
+        int hash = node.count;
+        for (int i = 0; i < node.count; i++) {
+            hash = hash * 31 + node.chars[i];
+            hash = hash * 31 + node.frequencies[i];
+            hash = hash * 31 + (node.children[i] != null ? node.children[i].id : -1);
+        }
+        node.hash = hash;
+        final Node same = mFinished.get(node);
+        if (same != null) return same;
+        node.id = mFinished.size();
+        mFinished.put(node, node);
+        return node;
+    }
+
+    // Puts the children with the strongest words first and notes the node's bound
+    private static void sortChildren(Node node) {
+        final int count = node.count;
+        final Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        final Node n = node;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                final int boundA = n.childBound(a);
+                final int boundB = n.childBound(b);
+                if (boundA != boundB) return boundB - boundA;
+                return n.chars[a] - n.chars[b];
+            }
+        });
+        final char[] chars = new char[count];
+        final int[] frequencies = new int[count];
+        final Node[] children = new Node[count];
+        int bound = 0;
+        for (int i = 0; i < count; i++) {
+            chars[i] = node.chars[order[i]];
+            frequencies[i] = node.frequencies[order[i]];
+            children[i] = node.children[order[i]];
+            bound = Math.max(bound, node.childBound(order[i]));
+        }
+        node.chars = chars;
+        node.frequencies = frequencies;
+        node.children = children;
+        node.bound = bound;
+    }
+
+    // 0 for no children, else the size of the address in bytes minus one
+    private static int addressWidth(Node child) {
+        if (child == null) return 0;
+        if (child.address < (1 << 16)) return 1;
+        if (child.address < (1 << 24)) return 2;
+        return 3;
+    }
+
+    private static int nodeSize(Node node) {
+        int size = node.count >= 128 ? 2 : 1;
+        for (int i = 0; i < node.count; i++) {
+            size += node.chars[i] < 0xFF ? 1 : 3;
+            size++;
+            final int width = addressWidth(node.children[i]);
+            if (width > 0) {
+                // The address, then the extension field holding the subtree frequency
+                size += width + 1 + 2;
+            }
+            if (node.frequencies[i] >= 0) size++;
+        }
+        return size;
+    }
+
+    /**
+     * Lays the nodes out breadth first from the root at the end of the header. Addresses
+     * start at their widest and only shrink, so this settles after a few passes.
+     */
+    private ArrayList<Node> layout(int headerSize) throws IOException {
+        final ArrayList<Node> nodes = new ArrayList<Node>();
+        mRoot.address = Integer.MAX_VALUE;
+        nodes.add(mRoot);
+        for (int i = 0; i < nodes.size(); i++) {
+            final Node node = nodes.get(i);
+            if (node.count > MAX_CHILDREN) {
+                throw new IOException("A node has more than " + MAX_CHILDREN + " children");
+            }
+            for (int j = 0; j < node.count; j++) {
+                final Node child = node.children[j];
+                if (child != null && child.address == 0) {
+                    child.address = Integer.MAX_VALUE;
+                    nodes.add(child);
+                }
+            }
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int address = headerSize;
+            for (Node node : nodes) {
+                if (node.address != address) {
+                    node.address = address;
+                    changed = true;
+                }
+                address += nodeSize(node);
+            }
+        }
+        return nodes;
+    }
+
+    private byte[] writeTrie(ArrayList<Node> nodes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        mCharCount = 0;
+        for (Node node : nodes) {
+            if (node.count >= 128) {
+                out.writeShort(FLAG_WIDE_COUNT << 8 | node.count);
+            } else {
+                out.writeByte(node.count);
+            }
+            for (int i = 0; i < node.count; i++) {
+                writeChar(out, node.chars[i]);
+                final Node child = node.children[i];
+                final int width = addressWidth(child);
+                final boolean terminal = node.frequencies[i] >= 0;
+                out.writeByte((terminal ? FLAG_TERMINAL : 0) | width << FLAG_ADDRESS_SHIFT
+                        | (width > 0 ? FLAG_EXTENSION : 0));
+                for (int b = width; b >= 0 && width > 0; b--) {
+                    out.writeByte(child.address >>> (8 * b));
+                }
+                if (terminal) out.writeByte(node.frequencies[i]);
+                if (width > 0) {
+                    out.writeByte(1);
+                    out.writeByte(child.bound);
+                }
+            }
+            mCharCount += node.count;
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeChar(DataOutputStream out, char c) throws IOException {
+        if (c < 0xFF) {
+            out.writeByte(c);
+        } else {
+            out.writeByte(0xFF);
+            out.writeChar(c);
+        }
+    }
+
+    private static void writeWord(DataOutputStream out, String word) throws IOException {
+        out.writeByte(word.length());
+        for (int i = 0; i < word.length(); i++) {
+            writeChar(out, word.charAt(i));
+        }
+    }
+
+    private static int wordSize(String word) {
+        int size = 1;
+        for (int i = 0; i < word.length(); i++) {
+            size += word.charAt(i) < 0xFF ? 1 : 3;
+        }
+        return size;
+    }
+
+    // Probability p as the byte q for which p = 2^((q - 255) / 16)
+    private static int quantize(int count, int total) {
+        final double q = 255 + 16 * Math.log((double) count / total) / Math.log(2);
+        return Math.max(1, Math.min(255, (int) Math.round(q)));
+    }
+
+    private byte[] writeBigrams() throws IOException {
+        final String[] words = mPairs.keySet().toArray(new String[mPairs.size()]);
+        // String order is the UTF-16 order the readers search in
+        Arrays.sort(words);
+
+        // Each entry's word first, then the successors that are no entry's word
+        final HashMap<String, Integer> offsets = new HashMap<String, Integer>();
+        final HashMap<String, String[]> successors = new HashMap<String, String[]>();
+        int offset = 4 + 4 * words.length;
+        for (String word : words) {
+            final LinkedHashMap<String, Integer> counts = mPairs.get(word);
+            final ArrayList<Map.Entry<String, Integer>> ranked =
+                    new ArrayList<Map.Entry<String, Integer>>(counts.entrySet());
+            // A stable sort, so equal counts keep their order in the pairs file
+            Collections.sort(ranked, new Comparator<Map.Entry<String, Integer>>() {
+                public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+                    return b.getValue().compareTo(a.getValue());
+                }
+            });
+            final int n = Math.min(MAX_SUCCESSORS, ranked.size());
+            final String[] list = new String[n];
+            for (int i = 0; i < n; i++) {
+                list[i] = ranked.get(i).getKey();
+            }
+            successors.put(word, list);
+            offsets.put(word, offset);
+            offset += wordSize(word) + 1 + 4 * n;
+        }
+        final ArrayList<String> others = new ArrayList<String>();
+        for (String word : words) {
+            for (String next : successors.get(word)) {
+                if (offsets.containsKey(next)) continue;
+                offsets.put(next, offset);
+                others.add(next);
+                offset += wordSize(next);
+            }
+        }
+        if (offset > MAX_BIGRAM_OFFSET) {
+            throw new IOException("Too many bigrams, the section is limited to "
+                    + MAX_BIGRAM_OFFSET + " bytes");
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(words.length);
+        for (String word : words) {
+            out.writeInt(offsets.get(word));
+        }
+        for (String word : words) {
+            final LinkedHashMap<String, Integer> counts = mPairs.get(word);
+            int total = 0;
+            for (int count : counts.values()) {
+                total += count;
+            }
+            final String[] list = successors.get(word);
+            writeWord(out, word);
+            out.writeByte(list.length);
+            for (String next : list) {
+                out.writeByte(quantize(counts.get(next), total));
+                final int nextOffset = offsets.get(next);
+                out.writeByte(nextOffset >>> 16);
+                out.writeShort(nextOffset);
+            }
+        }
+        for (String word : others) {
+            writeWord(out, word);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private int write(String filename) throws IOException {
+        final boolean bigrams = !mPairs.isEmpty();
+        final int headerSize = HEADER_SIZE + (bigrams ? BIGRAM_OFFSET_SIZE : 0);
+        final byte[] trie = writeTrie(layout(headerSize));
+        final byte[] section = bigrams ? writeBigrams() : new byte[0];
+
+        CRC32 crc = new CRC32();
+        crc.update(trie);
+        crc.update(section);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(filename));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(FLAG_EXTENSIONS | FLAG_SUBTREE_FREQUENCY | FLAG_SORTED_CHILDREN
+                    | (bigrams ? FLAG_BIGRAMS : 0));
+            out.writeInt(headerSize);
+            out.writeInt(mCharCount);
+            out.writeInt(trie.length + section.length);
+            out.writeInt((int) crc.getValue());
+            if (bigrams) {
+                out.writeInt(headerSize + trie.length);
+            }
+            out.write(trie);
+            out.write(section);
+        } finally {
+            out.close();
+        }
+        return headerSize + trie.length + section.length;
+    }
+}